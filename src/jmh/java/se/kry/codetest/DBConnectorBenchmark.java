@@ -0,0 +1,111 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kry.codetest.migrate.MigrationRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Throughput of {@link DBConnector#updateWithParam} on a temporary SQLite file, with the single
+ * writer and with the pooled connections. Every invocation issues a burst of concurrent status
+ * updates, the way the poller does after a poll, and waits for all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBConnectorBenchmark {
+
+    private static final int ROWS = 1000;
+    private static final int BURST = 100;
+
+    @Param({"true", "false"})
+    public boolean singleWriter;
+
+    private Vertx vertx;
+    private File dbFile;
+    private DBConnector connector;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        dbFile = File.createTempFile("poller-bench", ".db");
+        connector = new DBConnector(vertx, new JsonObject()
+                .put("path", dbFile.getAbsolutePath())
+                .put("single_writer", singleWriter));
+        List<JsonArray> rows = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            rows.add(new JsonArray().add("service-" + i).add(url(i)).add("2020-01-01 00:00:00.000")
+                    .add("UNKNOWN").add(Service.DEFAULT_POLL_INTERVAL).addNull());
+        }
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        new MigrationRunner(connector).migrate()
+                .compose(v -> connector.batchWithParams(SqliteServiceStore.SQL_INSERT_SERVICE, rows))
+                .setHandler(ar -> {
+                    if (ar.succeeded()) {
+                        ready.complete(null);
+                    } else {
+                        ready.completeExceptionally(ar.cause());
+                    }
+                });
+        ready.get(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void updateWithParam() throws Exception {
+        CountDownLatch latch = new CountDownLatch(BURST);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < BURST; i++) {
+            int row = next++ % ROWS;
+            JsonArray params = new JsonArray().add((next & 1) == 0 ? "OK" : "FAIL").add(url(row));
+            connector.updateWithParam(SqliteServiceStore.SQL_UPDATE_SERVICE, params).setHandler(ar -> {
+                if (ar.failed()) {
+                    failure.set(ar.cause());
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        connector.stop();
+        vertx.close();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(dbFile.getAbsolutePath() + suffix).delete();
+        }
+    }
+
+    private static String url(int i) {
+        return "https://service-" + i + ".example.com/health";
+    }
+}
@@ -0,0 +1,131 @@
+package se.kry.codetest;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a full poll of all the services against an in-process stub HTTP server. The services
+ * are spread over 16 loopback addresses so the per-host limit of the pipeline is exercised the way
+ * it is with real services. The statuses do not change, so this measures the probes alone. With
+ * {@code copies} above 1 several services share each target and a poll only probes the targets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PollerBenchmark {
+
+    private static final int HOSTS = 16;
+
+    @Param({"1000", "10000", "100000"})
+    public int urls;
+
+    // The number of services with the same target, their URLs only differ by the fragment
+    @Param({"1", "10"})
+    public int copies;
+
+    private Vertx vertx;
+    private Context context;
+    private HttpServer stub;
+    private File dbFile;
+    private DBConnector connector;
+    private BackgroundPoller poller;
+    private final Map<String, Service> services = new LinkedHashMap<>();
+
+    @Setup
+    public void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+        vertx.createHttpServer()
+                .requestHandler(request -> request.response().end("OK"))
+                .listen(0, ar -> {
+                    if (ar.succeeded()) {
+                        listening.complete(ar.result());
+                    } else {
+                        listening.completeExceptionally(ar.cause());
+                    }
+                });
+        stub = listening.get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < urls; i++) {
+            int target = i / copies;
+            String url = "http://127.0.0." + (1 + target % HOSTS) + ":" + stub.actualPort() + "/service/" + target
+                    + (copies > 1 ? "#" + i % copies : "");
+            services.put(url, new Service("service-" + i, url, "2020-01-01 00:00:00.000", "OK"));
+        }
+        dbFile = File.createTempFile("poller-bench", ".db");
+        connector = new DBConnector(vertx, new JsonObject().put("path", dbFile.getAbsolutePath()));
+        JsonObject config = new JsonObject()
+                .put("max_probes_per_host", 64)
+                .put("max_queued_probes", Math.max(urls, 100000))
+                // Every invocation probes all the targets again, only the probes in flight are shared
+                .put("probe_cache_ttl_ratio", 0.0)
+                // All the services are without owner and polled at once, the probe rate must not limit them
+                .put("owner_probe_rate", urls * 1000.0)
+                .put("owner_probe_burst", (double) urls)
+                .put("journal_path", dbFile.getAbsolutePath() + ".journal");
+        // The poller is single threaded, it lives on its own context like in the application
+        context = vertx.getOrCreateContext();
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        context.runOnContext(v -> {
+            poller = new BackgroundPoller(vertx, new SqliteServiceStore(connector), new ServiceRegistry(), null, config);
+            created.complete(null);
+        });
+        created.get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void pollServices() throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        context.runOnContext(v -> {
+            ProbePipeline pipeline = poller.getPipeline();
+            long target = finished(pipeline) + (urls + copies - 1) / copies;
+            poller.pollServices(services);
+            vertx.setPeriodic(1, id -> {
+                if (finished(pipeline) >= target) {
+                    vertx.cancelTimer(id);
+                    done.complete(null);
+                }
+            });
+        });
+        done.get(10, TimeUnit.MINUTES);
+    }
+
+    private static long finished(ProbePipeline pipeline) {
+        return pipeline.getCompleted() + pipeline.getMissed() + pipeline.getRejected();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        CompletableFuture<Void> stopped = new CompletableFuture<>();
+        context.runOnContext(v -> poller.stop().setHandler(ar -> stopped.complete(null)));
+        stopped.get(30, TimeUnit.SECONDS);
+        connector.stop();
+        stub.close();
+        vertx.close();
+        for (String suffix : new String[]{"", "-wal", "-shm", ".journal"}) {
+            new File(dbFile.getAbsolutePath() + suffix).delete();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package se.kry.codetest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Heap retained by the registry, in bytes per service. The services look like the ones loaded from
+ * the database: every row has its own strings, the URLs are spread over a number of hosts and the
+ * services were added one millisecond apart. The registry is measured alone and then with the
+ * rendered view of {@code GET /service}.
+ * <p>
+ * Run with {@code ./gradlew registryFootprint -PfootprintArgs="1000000 1000"} (services, hosts), the
+ * heap must be large enough for the services and the result is printed as one JSON line.
+ */
+public class RegistryFootprint {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+    private static final long FIRST_INSERT = 1577836800000L;
+    private static final String[] STATUSES = {"OK", "OK", "OK", "FAIL", "UNKNOWN"};
+
+    public static void main(String[] args) throws Exception {
+        int services = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int hosts = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long empty = usedHeap();
+        ServiceRegistry registry = new ServiceRegistry();
+        for (int i = 0; i < services; i++) {
+            String url = "https://service-" + (i % hosts) + ".example.com/health/" + i;
+            // new String, as every row read from the database
+            String status = new String(STATUSES[i % STATUSES.length]);
+            registry.put(new Service("service-" + i, url, TIME_FORMAT.format(Instant.ofEpochMilli(FIRST_INSERT + i)),
+                    status, Service.DEFAULT_POLL_INTERVAL));
+        }
+        long withRegistry = usedHeap();
+        ServiceSnapshot snapshot = registry.snapshot();
+        long withSnapshot = usedHeap();
+        System.out.println("{\"services\":" + services
+                + ",\"hosts\":" + hosts
+                + ",\"registryBytesPerService\":" + (withRegistry - empty) / services
+                + ",\"snapshotBytesPerService\":" + (withSnapshot - withRegistry) / services
+                + ",\"totalBytesPerService\":" + (withSnapshot - empty) / services + "}");
+        // Keep both reachable until the end of the measurement
+        if (snapshot.size() != registry.size()) {
+            throw new IllegalStateException("snapshot of " + snapshot.size() + " services");
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        // A few collections in a row, the last ones find nothing left to free
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,95 @@
+package se.kry.codetest;
+
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of {@code GET /service} for large registries: rebuilding the snapshot after a status
+ * change, serving the cached snapshot, compressing it and cutting a page out of it, and rendering
+ * the few failing services through the status index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+    private static final int FAILING = 10;
+    private static final ServiceFilter FAILED = new ServiceFilter(ServiceStatus.FAIL, null, null, null, Long.MIN_VALUE);
+
+    @Param({"1000", "10000", "100000"})
+    public int services;
+
+    private ServiceRegistry registry;
+    private Service changed;
+    private boolean ok;
+
+    @Setup
+    public void setUp() {
+        registry = new ServiceRegistry();
+        for (int i = 0; i < services; i++) {
+            registry.put(new Service("service-" + i, String.format("https://service-%07d.example.com/health", i),
+                    "2020-01-01 00:00:00.000", "OK"));
+        }
+        changed = registry.values().iterator().next();
+        int failing = 0;
+        for (Service service : registry.values()) {
+            if (service != changed && failing++ < FAILING) {
+                registry.updateStatus(service, ServiceStatus.FAIL);
+            }
+        }
+        registry.snapshot();
+    }
+
+    /**
+     * One status changed since the last request, the snapshot is encoded again
+     */
+    @Benchmark
+    public Buffer rebuild() {
+        ok = !ok;
+        registry.updateStatus(changed, ok ? ServiceStatus.OK : ServiceStatus.FAIL);
+        return registry.snapshot().all();
+    }
+
+    @Benchmark
+    public Buffer cached() {
+        return registry.snapshot().all();
+    }
+
+    /**
+     * Status change followed by a gzip request, the snapshot is encoded and compressed again
+     */
+    @Benchmark
+    public Buffer rebuildGzipped() {
+        ok = !ok;
+        registry.updateStatus(changed, ok ? ServiceStatus.OK : ServiceStatus.FAIL);
+        return registry.snapshot().gzipped();
+    }
+
+    @Benchmark
+    public Buffer page() {
+        return registry.snapshot().page(null, 100).getBody();
+    }
+
+    /**
+     * {@code GET /service?status=FAIL}, the cost depends on the number of failing services only
+     */
+    @Benchmark
+    public Buffer filtered() {
+        return ServiceSnapshot.build(registry.getVersion(), registry.find(FAILED)).all();
+    }
+}
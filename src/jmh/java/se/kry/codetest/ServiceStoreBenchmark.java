@@ -0,0 +1,127 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kry.codetest.migrate.MigrationRunner;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two {@link ServiceStore} implementations on temporary files: the status updates, in batches
+ * like the ones of the {@link StatusWriteBuffer}, and the full scan of the startup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceStoreBenchmark {
+
+    private static final int BATCH = 500;
+
+    @Param({ServiceStore.TYPE_SQLITE, ServiceStore.TYPE_LOG})
+    public String store;
+
+    @Param({"10000"})
+    public int services;
+
+    private Vertx vertx;
+    private Path dir;
+    private DBConnector connector;
+    private ServiceStore serviceStore;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        dir = Files.createTempDirectory("store-bench");
+        connector = new DBConnector(vertx, new JsonObject().put("path", dir.resolve("poller.db").toString()));
+        serviceStore = ServiceStore.create(vertx, connector, new JsonObject().put("type", store)
+                .put("path", dir.resolve("services.log").toString()));
+        List<Service> added = new ArrayList<>();
+        for (int i = 0; i < services; i++) {
+            added.add(new Service("service-" + i, url(i), System.currentTimeMillis(), ServiceStatus.UNKNOWN,
+                    Service.DEFAULT_POLL_INTERVAL));
+        }
+        await(new MigrationRunner(connector).migrate()
+                .compose(v -> serviceStore.open())
+                .compose(v -> serviceStore.insert(added)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void updateStatuses() throws Exception {
+        Map<String, ServiceStatus> statuses = new HashMap<>();
+        ServiceStatus status = (next / services & 1) == 0 ? ServiceStatus.OK : ServiceStatus.FAIL;
+        for (int i = 0; i < BATCH; i++) {
+            statuses.put(url(next++ % services), status);
+        }
+        await(serviceStore.updateStatuses(statuses));
+    }
+
+    @Benchmark
+    public int scan() throws Exception {
+        int[] count = new int[1];
+        await(serviceStore.scan(stream -> {
+            Future<Void> done = Future.future();
+            stream.exceptionHandler(done::tryFail);
+            stream.endHandler(v -> done.tryComplete());
+            stream.handler(service -> count[0]++);
+            return done;
+        }));
+        return count[0];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        await(serviceStore.close());
+        connector.stop();
+        vertx.close();
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.toFile().delete();
+    }
+
+    private static void await(Future<?> future) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        future.setHandler(ar -> {
+            if (ar.succeeded()) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(ar.cause());
+            }
+        });
+        done.get(60, TimeUnit.SECONDS);
+    }
+
+    private static String url(int i) {
+        return "https://service-" + i + ".example.com/health";
+    }
+}
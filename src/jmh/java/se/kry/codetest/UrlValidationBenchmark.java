@@ -0,0 +1,41 @@
+package se.kry.codetest;
+
+import org.apache.commons.validator.routines.UrlValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the URL validation of {@code POST /service}, with the shared validator and with a
+ * validator built for every call as it used to be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlValidationBenchmark {
+
+    @Param({"https://www.kry.se/", "http://service-42.internal.example.com:8080/health?verbose=true", "not a url"})
+    public String url;
+
+    @Benchmark
+    public boolean sharedValidator() {
+        return HttpVerticle.isValidUrl(url);
+    }
+
+    @Benchmark
+    public boolean newValidator() {
+        return new UrlValidator().isValid(url);
+    }
+}
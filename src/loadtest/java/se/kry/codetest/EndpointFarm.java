@@ -0,0 +1,199 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A farm of synthetic HTTP endpoints served by one local server. Every endpoint has its own URL
+ * {@code /e/<index>} on one of many loopback addresses (127.0.x.y), so the poller sees as many hosts
+ * as configured. Each endpoint gets one behaviour, picked at random with the configured ratios:
+ * <ul>
+ * <li>{@code ok}: answers 200 after the configured latency</li>
+ * <li>{@code error}: answers 500 after the configured latency</li>
+ * <li>{@code hang}: never answers</li>
+ * <li>{@code slow}: answers 200 but sends the body in small chunks</li>
+ * </ul>
+ * The farm records when every endpoint was last requested.
+ */
+public class EndpointFarm {
+
+    public enum Behaviour {
+        OK, ERROR, HANG, SLOW
+    }
+
+    private static final String PATH_PREFIX = "/e/";
+    private static final int ADDRESSES_PER_OCTET = 250;
+
+    private final Vertx vertx;
+    private final int endpoints;
+    private final int hosts;
+    private final long latencyMs;
+    private final long latencyJitterMs;
+    private final int slowChunks;
+    private final long slowChunkIntervalMs;
+    private final Behaviour[] behaviours;
+    private final AtomicLongArray firstHit;
+    private final AtomicLongArray lastHit;
+    private final AtomicLongArray hits;
+    private HttpServer server;
+
+    /**
+     * @param vertx     the vertx instance serving the farm
+     * @param endpoints the number of endpoints
+     * @param config    supports {@code hosts}, {@code latency}, {@code latency_jitter} (ms), {@code errors},
+     *                  {@code hangs}, {@code slow} (ratios), {@code slow_chunks},
+     *                  {@code slow_chunk_interval} (ms) and {@code seed}
+     */
+    public EndpointFarm(Vertx vertx, int endpoints, JsonObject config) {
+        this.vertx = vertx;
+        this.endpoints = endpoints;
+        this.hosts = Math.max(1, Math.min(config.getInteger("hosts", 100), ADDRESSES_PER_OCTET * 256));
+        this.latencyMs = config.getLong("latency", 50L);
+        this.latencyJitterMs = config.getLong("latency_jitter", 50L);
+        this.slowChunks = config.getInteger("slow_chunks", 10);
+        this.slowChunkIntervalMs = config.getLong("slow_chunk_interval", 200L);
+        double errors = config.getDouble("errors", 0.05);
+        double hangs = config.getDouble("hangs", 0.01);
+        double slow = config.getDouble("slow", 0.02);
+        Random random = new Random(config.getLong("seed", 42L));
+        behaviours = new Behaviour[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            double draw = random.nextDouble();
+            if (draw < hangs) {
+                behaviours[i] = Behaviour.HANG;
+            } else if (draw < hangs + errors) {
+                behaviours[i] = Behaviour.ERROR;
+            } else if (draw < hangs + errors + slow) {
+                behaviours[i] = Behaviour.SLOW;
+            } else {
+                behaviours[i] = Behaviour.OK;
+            }
+        }
+        firstHit = new AtomicLongArray(endpoints);
+        lastHit = new AtomicLongArray(endpoints);
+        hits = new AtomicLongArray(endpoints);
+    }
+
+    /**
+     * Start listening on a random port
+     *
+     * @return the Future completed once the farm accepts requests
+     */
+    public Future<Void> start() {
+        Future<Void> future = Future.future();
+        vertx.createHttpServer().requestHandler(this::handle).listen(0, ar -> {
+            if (ar.succeeded()) {
+                server = ar.result();
+                future.complete();
+            } else {
+                future.fail(ar.cause());
+            }
+        });
+        return future;
+    }
+
+    private void handle(HttpServerRequest request) {
+        int index;
+        try {
+            index = Integer.parseInt(request.path().substring(PATH_PREFIX.length()));
+        } catch (RuntimeException e) {
+            request.response().setStatusCode(404).end();
+            return;
+        }
+        if (index < 0 || index >= endpoints) {
+            request.response().setStatusCode(404).end();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        firstHit.compareAndSet(index, 0, now);
+        lastHit.set(index, now);
+        hits.incrementAndGet(index);
+        Behaviour behaviour = behaviours[index];
+        if (behaviour == Behaviour.HANG) {
+            return;
+        }
+        long delay = latencyMs + (latencyJitterMs > 0 ? (long) (Math.random() * latencyJitterMs) : 0);
+        HttpServerResponse response = request.response();
+        Runnable answer = () -> {
+            if (behaviour == Behaviour.ERROR) {
+                response.setStatusCode(500).end("ERROR");
+            } else if (behaviour == Behaviour.SLOW) {
+                response.setChunked(true);
+                writeSlowly(response, slowChunks);
+            } else {
+                response.end("OK");
+            }
+        };
+        if (delay > 0) {
+            vertx.setTimer(delay, id -> answer.run());
+        } else {
+            answer.run();
+        }
+    }
+
+    private void writeSlowly(HttpServerResponse response, int chunksLeft) {
+        if (response.closed()) {
+            return;
+        }
+        if (chunksLeft == 0) {
+            response.end();
+            return;
+        }
+        response.write("OK\n");
+        vertx.setTimer(slowChunkIntervalMs, id -> writeSlowly(response, chunksLeft - 1));
+    }
+
+    public int getPort() {
+        return server.actualPort();
+    }
+
+    public int size() {
+        return endpoints;
+    }
+
+    /**
+     * @param index the index of the endpoint
+     * @return the URL of the endpoint, the endpoints are spread round robin over the hosts
+     */
+    public String url(int index) {
+        int host = index % hosts;
+        return "http://127.0." + (host / ADDRESSES_PER_OCTET) + "." + (host % ADDRESSES_PER_OCTET + 1) + ":"
+                + getPort() + PATH_PREFIX + index;
+    }
+
+    public Behaviour behaviour(int index) {
+        return behaviours[index];
+    }
+
+    /**
+     * @return the time of the first request of the endpoint, 0 if it was never requested
+     */
+    public long firstHit(int index) {
+        return firstHit.get(index);
+    }
+
+    public long lastHit(int index) {
+        return lastHit.get(index);
+    }
+
+    public long totalHits() {
+        long total = 0;
+        for (int i = 0; i < endpoints; i++) {
+            total += hits.get(i);
+        }
+        return total;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.close();
+        }
+    }
+}
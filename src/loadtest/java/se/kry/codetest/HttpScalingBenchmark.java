@@ -0,0 +1,119 @@
+package se.kry.codetest;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how the throughput of {@code GET /service} scales with the number of {@link HttpVerticle}
+ * instances. For every instance count the verticle is deployed on a registry of synthetic services
+ * and a closed-loop client requests random pages for a fixed time. One JSON line per instance count
+ * is printed.
+ *
+ * Run with {@code ./gradlew benchHttpScaling}, arguments: services, seconds, instance counts, e.g.
+ * {@code -Pargs="10000 10 1,2,4,8"}
+ */
+public class HttpScalingBenchmark {
+
+    private static final int PORT = 18080;
+    private static final int CONNECTIONS = 128;
+    private static final int PAGE_SIZE = 50;
+    private static final long WARMUP_SECONDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int serviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String[] instanceCounts = (args.length > 2 ? args[2] : "1,2,4,8").split(",");
+
+        ServiceRegistry registry = new ServiceRegistry();
+        List<String> cursors = new ArrayList<>();
+        for (int i = 0; i < serviceCount; i++) {
+            String url = String.format("https://service-%07d.example.com/health", i);
+            registry.put(new Service("service-" + i, url, "2020-01-01 00:00:00.000", "OK"));
+            cursors.add(Base64.getUrlEncoder().withoutPadding().encodeToString(url.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        Vertx client = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(cores));
+        for (String instanceCount : instanceCounts) {
+            int instances = Integer.parseInt(instanceCount.trim());
+            Vertx server = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(Math.max(instances, 1)));
+            CompletableFuture<String> deployed = new CompletableFuture<>();
+            server.deployVerticle(() -> new HttpVerticle(registry, null, null, null, PORT, Integer.MAX_VALUE),
+                    new DeploymentOptions().setInstances(instances), ar -> {
+                        if (ar.succeeded()) {
+                            deployed.complete(ar.result());
+                        } else {
+                            deployed.completeExceptionally(ar.cause());
+                        }
+                    });
+            deployed.get(10, TimeUnit.SECONDS);
+
+            double throughput = run(client, cursors, seconds);
+            System.out.println(new JsonObject()
+                    .put("benchmark", "http_get_service_page")
+                    .put("services", serviceCount)
+                    .put("instances", instances)
+                    .put("connections", CONNECTIONS)
+                    .put("seconds", seconds)
+                    .put("requestsPerSecond", Math.round(throughput))
+                    .encode());
+
+            CompletableFuture<Void> closed = new CompletableFuture<>();
+            server.close(ar -> closed.complete(null));
+            closed.get(10, TimeUnit.SECONDS);
+        }
+        client.close();
+    }
+
+    private static double run(Vertx vertx, List<String> cursors, int seconds) throws InterruptedException {
+        WebClient webClient = WebClient.create(vertx, new WebClientOptions()
+                .setMaxPoolSize(CONNECTIONS)
+                .setKeepAlive(true)
+                .setDefaultHost("localhost")
+                .setDefaultPort(PORT));
+        LongAdder completed = new LongAdder();
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean running = new AtomicBoolean(true);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            vertx.runOnContext(v -> request(webClient, cursors, completed, measuring, running));
+        }
+        TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+        measuring.set(true);
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        long count = completed.sum();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running.set(false);
+        TimeUnit.MILLISECONDS.sleep(500);
+        webClient.close();
+        return count / elapsed;
+    }
+
+    private static void request(WebClient webClient, List<String> cursors, LongAdder completed,
+                                AtomicBoolean measuring, AtomicBoolean running) {
+        if (!running.get()) {
+            return;
+        }
+        String cursor = cursors.get(ThreadLocalRandom.current().nextInt(cursors.size()));
+        webClient.get("/service?limit=" + PAGE_SIZE + "&cursor=" + cursor).send(ar -> {
+            if (ar.succeeded() && measuring.get()) {
+                completed.increment();
+            }
+            request(webClient, cursors, completed, measuring, running);
+        });
+    }
+}
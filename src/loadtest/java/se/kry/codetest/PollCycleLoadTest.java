@@ -0,0 +1,310 @@
+package se.kry.codetest;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end load test of the poll cycle. It starts an {@link EndpointFarm}, deploys the application
+ * on a temporary database, registers every endpoint through {@code POST /service} and lets the real
+ * poller run for a number of poll intervals. For every interval it reports, as one JSON line:
+ * <ul>
+ * <li>{@code completionMs}: time until every answering endpoint was probed, -1 if some were not</li>
+ * <li>{@code probesPerSecond}: requests received by the farm</li>
+ * <li>{@code sockets}: the maximum of established connections to the farm, and of open file descriptors</li>
+ * <li>{@code dbBacklog}, {@code dbLagMs}: status changes probed but not yet in the database, and
+ * the time from the first request of the last endpoint until the database had all the statuses,
+ * so it includes the duration of that probe (first interval only)</li>
+ * </ul>
+ * The scheduler re-schedules every probe with a jitter, so an interval counts as completed when all
+ * the answering endpoints were probed within the interval plus a {@code tolerance} (default 25%).
+ * The run fails when an interval was not completed in time. Everything runs locally, the endpoints
+ * are spread over loopback addresses.
+ *
+ * Run with {@code ./gradlew loadTest -PloadTestArgs="services=5000 interval=30 cycles=3 hangs=0.01"},
+ * see {@link EndpointFarm} for the endpoint settings.
+ */
+public class PollCycleLoadTest {
+
+    private static final int APP_PORT = 18081;
+    private static final int REGISTER_CONCURRENCY = 64;
+    private static final long SAMPLE_INTERVAL_MS = 250;
+
+    private final JsonObject config;
+    private final int services;
+    private final int interval;
+    private final int cycles;
+    private final double tolerance;
+    private final Vertx farmVertx = Vertx.vertx();
+    private final Vertx appVertx = Vertx.vertx();
+    private final EndpointFarm farm;
+    private final File dbFile;
+
+    private PollCycleLoadTest(JsonObject config) throws IOException {
+        this.config = config;
+        this.services = config.getInteger("services", 2000);
+        this.interval = config.getInteger("interval", 30);
+        this.cycles = config.getInteger("cycles", 3);
+        this.tolerance = config.getDouble("tolerance", 0.25);
+        this.farm = new EndpointFarm(farmVertx, services, config);
+        this.dbFile = File.createTempFile("poller-loadtest", ".db");
+    }
+
+    public static void main(String[] args) throws Exception {
+        JsonObject config = new JsonObject();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            config.put(pair[0], parse(pair[1]));
+        }
+        boolean passed = new PollCycleLoadTest(config).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        try {
+            await(farm.start());
+            await(deployApplication());
+            long start = System.currentTimeMillis();
+            await(registerServices());
+            report(new JsonObject().put("phase", "registered").put("services", services)
+                    .put("ms", System.currentTimeMillis() - start));
+            boolean passed = true;
+            try (Connection db = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+                for (int cycle = 1; cycle <= cycles; cycle++) {
+                    JsonObject result = measureCycle(cycle, db);
+                    report(result);
+                    passed &= result.getLong("completionMs") >= 0;
+                }
+            }
+            report(new JsonObject().put("phase", "done").put("passed", passed));
+            return passed;
+        } finally {
+            CompletableFuture<Void> closed = new CompletableFuture<>();
+            appVertx.close(ar -> closed.complete(null));
+            closed.get(30, TimeUnit.SECONDS);
+            farm.stop();
+            farmVertx.close();
+            for (String suffix : new String[]{"", "-wal", "-shm", ".journal"}) {
+                new File(dbFile.getAbsolutePath() + suffix).delete();
+            }
+        }
+    }
+
+    private Future<Void> deployApplication() {
+        JsonObject appConfig = new JsonObject()
+                .put("db", new JsonObject().put("path", dbFile.getAbsolutePath()))
+                .put("http", new JsonObject().put("port", APP_PORT))
+                // All the endpoints are registered by one owner, the quotas must not limit it
+                .put("tenants", new JsonObject().put("max_services", services))
+                .put("poller", pollerConfig());
+        Future<Void> future = Future.future();
+        appVertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(appConfig),
+                ar -> future.handle(ar.mapEmpty()));
+        return future;
+    }
+
+    /**
+     * The arguments prefixed with {@code poller.} configure the poller, e.g. {@code poller.max_concurrent_probes=512}
+     */
+    private JsonObject pollerConfig() {
+        JsonObject pollerConfig = new JsonObject().put("journal_path", dbFile.getAbsolutePath() + ".journal")
+                .put("owner_probe_rate", (double) services).put("owner_probe_burst", (double) services);
+        config.forEach(entry -> {
+            if (entry.getKey().startsWith("poller.")) {
+                pollerConfig.put(entry.getKey().substring("poller.".length()), entry.getValue());
+            }
+        });
+        return pollerConfig;
+    }
+
+    /**
+     * Register all the endpoints through the API, a bounded number of requests at a time
+     */
+    private Future<Void> registerServices() {
+        Future<Void> future = Future.future();
+        WebClient client = WebClient.create(farmVertx);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        Runnable[] register = new Runnable[1];
+        register[0] = () -> {
+            int index = next.getAndIncrement();
+            if (index >= services) {
+                return;
+            }
+            JsonObject body = new JsonObject().put("url", farm.url(index)).put("name", "endpoint-" + index)
+                    .put("pollInterval", interval);
+            client.post(APP_PORT, "localhost", "/service").sendJsonObject(body, ar -> {
+                if (ar.failed() || ar.result().statusCode() != 200) {
+                    future.tryFail("Registration of " + farm.url(index) + " failed : "
+                            + (ar.failed() ? ar.cause() : ar.result().bodyAsString()));
+                    return;
+                }
+                if (done.incrementAndGet() == services) {
+                    client.close();
+                    future.tryComplete();
+                } else {
+                    register[0].run();
+                }
+            });
+        };
+        for (int i = 0; i < REGISTER_CONCURRENCY; i++) {
+            farmVertx.runOnContext(v -> register[0].run());
+        }
+        return future;
+    }
+
+    private JsonObject measureCycle(int cycle, Connection db) throws InterruptedException, SQLException {
+        long windowStart = System.currentTimeMillis();
+        long windowMs = (long) (TimeUnit.SECONDS.toMillis(interval) * (1 + tolerance));
+        long windowEnd = windowStart + windowMs;
+        long hitsBefore = farm.totalHits();
+        int answering = 0;
+        for (int i = 0; i < services; i++) {
+            if (farm.behaviour(i) != EndpointFarm.Behaviour.HANG) {
+                answering++;
+            }
+        }
+        long completionMs = -1;
+        int maxSockets = 0;
+        int maxDescriptors = 0;
+        long maxBacklog = 0;
+        long allProbedAt = 0;
+        long dbCaughtUpAt = 0;
+        while (System.currentTimeMillis() < windowEnd) {
+            TimeUnit.MILLISECONDS.sleep(SAMPLE_INTERVAL_MS);
+            long now = System.currentTimeMillis();
+            int covered = 0;
+            int probedOnce = 0;
+            for (int i = 0; i < services; i++) {
+                if (farm.behaviour(i) == EndpointFarm.Behaviour.HANG) {
+                    continue;
+                }
+                if (farm.lastHit(i) >= windowStart) {
+                    covered++;
+                }
+                if (farm.firstHit(i) != 0) {
+                    probedOnce++;
+                }
+            }
+            if (completionMs < 0 && covered == answering) {
+                completionMs = now - windowStart;
+            }
+            maxSockets = Math.max(maxSockets, establishedConnections(farm.getPort()));
+            maxDescriptors = Math.max(maxDescriptors, openDescriptors());
+            if (cycle == 1) {
+                // Every answering endpoint changes from UNKNOWN once, hanging ones stay UNKNOWN
+                long persisted = countChangedStatuses(db);
+                maxBacklog = Math.max(maxBacklog, probedOnce - persisted);
+                if (allProbedAt == 0 && probedOnce == answering) {
+                    allProbedAt = now;
+                }
+                if (dbCaughtUpAt == 0 && persisted >= answering) {
+                    dbCaughtUpAt = now;
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - windowStart;
+        JsonObject result = new JsonObject()
+                .put("phase", "cycle")
+                .put("cycle", cycle)
+                .put("services", services)
+                .put("answering", answering)
+                .put("intervalMs", TimeUnit.SECONDS.toMillis(interval))
+                .put("deadlineMs", windowMs)
+                .put("completionMs", completionMs)
+                .put("probesPerSecond", Math.round((farm.totalHits() - hitsBefore) * 1000.0 / elapsed))
+                .put("sockets", maxSockets)
+                .put("fileDescriptors", maxDescriptors);
+        if (cycle == 1) {
+            result.put("dbBacklog", maxBacklog)
+                    .put("dbLagMs", allProbedAt == 0 || dbCaughtUpAt == 0 ? -1 : Math.max(0, dbCaughtUpAt - allProbedAt));
+        }
+        return result;
+    }
+
+    private static long countChangedStatuses(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT count(*) FROM service WHERE status != 'UNKNOWN'")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Count the established TCP connections to the given local port, from the client side
+     */
+    private static int establishedConnections(int port) {
+        String remotePort = String.format(":%04X", port);
+        int count = 0;
+        for (String table : new String[]{"/proc/net/tcp", "/proc/net/tcp6"}) {
+            Path path = Paths.get(table);
+            if (!Files.exists(path)) {
+                continue;
+            }
+            try {
+                List<String> lines = Files.readAllLines(path);
+                for (int i = 1; i < lines.size(); i++) {
+                    String[] columns = lines.get(i).trim().split("\\s+");
+                    if (columns.length > 3 && columns[2].endsWith(remotePort) && "01".equals(columns[3])) {
+                        count++;
+                    }
+                }
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    private static int openDescriptors() {
+        String[] descriptors = new File("/proc/self/fd").list();
+        return descriptors == null ? -1 : descriptors.length;
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.setHandler(ar -> {
+            if (ar.succeeded()) {
+                result.complete(ar.result());
+            } else {
+                result.completeExceptionally(ar.cause());
+            }
+        });
+        return result.get(30, TimeUnit.MINUTES);
+    }
+
+    private static Object parse(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e2) {
+                return value;
+            }
+        }
+    }
+
+    private static void report(JsonObject line) {
+        System.out.println(line.encode());
+    }
+}
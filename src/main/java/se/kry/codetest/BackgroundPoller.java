@@ -1,46 +1,153 @@
 package se.kry.codetest;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
-import io.vertx.core.json.JsonArray;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class is the implementation of poller service. it gets a list of services (defined by a URL)
- * and periodically does a HTTP GET to each URL's and saves the response to the database ("OK" or "FAIL").
+ * and runs the {@link ServiceCheck} of each one, a HTTP GET answered with 200 by default, and saves
+ * the response to the database ("OK" or "FAIL").
+ * When each service is polled is decided by the {@link PollScheduler}.
  */
 
 public class BackgroundPoller {
 
-    private static final String STATUS_OK = "OK";
-    private static final String STATUS_FAIL = "FAIL";
-    private static final String STATUS_UNKNOWN = "UNKNOWN";
-    private static final int HTTP_CODE_SUCCESS = 200;
     private static final int TIMEOUT = 5000;
-    private static final int MAX_TRIES = 5;
+    private static final int TRIAL_TIMEOUT = 2000;
     private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundPoller
             .class);
-    private static final String FILE_NAME = "failed_services.csv";
+    private static final String DEFAULT_JOURNAL_PATH = "status.journal";
+    private static final long DEFAULT_JOURNAL_SYNC_WINDOW = 50;
+    private static final long WRITE_RETRY_DELAY = 5000;
+    private static final int DEFAULT_MAX_CONCURRENT_PROBES = 256;
+    private static final int DEFAULT_MAX_PROBES_PER_HOST = 4;
+    private static final int DEFAULT_MAX_QUEUED_PROBES = 100000;
+    private static final int KEEP_ALIVE_TIMEOUT_SECONDS = 120;
+    private static final long REPORT_INTERVAL = 60 * 1000;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 500;
+    private static final long DEFAULT_WRITE_FLUSH_WINDOW = 200;
+    private static final int DEFAULT_WRITE_MAX_PENDING = 10000;
+    private static final int DEFAULT_BREAKER_FAILURES = 3;
+    private static final long DEFAULT_BREAKER_BASE_BACKOFF = 30 * 1000;
+    private static final long DEFAULT_BREAKER_MAX_BACKOFF = 60 * 60 * 1000;
+    private static final double DEFAULT_BREAKER_JITTER = 0.5;
+    private static final double DEFAULT_PROBE_CACHE_TTL_RATIO = 0.8;
+    private static final int DEFAULT_PROBE_CACHE_MAX_ENTRIES = 100000;
+    private static final double DEFAULT_OWNER_PROBE_RATE = 100;
+    private static final double DEFAULT_OWNER_PROBE_BURST = 1000;
+    private static final String PROBE_DURATION = "poller_probe_duration_seconds";
+    private static final String PROBE_DURATION_HELP = "Duration of the service probes by outcome";
+    private static final LatencyHistogram PROBE_OK_DURATION = Metrics.histogram(PROBE_DURATION,
+            PROBE_DURATION_HELP, "outcome", ServiceStatus.OK.name());
+    private static final LatencyHistogram PROBE_FAIL_DURATION = Metrics.histogram(PROBE_DURATION,
+            PROBE_DURATION_HELP, "outcome", ServiceStatus.FAIL.name());
+    private static final LatencyHistogram PROBE_UNKNOWN_DURATION = Metrics.histogram(PROBE_DURATION,
+            PROBE_DURATION_HELP, "outcome", ServiceStatus.UNKNOWN.name());
+    private static final LatencyHistogram TRIAL_DURATION = Metrics.histogram("poller_trial_duration_seconds",
+            "Duration of the cheap probes of the services with an open circuit");
+    private static final LongAdder CIRCUIT_SKIPS = Metrics.counter("poller_circuit_skipped_total",
+            "Probes not run because the circuit of the service is open");
+    private static final LongAdder THROTTLED = Metrics.counter("poller_owner_throttled_total",
+            "Probes not run because the owner of the service was over its probe rate");
 
-    private Map<String, String> servicesFailedDbSave = new HashMap<>();
-    private Map<String, Integer> urlTryCounter = new HashMap<>();
-    private WebClient webClient;
-    private DBConnector connector;
+    private Map<String, ServiceStatus> failedWrites = new HashMap<>();
+    private StatusJournal journal;
+    private ServiceStore store;
+    private long retryTimerId = -1;
+    private ProbeCircuitBreaker breaker;
+    private Map<String, Long> pendingProbes = new HashMap<>();
+    private HttpClient httpClient;
+    private ServiceProber prober;
+    private StatusWriteBuffer writeBuffer;
+    private HistoryStore history;
+    private ServiceRegistry registry;
+    private ProbePipeline pipeline;
+    private SharedProbeCache<ProbeOutcome> probeCache;
+    // By owner, the services without owner are under the null key
+    private Map<String, TokenBucket> ownerBuckets = new HashMap<>();
+    private double ownerProbeRate;
+    private double ownerProbeBurst;
+    private double probeRateShare = 1;
+    private String shard;
+    private Vertx vertx;
+    private long reportTimerId;
+    // Read by the metrics from other threads
+    private volatile long skipped;
+    private long lastMissed;
 
-    public BackgroundPoller(Vertx vertx, DBConnector connector) {
-        WebClientOptions options = new WebClientOptions();
-        options.setKeepAlive(false);
-        webClient = WebClient.create(vertx, options);
-        this.connector = connector;
+    public BackgroundPoller(Vertx vertx, ServiceStore store) {
+        this(vertx, store, new ServiceRegistry(), null, new JsonObject());
+    }
+
+    /**
+     * @param vertx     the vertx instance
+     * @param store     the store the status changes are written to
+     * @param registry  the registry the status changes are applied to
+     * @param history   the store recording the result of every probe, may be null
+     * @param config    the poller configuration, supports {@code max_concurrent_probes},
+     *                  {@code max_probes_per_host}, {@code max_queued_probes}, {@code write_batch_size},
+     *                  {@code write_flush_window}, {@code write_max_pending}, {@code breaker_failures},
+     *                  {@code breaker_base_backoff}, {@code breaker_max_backoff}, {@code breaker_jitter},
+     *                  {@code probe_cache_ttl_ratio}, {@code probe_cache_max_entries},
+     *                  {@code owner_probe_rate} (probes per second), {@code owner_probe_burst},
+     *                  {@code journal_path}, {@code journal_sync_window} and {@code shard}, the label of
+     *                  the metrics of this poller when there are several
+     */
+    public BackgroundPoller(Vertx vertx, ServiceStore store, ServiceRegistry registry, HistoryStore history,
+                            JsonObject config) {
+        int maxPerHost = config.getInteger("max_probes_per_host", DEFAULT_MAX_PROBES_PER_HOST);
+        HttpClientOptions options = new HttpClientOptions();
+        // Connections are pooled per host, the pipeline never asks for more than maxPerHost of them
+        options.setKeepAlive(true);
+        options.setKeepAliveTimeout(KEEP_ALIVE_TIMEOUT_SECONDS);
+        options.setMaxPoolSize(maxPerHost);
+        httpClient = vertx.createHttpClient(options);
+        prober = new ServiceProber(vertx, httpClient);
+        pipeline = new ProbePipeline(config.getInteger("max_concurrent_probes", DEFAULT_MAX_CONCURRENT_PROBES),
+                maxPerHost, config.getInteger("max_queued_probes", DEFAULT_MAX_QUEUED_PROBES));
+        writeBuffer = new StatusWriteBuffer(vertx, store,
+                config.getInteger("write_batch_size", DEFAULT_WRITE_BATCH_SIZE),
+                config.getLong("write_flush_window", DEFAULT_WRITE_FLUSH_WINDOW),
+                config.getInteger("write_max_pending", DEFAULT_WRITE_MAX_PENDING))
+                .writtenHandler(batch -> checkpoint())
+                .failedHandler(this::retryLater)
+                .drainHandler(v -> pipeline.resume());
+        journal = new StatusJournal(vertx, config.getString("journal_path", DEFAULT_JOURNAL_PATH),
+                config.getLong("journal_sync_window", DEFAULT_JOURNAL_SYNC_WINDOW));
+        this.store = store;
+        breaker = new ProbeCircuitBreaker(config.getInteger("breaker_failures", DEFAULT_BREAKER_FAILURES),
+                config.getLong("breaker_base_backoff", DEFAULT_BREAKER_BASE_BACKOFF),
+                config.getLong("breaker_max_backoff", DEFAULT_BREAKER_MAX_BACKOFF),
+                config.getDouble("breaker_jitter", DEFAULT_BREAKER_JITTER));
+        probeCache = new SharedProbeCache<>(config.getDouble("probe_cache_ttl_ratio", DEFAULT_PROBE_CACHE_TTL_RATIO),
+                config.getInteger("probe_cache_max_entries", DEFAULT_PROBE_CACHE_MAX_ENTRIES));
+        ownerProbeRate = config.getDouble("owner_probe_rate", DEFAULT_OWNER_PROBE_RATE);
+        ownerProbeBurst = config.getDouble("owner_probe_burst", DEFAULT_OWNER_PROBE_BURST);
+        shard = config.getString("shard", "0");
+        this.registry = registry;
+        this.history = history;
+        this.vertx = vertx;
+        registerMetrics();
+        reportTimerId = vertx.setPeriodic(REPORT_INTERVAL, id -> {
+            reportOverruns();
+            //The services deleted in the meantime do not need their circuit anymore
+            breaker.retain(registry::containsKey);
+            long now = System.currentTimeMillis();
+            probeCache.expire(now);
+            ownerBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        });
     }
 
 
@@ -50,86 +157,364 @@ public class BackgroundPoller {
 
         if (services.isEmpty()) {
             LOGGER.info("No URLs to process..Exiting...");
-            Future.succeededFuture();
-        }
-        services.forEach((url, service) -> {
-            //If the URL has already been tried the MAX ALLOWED times, don't try again
-            if (!hasMaxRetriesExhausted(url)) {
-                String currentStatus = service.getStatus();
-                webClient.getAbs(url).timeout(TIMEOUT).send(ar -> {
-                    String urlCallStatus = STATUS_UNKNOWN;
-                    if (ar.succeeded()) {
-                        if (ar.result().statusCode() == HTTP_CODE_SUCCESS) {
-                            urlCallStatus = STATUS_OK;
-                        } else {
-                            urlCallStatus = STATUS_FAIL;
-                        }
+            return Future.succeededFuture();
+        }
+        services.values().forEach(this::pollService);
+        return Future.succeededFuture();
+    }
+
+    /**
+     * Poll a single service and save the status to the database when it changed.
+     * This is invoked by the {@link PollScheduler} whenever the service is due, the probe itself
+     * waits in the {@link ProbePipeline} until there is a free slot. The services with the same
+     * target share their probes through the {@link SharedProbeCache}. Services which can not be
+     * reached are only tried again once the backoff of their {@link ProbeCircuitBreaker} expired.
+     * The probes of an owner are limited by its {@link TokenBucket}, the services of an owner over
+     * its rate keep their status until their next poll; the results shared with other services are
+     * free.
+     *
+     * @param service the service to poll
+     */
+    public void pollService(Service service) {
+        String key = service.getKey();
+        long now = System.currentTimeMillis();
+        Long pendingDeadline = pendingProbes.get(key);
+        if (pendingDeadline != null) {
+            //The previous probe of this service is still waiting or running
+            if (now <= pendingDeadline) {
+                skipped++;
+                return;
+            }
+            //The previous probe expired in the pipeline without running
+            pendingProbes.remove(key);
+            breaker.release(key);
+        }
+        ProbeCircuitBreaker.Decision decision = breaker.acquire(key, now);
+        if (decision == ProbeCircuitBreaker.Decision.SKIP) {
+            CIRCUIT_SKIPS.increment();
+            return;
+        }
+        long deadline = now + TimeUnit.SECONDS.toMillis(service.getPollInterval());
+        pendingProbes.put(key, deadline);
+        Handler<Void> release = v -> pendingProbes.remove(key, deadline);
+        if (decision == ProbeCircuitBreaker.Decision.TRIAL) {
+            boolean accepted = acquireProbe(service.getOwner(), now)
+                    && pipeline.submit(service.getHostKey(), deadline, done -> trial(service, v -> {
+                        release.handle(null);
+                        done.handle(null);
+                    }));
+            if (!accepted) {
+                release.handle(null);
+                breaker.release(key);
+            }
+            return;
+        }
+        String target = SharedProbeCache.target(service.getUrl(), service.getCheck());
+        SharedProbeCache.Lookup lookup = probeCache.lookup(target, service.getPollInterval(), now, deadline,
+                outcome -> {
+                    release.handle(null);
+                    if (outcome.succeeded()) {
+                        completed(service, outcome.result());
                     } else {
-                        //If the request failed (either because of timeout or invalid URL), make it unknown
-                        updateUrlTriesCounter(url);
-                        LOGGER.error("Error calling the URL :" + url + "; cause = " + ar.cause());
-                    }
-                    //Save to DB only if there is a change in status
-                    if (!currentStatus.equals(urlCallStatus)) {
-                        service.setStatus(urlCallStatus);
-                        saveToDb(url, urlCallStatus);
+                        // The shared probe was given up, the service is polled again at its next turn
+                        breaker.release(key);
                     }
                 });
+        if (lookup != SharedProbeCache.Lookup.MISS) {
+            return;
+        }
+        boolean accepted = acquireProbe(service.getOwner(), now)
+                && pipeline.submit(service.getHostKey(), deadline, done -> probe(service, target, done));
+        if (!accepted) {
+            release.handle(null);
+            breaker.release(key);
+            probeCache.abandon(target);
+        }
+    }
+
+    /**
+     * Take a token of the probe rate of an owner
+     */
+    private boolean acquireProbe(String owner, long now) {
+        TokenBucket bucket = ownerBuckets.get(owner);
+        if (bucket == null) {
+            bucket = new TokenBucket(ownerProbeRate * probeRateShare, Math.max(1, ownerProbeBurst * probeRateShare),
+                    now);
+            ownerBuckets.put(owner, bucket);
+        }
+        if (bucket.tryAcquire(now)) {
+            return true;
+        }
+        THROTTLED.increment();
+        return false;
+    }
+
+    /**
+     * Cheap probe of a service with an open circuit: a HEAD request with a short timeout. Any answer
+     * closes the circuit, the status itself is set by the next normal probe.
+     */
+    private void trial(Service service, Handler<Void> done) {
+        String key = service.getKey();
+        long start = System.nanoTime();
+        prober.probe(service.getUrl(), ServiceCheck.TRIAL, TRIAL_TIMEOUT, ar -> {
+            done.handle(null);
+            TRIAL_DURATION.record(System.nanoTime() - start);
+            if (ar.succeeded()) {
+                breaker.onSuccess(key);
+            } else {
+                breaker.onFailure(key, System.currentTimeMillis());
             }
         });
-        return Future.succeededFuture();
     }
 
-    private void updateUrlTriesCounter(String url) {
-        int noOfTries = urlTryCounter.get(url) == null ? 0 : urlTryCounter.get(url);
-        urlTryCounter.put(url, noOfTries + 1);
+    /**
+     * Probe the target of a service, the result goes to every service subscribed to the target
+     */
+    private void probe(Service service, String target, Handler<Void> done) {
+        String url = service.getUrl();
+        long checkedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        prober.probe(url, service.getCheck(), TIMEOUT, ar -> {
+            done.handle(null);
+            long latencyNanos = System.nanoTime() - start;
+            ServiceStatus urlCallStatus = ServiceStatus.UNKNOWN;
+            Integer statusCode = null;
+            if (ar.succeeded()) {
+                statusCode = ar.result().getStatusCode();
+                if (ar.result().isHealthy()) {
+                    urlCallStatus = ServiceStatus.OK;
+                } else {
+                    urlCallStatus = ServiceStatus.FAIL;
+                }
+            } else {
+                //If the request failed (either because of timeout or invalid URL), make it unknown
+                LOGGER.error("Error calling the URL :" + url + "; cause = " + ar.cause());
+            }
+            probeDuration(urlCallStatus).record(latencyNanos);
+            probeCache.complete(target, new ProbeOutcome(checkedAt, TimeUnit.NANOSECONDS.toMillis(latencyNanos),
+                    statusCode, urlCallStatus), System.currentTimeMillis());
+        });
+    }
+
+    /**
+     * Apply the result of the probe of its target to a service
+     */
+    private void completed(Service service, ProbeOutcome outcome) {
+        String key = service.getKey();
+        if (outcome.statusCode != null) {
+            breaker.onSuccess(key);
+        } else {
+            breaker.onFailure(key, System.currentTimeMillis());
+        }
+        if (history != null) {
+            history.record(key, outcome.checkedAt, outcome.latencyMs, outcome.statusCode, outcome.status.name());
+        }
+        //Save to DB only if there is a change in status
+        ServiceStatus previous = service.getStatus();
+        if (previous != outcome.status) {
+            registry.updateStatus(service, outcome.status);
+            saveToDb(key, outcome.status);
+            ServiceEventStream.publishStatus(vertx, service, previous);
+        }
     }
 
-    private boolean hasMaxRetriesExhausted(String url) {
-        if (urlTryCounter.get(url) == null) {
-            return false;
+    /**
+     * Log the probes which could not be completed within the poll interval of their service
+     */
+    private void reportOverruns() {
+        long missed = pipeline.getMissed() + pipeline.getRejected() + skipped;
+        if (missed > lastMissed) {
+            LOGGER.warn("Probes not completed within the poll interval : " + (missed - lastMissed)
+                    + " (missed = " + pipeline.getMissed() + ", rejected = " + pipeline.getRejected()
+                    + ", skipped = " + skipped + ", late = " + pipeline.getLate()
+                    + ", in flight = " + pipeline.getInFlight() + ", queued = " + pipeline.getQueued() + ")");
+        }
+        lastMissed = missed;
+        int open = breaker.getOpenCount();
+        if (open > 0) {
+            LOGGER.info("Services with an open circuit : " + open);
+        }
+    }
+
+    private static LatencyHistogram probeDuration(ServiceStatus status) {
+        switch (status) {
+            case OK:
+                return PROBE_OK_DURATION;
+            case FAIL:
+                return PROBE_FAIL_DURATION;
+            default:
+                return PROBE_UNKNOWN_DURATION;
         }
-        return urlTryCounter.get(url) >= MAX_TRIES;
     }
 
     /**
-     * Save the URL & Status to Database
+     * The metrics of the poller, with the {@code shard} label of its instance
+     */
+    private void registerMetrics() {
+        Metrics.counter("poller_probe_cache_hits_total", "Polls answered with the recent result of the same target",
+                probeCache::getHits, "shard", shard);
+        Metrics.counter("poller_probe_cache_joins_total", "Polls sharing the probe in flight of the same target",
+                probeCache::getJoins, "shard", shard);
+        Metrics.gauge("poller_probe_cache_targets", "Targets with a recent result or a probe in flight",
+                probeCache::size, "shard", shard);
+        Metrics.gauge("poller_probes_in_flight", "Probes currently running", pipeline::getInFlight, "shard", shard);
+        Metrics.gauge("poller_probes_queued", "Probes waiting for a free slot", pipeline::getQueued, "shard", shard);
+        Metrics.counter("poller_probes_completed_total", "Probes completed", pipeline::getCompleted, "shard", shard);
+        Metrics.counter("poller_probes_missed_total", "Probes dropped because they could not start "
+                + "within the poll interval", pipeline::getMissed, "shard", shard);
+        Metrics.counter("poller_probes_late_total", "Probes completed after the poll interval",
+                pipeline::getLate, "shard", shard);
+        Metrics.counter("poller_probes_rejected_total", "Probes rejected because the queue was full",
+                pipeline::getRejected, "shard", shard);
+        Metrics.counter("poller_probes_skipped_total", "Probes skipped because the previous one was "
+                + "still pending", () -> skipped, "shard", shard);
+        Metrics.gauge("poller_open_circuits", "Services with an open circuit", breaker::getOpenCount, "shard", shard);
+        Metrics.counter("poller_journal_records_total", "Status updates appended to the journal",
+                journal::getRecords, "shard", shard);
+        Metrics.counter("poller_journal_syncs_total", "Writes and fsyncs of the journal", journal::getSyncs,
+                "shard", shard);
+    }
+
+    /**
+     * Set the part of the probe rate of every owner this poller may use, when the services are
+     * sharded across several pollers
+     *
+     * @param share the share, between 0 and 1
+     */
+    public void setProbeRateShare(double share) {
+        if (share != probeRateShare) {
+            probeRateShare = share;
+            ownerBuckets.clear();
+        }
+    }
+
+    public ProbePipeline getPipeline() {
+        return pipeline;
+    }
+
+    public ProbeCircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public SharedProbeCache<ProbeOutcome> getProbeCache() {
+        return probeCache;
+    }
+
+    /**
+     * Apply the status updates left in the journal by the previous run to the store, this must
+     * complete before the services are loaded and polled.
+     *
+     * @return the Future completed once the store holds every journaled status
+     */
+    public Future<Void> recover() {
+        return replay(journal, store).compose(v -> journal.truncate());
+    }
+
+    /**
+     * Apply the status updates of a journal to the store
+     *
+     * @return the Future completed once the store holds every journaled status
+     */
+    static Future<Void> replay(StatusJournal journal, ServiceStore store) {
+        return journal.replay().compose(statuses -> {
+            if (statuses.isEmpty()) {
+                return Future.<Void>succeededFuture();
+            }
+            Map<String, ServiceStatus> recovered = new LinkedHashMap<>();
+            statuses.forEach((key, status) -> recovered.put(key, ServiceStatus.parse(status)));
+            LOGGER.info("Recovering " + recovered.size() + " status updates from the journal");
+            return store.updateStatuses(recovered);
+        });
+    }
+
+    /**
+     * Save the status of the service to Database. The update is journaled first, then buffered and
+     * written in a batch; while the buffer is full no new probes are started.
      *
-     * @param url    the URL
+     * @param key    the key of the service
      * @param status the status
-     * @return the Future indicating the status of operation
-     */
-    private void saveToDb(String url, String status) {
-        connector.updateWithParam(DBConnector.SQL_UPDATE_SERVICE, new JsonArray().add(status).add(url))
-                .setHandler(ar -> {
-                    if (ar.succeeded()) {
-                        LOGGER.debug("Updated status against URL : " + url);
-                        if (servicesFailedDbSave.containsKey(url)) {
-                            servicesFailedDbSave.remove(url);
-                        }
-                    } else {
-                        LOGGER.error("Error while updating the status, URL :" + url + " from DB, cause : " + ar.cause());
-                        servicesFailedDbSave.put(url, status);
-                    }
+     */
+    void saveToDb(String key, ServiceStatus status) {
+        journal.append(key, status.name());
+        writeBuffer.offer(key, status);
+        if (writeBuffer.writeQueueFull()) {
+            LOGGER.warn("Status write buffer is full, pausing the probes");
+            pipeline.pause();
+        }
+    }
+
+    /**
+     * Write the failed updates again after a delay, with the latest status of the service. They stay
+     * in the journal until then.
+     */
+    private void retryLater(Map<String, ServiceStatus> batch) {
+        failedWrites.putAll(batch);
+        if (retryTimerId == -1) {
+            retryTimerId = vertx.setTimer(WRITE_RETRY_DELAY, id -> {
+                retryTimerId = -1;
+                failedWrites.forEach((key, status) -> {
+                    Service service = registry.get(key);
+                    writeBuffer.offer(key, service != null ? service.getStatus() : status);
                 });
+                failedWrites.clear();
+            });
+        }
     }
 
     /**
-     * Stop the Poller Service
+     * Empty the journal when the database caught up with it
      */
-    public void stop() {
-        webClient.close();
+    private void checkpoint() {
+        if (writeBuffer.isIdle() && failedWrites.isEmpty()) {
+            journal.truncate();
+        }
+    }
 
-        if (servicesFailedDbSave.isEmpty()) {
-            return;
+    public StatusWriteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    public StatusJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Stop the Poller Service, the buffered status updates are flushed first. What could not be
+     * written stays in the journal for the next start.
+     *
+     * @return the Future completed once the poller stopped
+     */
+    public Future<Void> stop() {
+        vertx.cancelTimer(reportTimerId);
+        pipeline.pause();
+        httpClient.close();
+        if (retryTimerId != -1) {
+            vertx.cancelTimer(retryTimerId);
+            retryTimerId = -1;
         }
-        try (FileWriter writer = new FileWriter(FILE_NAME); BufferedWriter bw = new BufferedWriter(writer);) {
-            for (Map.Entry<String, String> entry : servicesFailedDbSave.entrySet()) {
-                bw.write(entry.getKey() + '|' + entry.getValue());
-                bw.newLine();
-            }
-        } catch (IOException e) {
-            LOGGER.error("Error while writing the data to File.." + e.getMessage());
+        Future<Void> future = Future.future();
+        writeBuffer.stop().setHandler(ar -> {
+            checkpoint();
+            journal.close().setHandler(closed -> future.complete());
+        });
+        return future;
+    }
+
+    /**
+     * The result of the probe of a target, shared by its services
+     */
+    static final class ProbeOutcome {
+        private final long checkedAt;
+        private final long latencyMs;
+        // Null when there was no answer
+        private final Integer statusCode;
+        private final ServiceStatus status;
+
+        private ProbeOutcome(long checkedAt, long latencyMs, Integer statusCode, ServiceStatus status) {
+            this.checkedAt = checkedAt;
+            this.latencyMs = latencyMs;
+            this.statusCode = statusCode;
+            this.status = status;
         }
     }
-}
\ No newline at end of file
+}
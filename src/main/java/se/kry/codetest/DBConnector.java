@@ -3,6 +3,7 @@ package se.kry.codetest;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
@@ -11,42 +12,84 @@ import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.sql.ResultSet;
 import io.vertx.ext.sql.SQLClient;
 import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLOptions;
+import io.vertx.ext.sql.SQLRowStream;
 
-public class DBConnector {
-   public static final String SQL_CREATE_SERVICE_TABLE = "CREATE TABLE IF NOT" +
-        " EXISTS service (name TEXT NOT NULL, url TEXT NOT NULL PRIMARY KEY, " +
-        "created_datetime " +
-        "TEXT NOT NULL, status TEXT NOT NULL)";
-   public static final String SQL_SELECT_SERVICES_ALL = "SELECT name, url, " +
-        "created_datetime, status from service";
-   public static final String SQL_INSERT_SERVICE = "INSERT INTO service " +
-        "values(?,?,?,?)";
-   public static final String SQL_UPDATE_SERVICE = "update service set status=? where url=?";
-   public static final String SQL_DELETE_SERVICE = "DELETE from service  " +
-           "where url=?";
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
+/**
+ * Access to the SQLite database. By default all the writes go through one serialized writer
+ * (SQLite only allows one writer at a time anyway): a single worker thread owning one connection and
+ * reusing its prepared statements. The reads use a separate pool. The database runs in WAL mode so
+ * the readers do not block the writer.
+ */
+public class DBConnector {
    private static final Logger LOGGER = LoggerFactory.getLogger(DBConnector
         .class);
 
-   private final String DB_PATH = "poller.db";
+   private static final String DEFAULT_DB_PATH = "poller.db";
+   private static final String SQLITE_PRAGMAS = "?journal_mode=WAL&synchronous=NORMAL&busy_timeout=5000";
+   private static final int DEFAULT_READ_POOL_SIZE = 4;
+   private static final int POOLED_MODE_POOL_SIZE = 30;
+   // Rows read by the worker in one go for the streams, the default of 128 costs a context switch
+   // every 128 rows
+   private static final int STREAM_FETCH_SIZE = 4096;
+   private static final LatencyHistogram QUERY_DURATION = Metrics.histogram("db_query_duration_seconds",
+        "Duration of the reads, including the wait for a pooled connection");
+   private static final LatencyHistogram POOL_WAIT = Metrics.histogram("db_pool_wait_seconds",
+        "Wait for a connection of the read pool");
+   private static final LatencyHistogram WRITE_DURATION = Metrics.histogram("db_write_duration_seconds",
+        "Duration of the writes, excluding the wait for the writer");
+   private static final LatencyHistogram WRITER_WAIT = Metrics.histogram("db_writer_wait_seconds",
+        "Wait of the writes queued for the single writer");
+
    private final SQLClient client;
+   private final String jdbcUrl;
+   private final WorkerExecutor writerExecutor;
+   // Only used from the writer thread
+   private final Map<String, PreparedStatement> writerStatements = new HashMap<>();
+   private Connection writer;
 
    public DBConnector(Vertx vertx) {
-      JsonObject config = new JsonObject()
-           .put("url", "jdbc:sqlite:" + DB_PATH)
+      this(vertx, new JsonObject());
+   }
+
+   /**
+    * @param vertx  the vertx instance
+    * @param config the DB configuration, supports {@code path}, {@code single_writer} and
+    *               {@code read_pool_size}
+    */
+   public DBConnector(Vertx vertx, JsonObject config) {
+      String path = config.getString("path", DEFAULT_DB_PATH);
+      boolean singleWriter = config.getBoolean("single_writer", true);
+      jdbcUrl = "jdbc:sqlite:" + path + SQLITE_PRAGMAS;
+      JsonObject poolConfig = new JsonObject()
+           .put("url", jdbcUrl)
            .put("driver_class", "org.sqlite.JDBC")
-           .put("max_pool_size", 30);
+           .put("max_pool_size", singleWriter ? config.getInteger("read_pool_size", DEFAULT_READ_POOL_SIZE)
+                : POOLED_MODE_POOL_SIZE);
 
-      client = JDBCClient.createShared(vertx, config);
+      client = JDBCClient.createShared(vertx, poolConfig, path);
+      writerExecutor = singleWriter ? vertx.createSharedWorkerExecutor("db-writer-" + path, 1) : null;
    }
 
    /**
-    * This method returns a connection from pool
+    * This method returns a connection from the read pool
     * @return SQLConnection
     */
     Future<SQLConnection> getConnection() {
       Future<SQLConnection> con = Future.future();
+      long start = System.nanoTime();
       client.getConnection(ar -> {
+         POOL_WAIT.record(System.nanoTime() - start);
          if(ar.succeeded()){
             con.complete(ar.result());
          } else {
@@ -66,18 +109,55 @@ public class DBConnector {
       if (query == null || query.isEmpty()) {
          return Future.failedFuture("Query is null or empty");
       }
-      if (!query.endsWith(";")) {
-         query = query + ";";
+      long start = System.nanoTime();
+      return getConnection().compose(con -> {
+         Future<ResultSet> queryResultFuture = Future.future();
+         con.queryWithParams(query, params, result -> {
+            con.close();
+            QUERY_DURATION.record(System.nanoTime() - start);
+            if (result.failed()) {
+               queryResultFuture.fail(result.cause());
+            } else {
+               queryResultFuture.complete(result.result());
+            }
+         });
+         return queryResultFuture;
+      });
+   }
+
+
+   /**
+    * Stream the rows of a query instead of loading them all. The consumer reads the stream, it may
+    * pause it for backpressure, and completes its Future when it is done; the stream and the pooled
+    * connection are closed then.
+    * @param query    the query
+    * @param params   the parameters
+    * @param consumer the reader of the rows
+    * @return the Future completed once the rows were consumed
+    */
+   public Future<Void> queryStream(String query, JsonArray params, Function<SQLRowStream, Future<Void>> consumer) {
+      if (query == null || query.isEmpty()) {
+         return Future.failedFuture("Query is null or empty");
       }
-      Future<ResultSet> queryResultFuture = Future.future();
-      client.queryWithParams(query, params, result -> {
-         if (result.failed()) {
-            queryResultFuture.fail(result.cause());
-         } else {
-            queryResultFuture.complete(result.result());
-         }
+      return getConnection().compose(con -> {
+         Future<Void> consumed = Future.future();
+         con.setOptions(new SQLOptions().setFetchSize(STREAM_FETCH_SIZE));
+         con.queryStreamWithParams(query, params, ar -> {
+            if (ar.failed()) {
+               con.close();
+               consumed.fail(ar.cause());
+               return;
+            }
+            SQLRowStream stream = ar.result();
+            consumer.apply(stream).setHandler(done -> {
+               stream.close(closed -> {
+                  con.close();
+                  consumed.handle(done);
+               });
+            });
+         });
+         return consumed;
       });
-      return queryResultFuture;
    }
 
 
@@ -85,24 +165,251 @@ public class DBConnector {
       if (query == null || query.isEmpty()) {
          return Future.failedFuture("Query is null or empty");
       }
+      if (writerExecutor == null) {
+         Future<ResultSet> queryResultFuture = Future.future();
+         long start = System.nanoTime();
+         client.updateWithParams(query, params, result -> {
+            WRITE_DURATION.record(System.nanoTime() - start);
+            if (result.failed()) {
+               queryResultFuture.fail(result.cause());
+            } else {
+               queryResultFuture.complete();
+            }
+         });
+         return queryResultFuture;
+      }
+      return write(con -> {
+         PreparedStatement statement = prepare(con, query);
+         bind(statement, params);
+         statement.executeUpdate();
+         return null;
+      });
+   }
 
-      if (!query.endsWith(";")) {
-         query = query + ";";
+   /**
+    * Execute a statement without parameters, e.g. DDL, on the writer
+    * @param statement the statement
+    * @return the Future indicating the status of operation
+    */
+   public Future<Void> execute(String statement) {
+      if (writerExecutor == null) {
+         return getConnection().compose(con -> {
+            Future<Void> future = Future.future();
+            con.execute(statement, ar -> {
+               con.close();
+               future.handle(ar);
+            });
+            return future;
+         });
       }
-      Future<ResultSet> queryResultFuture = Future.future();
-      client.updateWithParams(query, params, result -> {
-         if (result.failed()) {
-            queryResultFuture.fail(result.cause());
-         } else {
-            queryResultFuture.complete();
+      return write(con -> {
+         try (Statement st = con.createStatement()) {
+            st.execute(statement);
+         }
+         return null;
+      });
+   }
+
+   /**
+    * Execute statements without parameters in one transaction, either all of them are applied or
+    * none. SQLite DDL is transactional, so this is used for the schema migrations.
+    * @param statements the statements, executed in order
+    * @return the Future indicating the status of operation
+    */
+   public Future<Void> executeInTransaction(List<String> statements) {
+      if (statements.isEmpty()) {
+         return Future.succeededFuture();
+      }
+      if (writerExecutor == null) {
+         return getConnection().compose(con -> pooledTransaction(con, statements));
+      }
+      return write(con -> {
+         con.setAutoCommit(false);
+         try (Statement st = con.createStatement()) {
+            for (String statement : statements) {
+               st.execute(statement);
+            }
+            con.commit();
+         } catch (SQLException e) {
+            con.rollback();
+            throw e;
+         } finally {
+            con.setAutoCommit(true);
+         }
+         return null;
+      });
+   }
+
+   private Future<Void> pooledTransaction(SQLConnection con, List<String> statements) {
+      Future<Void> transactionFuture = Future.future();
+      con.setAutoCommit(false, tx -> {
+         if (tx.failed()) {
+            con.close();
+            transactionFuture.fail(tx.cause());
+            return;
+         }
+         Future<Void> chain = Future.succeededFuture();
+         for (String statement : statements) {
+            chain = chain.compose(v -> {
+               Future<Void> executed = Future.future();
+               con.execute(statement, executed);
+               return executed;
+            });
+         }
+         chain.setHandler(result -> {
+            if (result.succeeded()) {
+               con.commit(commit -> {
+                  con.close();
+                  transactionFuture.handle(commit);
+               });
+            } else {
+               con.rollback(rollback -> {
+                  con.close();
+                  transactionFuture.fail(result.cause());
+               });
+            }
+         });
+      });
+      return transactionFuture;
+   }
+
+   /**
+    * Execute the same statement for every parameter row in one transaction, so the whole batch
+    * costs a single commit.
+    * @param query the statement
+    * @param batch the parameters, one entry per execution
+    * @return the Future indicating the status of operation
+    */
+   public Future<Void> batchWithParams(String query, List<JsonArray> batch) {
+      if (query == null || query.isEmpty()) {
+         return Future.failedFuture("Query is null or empty");
+      }
+      if (batch.isEmpty()) {
+         return Future.succeededFuture();
+      }
+      if (writerExecutor == null) {
+         return getConnection().compose(con -> pooledBatch(con, query, batch));
+      }
+      return write(con -> {
+         PreparedStatement statement = prepare(con, query);
+         con.setAutoCommit(false);
+         try {
+            for (JsonArray params : batch) {
+               bind(statement, params);
+               statement.addBatch();
+            }
+            statement.executeBatch();
+            con.commit();
+         } catch (SQLException e) {
+            statement.clearBatch();
+            con.rollback();
+            throw e;
+         } finally {
+            con.setAutoCommit(true);
+         }
+         return null;
+      });
+   }
+
+   private Future<Void> pooledBatch(SQLConnection con, String query, List<JsonArray> batch) {
+      Future<Void> batchResultFuture = Future.future();
+      con.setAutoCommit(false, tx -> {
+         if (tx.failed()) {
+            con.close();
+            batchResultFuture.fail(tx.cause());
+            return;
          }
+         con.batchWithParams(query, batch, result -> {
+            if (result.succeeded()) {
+               con.commit(commit -> {
+                  con.close();
+                  if (commit.succeeded()) {
+                     batchResultFuture.complete();
+                  } else {
+                     batchResultFuture.fail(commit.cause());
+                  }
+               });
+            } else {
+               con.rollback(rollback -> {
+                  con.close();
+                  batchResultFuture.fail(result.cause());
+               });
+            }
+         });
       });
-      return queryResultFuture;
+      return batchResultFuture;
+   }
+
+   /**
+    * Run a write operation on the writer thread. The operations are run one after the other in the
+    * order they were submitted, the result is delivered on the context of the caller.
+    * @param operation the operation
+    * @return the result of the operation
+    */
+   private <T> Future<T> write(WriteOperation<T> operation) {
+      Future<T> result = Future.future();
+      long submitted = System.nanoTime();
+      writerExecutor.<T>executeBlocking(future -> {
+         long start = System.nanoTime();
+         WRITER_WAIT.record(start - submitted);
+         try {
+            future.complete(operation.apply(writerConnection()));
+         } catch (SQLException e) {
+            future.fail(e);
+         } finally {
+            WRITE_DURATION.record(System.nanoTime() - start);
+         }
+      }, true, result);
+      return result;
+   }
+
+   private Connection writerConnection() throws SQLException {
+      if (writer == null || writer.isClosed()) {
+         writerStatements.clear();
+         writer = DriverManager.getConnection(jdbcUrl);
+      }
+      return writer;
+   }
+
+   private PreparedStatement prepare(Connection con, String query) throws SQLException {
+      PreparedStatement statement = writerStatements.get(query);
+      if (statement == null) {
+         statement = con.prepareStatement(query);
+         writerStatements.put(query, statement);
+      }
+      return statement;
+   }
+
+   private static void bind(PreparedStatement statement, JsonArray params) throws SQLException {
+      for (int i = 0; i < params.size(); i++) {
+         statement.setObject(i + 1, params.getValue(i));
+      }
    }
 
    public void stop(){
       LOGGER.info("Stopping DB Connector");
+      if (writerExecutor != null) {
+         writerExecutor.executeBlocking(future -> {
+            try {
+               for (PreparedStatement statement : writerStatements.values()) {
+                  statement.close();
+               }
+               writerStatements.clear();
+               if (writer != null) {
+                  writer.close();
+               }
+            } catch (SQLException e) {
+               LOGGER.error("Error closing the writer connection, cause :" + e);
+            }
+            future.complete();
+         }, true, ar -> writerExecutor.close());
+      }
       client.close();
    }
 
+   @FunctionalInterface
+   private interface WriteOperation<T> {
+      T apply(Connection con) throws SQLException;
+   }
+
 }
@@ -0,0 +1,97 @@
+package se.kry.codetest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning the services to the poller instances. Every member is placed on
+ * the ring at {@code virtualNodes} points and a key belongs to the member of the first point at or
+ * after its hash, so the keys are spread evenly and a member joining or leaving only moves the keys
+ * of its own points. Immutable, a new ring is built when the members change.
+ */
+public final class HashRing {
+
+    private final Set<String> members;
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param members      the members
+     * @param virtualNodes the number of points of every member
+     */
+    public HashRing(Collection<String> members, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+        // Sorted by point, a collision keeps the member which sorts last on every node alike
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String member : this.members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + '#' + i), member);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i] = point.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * @param key the key, e.g. the URL of a service
+     * @return the member owning the key, null when the ring is empty
+     */
+    public String owner(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        long hash = hash(key);
+        int low = 0;
+        int high = points.length;
+        // The first point at or after the hash
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, with the finalizer of MurmurHash3 so that close keys end up
+     * far apart. It must be the same on every node, {@link String#hashCode()} is too weak for it.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
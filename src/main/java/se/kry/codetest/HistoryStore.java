@@ -0,0 +1,292 @@
+package se.kry.codetest;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.sql.ResultSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the result of every probe. The samples are appended to the {@code service_history} table in
+ * batches and rolled up into minute, hour and day buckets in {@code service_rollup}: minutes from
+ * the raw samples, hours from the minutes and days from the hours. Every level has its own retention
+ * and the history endpoint only reads the rollups. The store is shared by the pollers of every event
+ * loop: the buffer is owned by the context the store was created on, the calls made from other
+ * threads are handed over to it. The samples and the buckets of a service are recorded under its
+ * {@link Service#getKey() key} in the {@code url} column, the URL for the services without owner.
+ */
+public class HistoryStore {
+
+    public static final String SQL_INSERT_HISTORY = "INSERT INTO service_history " +
+            "(url, checked_at, latency_ms, http_code, outcome) values(?,?,?,?,?)";
+    public static final String SQL_ROLLUP_RAW = "INSERT OR REPLACE INTO service_rollup " +
+            "SELECT url, ?, (checked_at / ?) * ?, count(*), sum(outcome = 'OK'), sum(outcome = 'FAIL'), " +
+            "sum(outcome = 'UNKNOWN'), sum(latency_ms), min(latency_ms), max(latency_ms) " +
+            "FROM service_history WHERE checked_at >= ? AND checked_at < ? GROUP BY url, checked_at / ?";
+    public static final String SQL_ROLLUP_BUCKETS = "INSERT OR REPLACE INTO service_rollup " +
+            "SELECT url, ?, (bucket_start / ?) * ?, sum(samples), sum(ok_count), sum(fail_count), " +
+            "sum(unknown_count), sum(latency_sum), min(latency_min), max(latency_max) " +
+            "FROM service_rollup WHERE resolution = ? AND bucket_start >= ? AND bucket_start < ? " +
+            "GROUP BY url, bucket_start / ?";
+    public static final String SQL_DELETE_HISTORY = "DELETE FROM service_history WHERE checked_at < ?";
+    public static final String SQL_DELETE_ROLLUP = "DELETE FROM service_rollup " +
+            "WHERE resolution = ? AND bucket_start < ?";
+    public static final String SQL_SELECT_ROLLUP = "SELECT bucket_start, samples, ok_count, fail_count, " +
+            "unknown_count, latency_sum, latency_min, latency_max FROM service_rollup " +
+            "WHERE url = ? AND resolution = ? AND bucket_start >= ? AND bucket_start < ? ORDER BY bucket_start";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryStore.class);
+    private static final long ROLLUP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final long DEFAULT_FLUSH_WINDOW = 1000;
+    private static final int DEFAULT_MAX_PENDING = 50000;
+    private static final long DEFAULT_RAW_RETENTION = TimeUnit.HOURS.toMillis(6);
+    private static final long DEFAULT_MINUTE_RETENTION = TimeUnit.DAYS.toMillis(7);
+    private static final long DEFAULT_HOUR_RETENTION = TimeUnit.DAYS.toMillis(90);
+    private static final long DEFAULT_DAY_RETENTION = TimeUnit.DAYS.toMillis(730);
+
+    /**
+     * The rollup levels, each one is built from the previous one
+     */
+    public enum Resolution {
+        MINUTE(TimeUnit.MINUTES.toMillis(1)),
+        HOUR(TimeUnit.HOURS.toMillis(1)),
+        DAY(TimeUnit.DAYS.toMillis(1));
+
+        private final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public static Resolution parse(String value) {
+            return value == null ? null : valueOf(value.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Vertx vertx;
+    private final Context context;
+    private final DBConnector connector;
+    private final int batchSize;
+    private final long flushWindowMs;
+    private final int maxPending;
+    private final long rawRetention;
+    private final long[] retention;
+    private final long rollupTimerId;
+
+    private List<JsonArray> pending = new ArrayList<>();
+    private boolean flushing;
+    private boolean rollingUp;
+    private long flushTimerId = -1;
+    // Read by the metrics from other threads
+    private volatile long dropped;
+
+    /**
+     * @param vertx     the vertx instance
+     * @param connector the DB connector
+     * @param config    the history configuration, supports {@code batch_size}, {@code flush_window},
+     *                  {@code max_pending} and the retention in milliseconds of every level:
+     *                  {@code raw_retention}, {@code minute_retention}, {@code hour_retention} and
+     *                  {@code day_retention}
+     */
+    public HistoryStore(Vertx vertx, DBConnector connector, JsonObject config) {
+        this.vertx = vertx;
+        this.context = vertx.getOrCreateContext();
+        this.connector = connector;
+        this.batchSize = config.getInteger("batch_size", DEFAULT_BATCH_SIZE);
+        this.flushWindowMs = config.getLong("flush_window", DEFAULT_FLUSH_WINDOW);
+        this.maxPending = config.getInteger("max_pending", DEFAULT_MAX_PENDING);
+        this.rawRetention = config.getLong("raw_retention", DEFAULT_RAW_RETENTION);
+        this.retention = new long[]{
+                config.getLong("minute_retention", DEFAULT_MINUTE_RETENTION),
+                config.getLong("hour_retention", DEFAULT_HOUR_RETENTION),
+                config.getLong("day_retention", DEFAULT_DAY_RETENTION)};
+        this.rollupTimerId = vertx.setPeriodic(ROLLUP_INTERVAL, id -> rollup(System.currentTimeMillis()));
+    }
+
+    /**
+     * Record the result of a probe. When the DB can not keep up, the new samples are dropped.
+     *
+     * @param key       the key of the service
+     * @param checkedAt the time of the probe in epoch milliseconds
+     * @param latencyMs the time the probe took
+     * @param httpCode  the HTTP status code, null when there was no response
+     * @param outcome   the status of the service after the probe
+     */
+    public void record(String key, long checkedAt, long latencyMs, Integer httpCode, String outcome) {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> record(key, checkedAt, latencyMs, httpCode, outcome));
+            return;
+        }
+        if (pending.size() >= maxPending) {
+            dropped++;
+            return;
+        }
+        JsonArray sample = new JsonArray().add(key).add(checkedAt).add(latencyMs);
+        if (httpCode == null) {
+            sample.addNull();
+        } else {
+            sample.add(httpCode);
+        }
+        pending.add(sample.add(outcome));
+        if (pending.size() >= batchSize) {
+            flush();
+        } else if (flushTimerId == -1 && !flushing) {
+            flushTimerId = vertx.setTimer(flushWindowMs, id -> {
+                flushTimerId = -1;
+                flush();
+            });
+        }
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    private Future<Void> flush() {
+        if (flushTimerId != -1) {
+            vertx.cancelTimer(flushTimerId);
+            flushTimerId = -1;
+        }
+        if (flushing || pending.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        List<JsonArray> batch = pending;
+        pending = new ArrayList<>();
+        flushing = true;
+        Future<Void> future = Future.future();
+        connector.batchWithParams(SQL_INSERT_HISTORY, batch).setHandler(ar -> {
+            flushing = false;
+            if (ar.failed()) {
+                LOGGER.error("Error while saving " + batch.size() + " history samples, cause : " + ar.cause());
+            }
+            if (!pending.isEmpty()) {
+                flush();
+            }
+            future.complete();
+        });
+        return future;
+    }
+
+    /**
+     * Roll the samples up into minute, hour and day buckets and apply the retention. The buckets of
+     * the previous and the current period of each level are recomputed, so the rollups also contain
+     * the partial current period and late samples.
+     *
+     * @param now the current time in epoch milliseconds
+     * @return the Future indicating the status of operation
+     */
+    public Future<Void> rollup(long now) {
+        if (Vertx.currentContext() != context) {
+            Future<Void> future = Future.future();
+            context.runOnContext(v -> rollup(now).setHandler(future));
+            return future;
+        }
+        if (rollingUp) {
+            return Future.succeededFuture();
+        }
+        rollingUp = true;
+        Resolution[] levels = Resolution.values();
+        Future<Void> chain = flush().compose(v -> {
+            long size = Resolution.MINUTE.getMillis();
+            long from = (now / size - 1) * size;
+            return connector.updateWithParam(SQL_ROLLUP_RAW, new JsonArray().add(Resolution.MINUTE.name())
+                    .add(size).add(size).add(from).add(now + 1).add(size)).map(r -> null);
+        });
+        for (int i = 1; i < levels.length; i++) {
+            Resolution level = levels[i];
+            Resolution source = levels[i - 1];
+            chain = chain.compose(v -> {
+                long size = level.getMillis();
+                long from = (now / size - 1) * size;
+                return connector.updateWithParam(SQL_ROLLUP_BUCKETS, new JsonArray().add(level.name())
+                        .add(size).add(size).add(source.name()).add(from).add(now + 1).add(size)).map(r -> null);
+            });
+        }
+        chain = chain.compose(v -> connector.updateWithParam(SQL_DELETE_HISTORY,
+                new JsonArray().add(now - rawRetention)).map(r -> null));
+        for (int i = 0; i < levels.length; i++) {
+            Resolution level = levels[i];
+            long cutoff = now - retention[i];
+            chain = chain.compose(v -> connector.updateWithParam(SQL_DELETE_ROLLUP,
+                    new JsonArray().add(level.name()).add(cutoff)).map(r -> null));
+        }
+        Future<Void> future = Future.future();
+        chain.setHandler(ar -> {
+            rollingUp = false;
+            if (ar.failed()) {
+                LOGGER.error("Error while rolling up the history, cause : " + ar.cause());
+            }
+            future.handle(ar);
+        });
+        return future;
+    }
+
+    /**
+     * Read the rollup buckets of a service
+     *
+     * @param key        the key of the service
+     * @param resolution the bucket size
+     * @param from       the start of the range in epoch milliseconds, inclusive
+     * @param to         the end of the range in epoch milliseconds, exclusive
+     * @return the buckets in chronological order
+     */
+    public Future<JsonArray> history(String key, Resolution resolution, long from, long to) {
+        return connector.query(SQL_SELECT_ROLLUP, new JsonArray().add(key).add(resolution.name())
+                .add(from).add(to)).map(this::toBuckets);
+    }
+
+    private JsonArray toBuckets(ResultSet resultSet) {
+        JsonArray buckets = new JsonArray();
+        for (JsonArray row : resultSet.getResults()) {
+            long samples = row.getLong(1);
+            long ok = row.getLong(2);
+            buckets.add(new JsonObject()
+                    .put("start", row.getLong(0))
+                    .put("samples", samples)
+                    .put("ok", ok)
+                    .put("fail", row.getLong(3))
+                    .put("unknown", row.getLong(4))
+                    .put("availability", samples == 0 ? 0.0 : (double) ok / samples)
+                    .put("latencyAvg", samples == 0 ? 0 : row.getLong(5) / samples)
+                    .put("latencyMin", row.getLong(6))
+                    .put("latencyMax", row.getLong(7)));
+        }
+        return buckets;
+    }
+
+    /**
+     * Flush the samples which are still buffered and stop rolling up
+     *
+     * @return the Future completed once the samples are written
+     */
+    public Future<Void> stop() {
+        Future<Void> future = Future.future();
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> stop().setHandler(future));
+            return future;
+        }
+        vertx.cancelTimer(rollupTimerId);
+        flush().setHandler(ar -> {
+            if (flushing) {
+                // A flush was already running, wait until it is done
+                vertx.setTimer(flushWindowMs, id -> stop().setHandler(future));
+            } else {
+                future.complete();
+            }
+        });
+        return future;
+    }
+}
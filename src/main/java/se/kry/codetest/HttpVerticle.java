@@ -0,0 +1,486 @@
+package se.kry.codetest;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.web.Cookie;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+import io.vertx.ext.web.handler.CookieHandler;
+import io.vertx.ext.web.handler.StaticHandler;
+import org.apache.commons.validator.routines.UrlValidator;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The HTTP API and the web page. The verticle keeps no state of its own, the registry, the service
+ * store and the pollers are shared, so it can be deployed with several instances, one per
+ * event loop.
+ * <p>
+ * Every request acts on the services of one owner, named by the {@code owner} cookie which the web
+ * page hands out, see {@link #ownerOf}. The requests without the cookie, e.g. of the API clients,
+ * share the services without owner. An owner can not have more than {@code maxServices} services.
+ */
+public class HttpVerticle extends AbstractVerticle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpVerticle.class);
+
+    static final ServiceStatus SERVICE_DEFAULT_STATUS = ServiceStatus.UNKNOWN;
+    static final int MIN_POLL_INTERVAL = 5;
+    static final int MAX_POLL_INTERVAL = 24 * 60 * 60;
+    private static final int MAX_PAGE_SIZE = 10000;
+    static final String OWNER_COOKIE = "owner";
+    private static final Pattern OWNER_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final long OWNER_COOKIE_MAX_AGE = TimeUnit.DAYS.toSeconds(365);
+    private static final SecureRandom OWNER_RANDOM = new SecureRandom();
+    // UrlValidator is immutable and thread-safe, all the instances of the verticle share one
+    private static final UrlValidator URL_VALIDATOR = new UrlValidator();
+    static final String HANDLER_DURATION = "http_handler_duration_seconds";
+    static final String HANDLER_DURATION_HELP = "Time from the start of the handler to the end of the response";
+
+    private final ServiceRegistry services;
+    private final ServiceStore store;
+    private final HistoryStore history;
+    private final PollerShards pollers;
+    private final int port;
+    private final int maxServices;
+    private ServiceEventStream eventStream;
+    private ServiceBulkHandler bulkHandler;
+
+    /**
+     * @param maxServices the maximum number of services of an owner
+     */
+    public HttpVerticle(ServiceRegistry services, ServiceStore store, HistoryStore history,
+                        PollerShards pollers, int port, int maxServices) {
+        this.services = services;
+        this.store = store;
+        this.history = history;
+        this.pollers = pollers;
+        this.port = port;
+        this.maxServices = maxServices;
+    }
+
+    /**
+     * This method is called when the verticle is deployed. It creates a HTTP server and registers
+     * routes for different requests
+     *
+     * @param startFuture the future
+     */
+    @Override
+    public void start(Future<Void> startFuture) {
+        // Create a router object.
+        Router router = Router.router(vertx);
+        eventStream = new ServiceEventStream(vertx);
+        bulkHandler = new ServiceBulkHandler(vertx, services, store, pollers, maxServices);
+        setRoutes(router);
+        // Create the HTTP server, all the instances listen on the same port and vertx balances the
+        // connections between them
+        HttpServerOptions options = new HttpServerOptions().setCompressionSupported(true);
+        vertx.createHttpServer(options).requestHandler(router).listen(port, start
+                -> {
+            if (start.succeeded()) {
+                LOGGER.info("HTTP server started..");
+                startFuture.complete();
+            } else {
+                LOGGER.error("HTTP server startup failed, cause : "+start.cause());
+                startFuture.fail(start.cause());
+            }
+        });
+    }
+
+    private void setRoutes(Router router) {
+        LOGGER.info("Setting routes..");
+        router.route().handler(CookieHandler.create());
+        // The bulk import reads the body as a stream, it must not be buffered by the body handler
+        router.post("/services/bulk").handler(timed("POST", "/services/bulk", bulkHandler::importServices));
+        router.post().handler(BodyHandler.create());
+        router.getWithRegex("/(index\\.html)?").handler(this::ownerCookieHandler);
+        router.route("/*").handler(timedWhenServed("GET", "/*", StaticHandler.create()));
+        router.get("/service").handler(timed("GET", "/service", this::pageRenderHandler));
+        // Not timed, the response of the event stream lasts as long as the connection
+        router.get("/service/events").handler(eventStream::handle);
+        router.post("/service").handler(timed("POST", "/service", this::saveHandler));
+        router.post("/delete").handler(timed("POST", "/delete", this::deleteHandler));
+        // The URL is part of the path, e.g. /service/https%3A%2F%2Fkry.se/history
+        router.getWithRegex("/service/(.+)/history").handler(timed("GET", "/service/:url/history",
+                this::historyHandler));
+        router.get("/services/export").handler(timed("GET", "/services/export", bulkHandler::exportServices));
+        router.get("/metrics").handler(timed("GET", "/metrics", Metrics::handle));
+        router.get("/health/live").handler(timed("GET", "/health/live", this::livenessHandler));
+        router.get("/health/ready").handler(timed("GET", "/health/ready", this::readinessHandler));
+    }
+
+    /**
+     * Wrap a handler so that the time until its response is written is recorded, in the histogram
+     * of its method and route
+     */
+    private static Handler<RoutingContext> timed(String method, String route, Handler<RoutingContext> handler) {
+        LatencyHistogram histogram = Metrics.histogram(HANDLER_DURATION, HANDLER_DURATION_HELP, "method", method,
+                "route", route);
+        return context -> {
+            long start = System.nanoTime();
+            context.addBodyEndHandler(v -> histogram.record(System.nanoTime() - start));
+            handler.handle(context);
+        };
+    }
+
+    /**
+     * Like {@link #timed}, for a handler which passes the requests it does not serve on to the next
+     * routes: only the responses ended while its own route is the current one are recorded
+     */
+    private static Handler<RoutingContext> timedWhenServed(String method, String route,
+                                                           Handler<RoutingContext> handler) {
+        LatencyHistogram histogram = Metrics.histogram(HANDLER_DURATION, HANDLER_DURATION_HELP, "method", method,
+                "route", route);
+        return context -> {
+            long start = System.nanoTime();
+            Route own = context.currentRoute();
+            context.addBodyEndHandler(v -> {
+                if (context.currentRoute() == own) {
+                    histogram.record(System.nanoTime() - start);
+                }
+            });
+            handler.handle(context);
+        };
+    }
+
+    /**
+     * @return the owner of the request, null when it has no valid owner cookie
+     */
+    static String ownerOf(RoutingContext context) {
+        Cookie cookie = context.getCookie(OWNER_COOKIE);
+        String owner = cookie == null ? null : cookie.getValue();
+        return owner != null && OWNER_PATTERN.matcher(owner).matches() ? owner : null;
+    }
+
+    /**
+     * Hand out a new owner with the web page to the browsers which do not have one yet
+     * @param context the routing context
+     */
+    private void ownerCookieHandler(RoutingContext context) {
+        if (ownerOf(context) == null) {
+            byte[] token = new byte[16];
+            OWNER_RANDOM.nextBytes(token);
+            context.addCookie(Cookie.cookie(OWNER_COOKIE, Base64.getUrlEncoder().withoutPadding().encodeToString(token))
+                    .setPath("/").setMaxAge(OWNER_COOKIE_MAX_AGE).setHttpOnly(true));
+        }
+        context.next();
+    }
+
+    /**
+     * Handler for rendering the page, with the services of the owner of the request. The response is
+     * served from the cached snapshot of the partition of the owner, which is only rebuilt when the
+     * partition changed. Clients can revalidate with {@code If-None-Match} and page through the list
+     * with {@code limit} and {@code cursor}, the cursor of the next page is returned in the
+     * {@code Link} header.
+     * <p>
+     * The list can be filtered with {@code status}, {@code name} (prefix), {@code host} (prefix) and
+     * {@code createdAfter} (epoch milliseconds or ISO-8601 instant), the filtered lists are read
+     * through the indexes of the partition and rendered for the request.
+     * @param context the routing context
+     */
+    private void pageRenderHandler(RoutingContext context) {
+        HttpServerRequest request = context.request();
+        HttpServerResponse response = context.response();
+        ServiceFilter filter;
+        try {
+            filter = filterOf(request);
+        } catch (IllegalArgumentException e) {
+            response.setStatusCode(400).end("INVALID INPUT");
+            return;
+        }
+        ServiceRegistry.Partition partition = services.partition(ownerOf(context));
+        ServiceSnapshot snapshot = null;
+        String etag;
+        if (filter.isEmpty()) {
+            snapshot = partition.snapshot();
+            etag = snapshot.etag();
+        } else {
+            // Read before the services, a change meanwhile only makes the response look older
+            long version = partition.getVersion();
+            etag = ServiceSnapshot.etag(version);
+            if (!etag.equals(request.getHeader("if-none-match"))) {
+                snapshot = ServiceSnapshot.build(version, partition.find(filter));
+            }
+        }
+        response.putHeader("content-type", "application/json")
+                .putHeader("etag", etag)
+                .putHeader("cache-control", "no-cache")
+                .putHeader("vary", "Cookie, Accept-Encoding");
+        if (etag.equals(request.getHeader("if-none-match"))) {
+            response.setStatusCode(304).end();
+            return;
+        }
+        String limit = request.getParam("limit");
+        if (limit == null) {
+            // The filtered lists are rendered once, they are not worth compressing
+            if (filter.isEmpty() && acceptsGzip(request.getHeader("accept-encoding"))) {
+                response.putHeader("content-encoding", "gzip").end(snapshot.gzipped());
+            } else {
+                response.end(snapshot.all());
+            }
+            return;
+        }
+        ServiceSnapshot.Page page;
+        try {
+            page = snapshot.page(request.getParam("cursor"), Math.min(Integer.parseInt(limit), MAX_PAGE_SIZE));
+        } catch (IllegalArgumentException e) {
+            response.setStatusCode(400).end("INVALID INPUT");
+            return;
+        }
+        if (page.getNextCursor() != null) {
+            response.putHeader("link", "</service?" + nextPageQuery(request, page.getNextCursor()) + ">; rel=\"next\"");
+        }
+        response.end(page.getBody());
+    }
+
+    /**
+     * @param acceptEncoding the {@code Accept-Encoding} header, may be null
+     * @return true when it accepts gzip with a non-zero quality, named or through {@code *}
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzip = null;
+        Double any = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                gzip = quality;
+            } else if ("*".equals(name)) {
+                any = quality;
+            }
+        }
+        return gzip != null ? gzip > 0 : any != null && any > 0;
+    }
+
+    private static ServiceFilter filterOf(HttpServerRequest request) {
+        String status = request.getParam("status");
+        String createdAfter = request.getParam("createdAfter");
+        long after = Long.MIN_VALUE;
+        if (createdAfter != null) {
+            try {
+                after = createdAfter.chars().allMatch(Character::isDigit) ? Long.parseLong(createdAfter)
+                        : Instant.parse(createdAfter).toEpochMilli();
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Invalid createdAfter : " + createdAfter, e);
+            }
+        }
+        return new ServiceFilter(status == null ? null : ServiceStatus.valueOf(status.toUpperCase()),
+                request.getParam("name"), request.getParam("host"), null, after);
+    }
+
+    /**
+     * @return the query of the next page, the parameters of the request with the cursor of the next page
+     */
+    private static String nextPageQuery(HttpServerRequest request, String cursor) {
+        StringBuilder query = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> param : request.params()) {
+                if (!"cursor".equals(param.getKey())) {
+                    query.append(URLEncoder.encode(param.getKey(), "UTF-8")).append('=')
+                            .append(URLEncoder.encode(param.getValue(), "UTF-8")).append('&');
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return query.append("cursor=").append(cursor).toString();
+    }
+
+    private void saveHandler(RoutingContext context) {
+        LOGGER.debug("Received a Save event");
+        // Read the request's content and create an instance of service.
+        JsonObject jsonBody = context.getBodyAsJson();
+        String url = jsonBody.getString("url");
+        String owner = ownerOf(context);
+        // In case the URL is not valid or the owner already has it, ignore the request
+        if(isValidUrl(url) && !services.containsKey(Service.key(owner, url))) {
+            String name;
+            int pollInterval;
+            try {
+                name = jsonBody.getString("name");
+                pollInterval = jsonBody.getInteger("pollInterval", Service.DEFAULT_POLL_INTERVAL);
+            } catch (ClassCastException e) {
+                // e.g. "pollInterval": "30", the poll interval has to be a JSON number
+                LOGGER.info("Invalid field type : " + e.getMessage() + ", Ignoring");
+                context.response().setStatusCode(400).end("INVALID INPUT");
+                return;
+            }
+            if (pollInterval < MIN_POLL_INTERVAL || pollInterval > MAX_POLL_INTERVAL) {
+                LOGGER.info("Invalid poll interval : " + pollInterval + ", Ignoring");
+                context.response().setStatusCode(400).end("INVALID INPUT");
+                return;
+            }
+            ServiceCheck check;
+            try {
+                check = ServiceCheck.fromJson(jsonBody.getJsonObject("check"));
+            } catch (IllegalArgumentException | ClassCastException e) {
+                LOGGER.info("Invalid check : " + e.getMessage() + ", Ignoring");
+                context.response().setStatusCode(400).end("INVALID INPUT");
+                return;
+            }
+            // The slot is taken before the insert, the concurrent requests of the owner see it
+            if (!services.reserve(owner, maxServices)) {
+                LOGGER.info("Owner at its quota of " + maxServices + " services, Ignoring");
+                context.response().setStatusCode(403).end("QUOTA EXCEEDED");
+                return;
+            }
+            Service service = new Service(name, url, System.currentTimeMillis(), SERVICE_DEFAULT_STATUS,
+                    pollInterval);
+            service.setOwner(owner);
+            service.setCheck(check);
+            store.insert(Collections.singletonList(service))
+                    .setHandler(result -> {
+                        if (result.succeeded()) {
+                            LOGGER.info("URL details saved to DB");
+                            services.put(service);
+                            services.release(owner);
+                            pollers.schedule(service);
+                            ServiceEventStream.publishAdded(vertx, service);
+                            context.response().putHeader("content-type", "text/plain")
+                                    .end("OK");
+                        } else {
+                            services.release(owner);
+                            LOGGER.error("Error while saving URL :"+url+" to DB, cause : "+result.cause());
+                            context.fail(result.cause());
+                        }
+                    });
+        } else {
+            LOGGER.info("Invalid URL or it's an existing URL, Ignoring");
+            context.response().setStatusCode(400).end("INVALID INPUT");
+        }
+    }
+
+    private void deleteHandler(RoutingContext context) {
+        LOGGER.debug("Received a delete event..");
+        JsonObject jsonBody = context.getBodyAsJson();
+        String url = jsonBody.getString("url");
+        String owner = ownerOf(context);
+        String key = Service.key(owner, url);
+        if (url == null || !services.containsKey(key)) {
+            context.response().setStatusCode(404).end("NOT FOUND");
+            return;
+        }
+        store.delete(key)
+                .setHandler(result -> {
+                    if (result.succeeded()) {
+                        LOGGER.info("Deleted URL : "+url+" from DB");
+                        services.remove(key);
+                        pollers.cancel(key);
+                        ServiceEventStream.publish(vertx, ServiceEventStream.TYPE_DELETED, url, null, owner);
+                        context.response().putHeader("content-type", "text/plain")
+                                .end("OK");
+                    } else {
+                        LOGGER.info("Error while deleting URL : "+url+" from DB, cause : "+result.cause());
+                        context.fail(result.cause());
+                    }
+                });
+    }
+
+    /**
+     * Handler for the history of a service of the owner of the request, it reads the rollup buckets
+     * of the requested resolution ({@code minute}, {@code hour} or {@code day}, default hour) between
+     * {@code from} and {@code to} (epoch milliseconds, default the last 24 hours).
+     * @param context the routing context
+     */
+    private void historyHandler(RoutingContext context) {
+        String url;
+        HistoryStore.Resolution resolution;
+        long from;
+        long to;
+        try {
+            // Already decoded by the router, a second decode would turn '+' into ' ' and '%25' into '%'
+            url = context.request().getParam("param0");
+            resolution = HistoryStore.Resolution.parse(context.request().getParam("resolution"));
+            to = parseLong(context.request().getParam("to"), System.currentTimeMillis());
+            from = parseLong(context.request().getParam("from"), to - TimeUnit.DAYS.toMillis(1));
+        } catch (IllegalArgumentException e) {
+            context.response().setStatusCode(400).end("INVALID INPUT");
+            return;
+        }
+        String key = Service.key(ownerOf(context), url);
+        if (!services.containsKey(key)) {
+            context.response().setStatusCode(404).end("NOT FOUND");
+            return;
+        }
+        history.history(key, resolution == null ? HistoryStore.Resolution.HOUR : resolution, from, to)
+                .setHandler(ar -> {
+                    if (ar.succeeded()) {
+                        context.response()
+                                .putHeader("content-type", "application/json")
+                                .end(ar.result().encode());
+                    } else {
+                        LOGGER.error("Error while reading the history of URL :"+url+", cause : "+ar.cause());
+                        context.fail(ar.cause());
+                    }
+                });
+    }
+
+    /**
+     * Handler for the liveness check, the server answers as soon as it listens
+     * @param context the routing context
+     */
+    private void livenessHandler(RoutingContext context) {
+        context.response().putHeader("content-type", "application/json")
+                .end(new JsonObject().put("status", "UP").encode());
+    }
+
+    /**
+     * Handler for the readiness check. The server answers while the registry is loaded, but it is
+     * only ready once the registry was reconciled with the database.
+     * @param context the routing context
+     */
+    private void readinessHandler(RoutingContext context) {
+        boolean ready = services.isLoaded();
+        context.response().setStatusCode(ready ? 200 : 503)
+                .putHeader("content-type", "application/json")
+                .end(new JsonObject().put("status", ready ? "READY" : "LOADING")
+                        .put("services", services.size()).encode());
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    static boolean isValidUrl(String url) {
+        return URL_VALIDATOR.isValid(url);
+    }
+
+    @Override
+    public void stop() {
+        if (eventStream != null) {
+            eventStream.stop();
+        }
+    }
+}
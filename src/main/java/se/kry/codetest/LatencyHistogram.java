@@ -0,0 +1,102 @@
+package se.kry.codetest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, like HdrHistogram with a low precision: every
+ * power of two between 65us and 137s is split in two buckets, so the bounds of a bucket are at
+ * most 50% apart. As in Prometheus a bucket holds the values up to and including its upper bound.
+ * The bucket of a value is found with a few bit operations and recording does not allocate, so it
+ * can be used on the event loop for every request.
+ */
+public class LatencyHistogram {
+
+    private static final int MIN_EXPONENT = 16;
+    private static final int MAX_EXPONENT = 36;
+    private static final int SUB_BUCKET_BITS = 1;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long[] UPPER_BOUNDS = upperBounds();
+
+    private final AtomicLongArray counts = new AtomicLongArray(UPPER_BOUNDS.length + 1);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Record a latency
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        sum.add(nanos);
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        record(unit.toNanos(duration));
+    }
+
+    /**
+     * Write the histogram in the Prometheus text format, the buckets are cumulative and in seconds
+     *
+     * @param out    the output
+     * @param name   the name of the metric
+     * @param labels the labels of the series, e.g. {@code outcome="OK"}, may be empty
+     */
+    void writeTo(StringBuilder out, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < UPPER_BOUNDS.length; i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(UPPER_BOUNDS[i] / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(UPPER_BOUNDS.length);
+        out.append(name).append("_bucket{").append(labels).append(separator)
+                .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(sum.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    static int bucket(long nanos) {
+        if (nanos <= (1L << MIN_EXPONENT)) {
+            return 0;
+        }
+        // The bounds are inclusive, a value equal to a bound is in the bucket below it
+        long below = nanos - 1;
+        int exponent = 63 - Long.numberOfLeadingZeros(below);
+        if (exponent > MAX_EXPONENT) {
+            return UPPER_BOUNDS.length;
+        }
+        int subBucket = (int) (below >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        return bucket < UPPER_BOUNDS.length ? UPPER_BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    private static long[] upperBounds() {
+        long[] bounds = new long[1 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS];
+        bounds[0] = 1L << MIN_EXPONENT;
+        int i = 1;
+        for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++) {
+            for (int subBucket = 1; subBucket <= SUB_BUCKETS; subBucket++) {
+                bounds[i++] = (1L << exponent) + subBucket * (1L << (exponent - SUB_BUCKET_BITS));
+            }
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,688 @@
+package se.kry.codetest;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * The services in an append-only log, for high status update rates: a status update appends a few
+ * bytes to the file where SQLite rewrites B-tree pages. Every call is one record,
+ * {@code length, operations..., CRC32}, written at once, so a batch is applied completely or not at
+ * all. Only the position of every live service in the log and its status are held in memory,
+ * rebuilt from the log at open, a torn record at the end of the log (a crash in the middle of a
+ * write) is dropped. The scans read the services back from the log, in the order of the file. The
+ * status updates and the deletes name the services by their key.
+ * <p>
+ * The log is compacted when it is {@code compact_ratio} times larger than the live services (and at
+ * least {@code compact_min_bytes}): the live services are written to a new file which replaces the
+ * log atomically. The compaction is a task of its own on the worker, the write which crossed the
+ * threshold completes first and the following ones are queued behind it. The records reach the OS
+ * with every call, as with SQLite in WAL mode and {@code synchronous=NORMAL}, they are also fsync'ed
+ * when {@code fsync} is set. The file and the positions are only accessed from one worker thread.
+ */
+public class LogServiceStore implements ServiceStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogServiceStore.class);
+    private static final int MAGIC = 0x4b52534c;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final int NULL_LENGTH = -1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_STATUS = 2;
+    private static final byte OP_DELETE = 3;
+    private static final String DEFAULT_PATH = "services.log";
+    private static final long DEFAULT_COMPACT_MIN_BYTES = 16 * 1024 * 1024;
+    private static final double DEFAULT_COMPACT_RATIO = 2.0;
+    private static final int COMPACTED_SERVICES_PER_RECORD = 1024;
+    private static final int SCAN_CHUNK = 512;
+    private static final int READ_WINDOW = 64 * 1024;
+
+    private final Vertx vertx;
+    private final Path path;
+    private final Path compactPath;
+    private final long compactMinBytes;
+    private final double compactRatio;
+    private final boolean fsync;
+    private final WorkerExecutor executor;
+    private final Map<String, Slot> slots = new HashMap<>();
+    private final RecordBuffer record = new RecordBuffer();
+    private FileChannel log;
+    private volatile long size;
+    private long compactAbove;
+    // Bytes and number of the services written, for the average size of a live service
+    private long putBytes;
+    private long puts;
+    private volatile long compactions;
+    private boolean compactionQueued;
+
+    /**
+     * @param vertx  the vertx instance
+     * @param config supports {@code path}, {@code compact_min_bytes}, {@code compact_ratio} and
+     *               {@code fsync}
+     */
+    public LogServiceStore(Vertx vertx, JsonObject config) {
+        this.vertx = vertx;
+        this.path = Paths.get(config.getString("path", DEFAULT_PATH));
+        this.compactPath = path.resolveSibling(path.getFileName() + ".compact");
+        this.compactMinBytes = config.getLong("compact_min_bytes", DEFAULT_COMPACT_MIN_BYTES);
+        this.compactRatio = config.getDouble("compact_ratio", DEFAULT_COMPACT_RATIO);
+        this.fsync = config.getBoolean("fsync", false);
+        if (compactRatio <= 1) {
+            throw new IllegalArgumentException("compact_ratio must be greater than 1");
+        }
+        this.executor = vertx.createSharedWorkerExecutor("service-log-" + path, 1);
+        Metrics.gauge("service_log_size_bytes", "Size of the service log", () -> size);
+        Metrics.counter("service_log_compactions_total", "Compactions of the service log", () -> compactions);
+    }
+
+    @Override
+    public Future<Void> open() {
+        return run(() -> {
+            long start = System.nanoTime();
+            // Left by a compaction which did not complete, the log is still the reference
+            Files.deleteIfExists(compactPath);
+            log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (log.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT);
+                header.flip();
+                writeFully(log, header);
+                size = HEADER_SIZE;
+            } else {
+                replay();
+            }
+            log.position(size);
+            compactAbove = Math.max(compactMinBytes, (long) (liveBytes() * compactRatio));
+            LOGGER.info("Read " + slots.size() + " services from the service log (" + size + " bytes) in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+            compactIfNeeded();
+            return null;
+        });
+    }
+
+    /**
+     * Apply the records of the log, up to the first one which is incomplete or corrupt, and set the
+     * size of the log to the end of the last valid record
+     */
+    private void replay() throws IOException {
+        long fileSize = log.size();
+        long end = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path),
+                64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Unknown format of the service log " + path);
+            }
+            byte[] body = new byte[4096];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    if (length > body.length) {
+                        body = new byte[Math.max(length, body.length * 2)];
+                    }
+                    in.readFully(body, 0, length);
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if ((int) crc.getValue() != in.readInt()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                // The body follows the length of the record
+                apply(ByteBuffer.wrap(body, 0, length), end + 4);
+                end += 8 + length;
+            }
+        }
+        if (end < fileSize) {
+            LOGGER.warn("Dropping the last " + (fileSize - end) + " bytes of the service log, an incomplete record");
+            log.truncate(end);
+        }
+        size = end;
+    }
+
+    /**
+     * @param body   the operations of a record
+     * @param offset the position of the operations in the log
+     */
+    private void apply(ByteBuffer body, long offset) {
+        while (body.hasRemaining()) {
+            int start = body.position();
+            byte op = body.get();
+            switch (op) {
+                case OP_PUT:
+                    Service service = readService(body);
+                    int length = body.position() - start;
+                    slots.put(service.getKey(), new Slot(offset + start, length, service.getStatus()));
+                    putBytes += length;
+                    puts++;
+                    break;
+                case OP_STATUS:
+                    String key = readString(body);
+                    ServiceStatus status = ServiceStatus.valueOf(body.get());
+                    Slot slot = slots.get(key);
+                    if (slot != null) {
+                        slot.status = status;
+                    }
+                    break;
+                case OP_DELETE:
+                    slots.remove(readString(body));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + op + " in the service log");
+            }
+        }
+    }
+
+    @Override
+    public Future<Void> insert(List<Service> added) {
+        return run(() -> {
+            Set<String> keys = new HashSet<>();
+            for (Service service : added) {
+                if (slots.containsKey(service.getKey()) || !keys.add(service.getKey())) {
+                    throw new IllegalStateException("Duplicate service : " + service.getKey());
+                }
+            }
+            record.start();
+            List<Slot> written = new ArrayList<>(added.size());
+            for (Service service : added) {
+                // The record goes at the end of the log
+                long offset = size + record.size();
+                int length = writeService(record.out, service);
+                written.add(new Slot(offset, length, service.getStatus()));
+            }
+            append();
+            for (int i = 0; i < added.size(); i++) {
+                slots.put(added.get(i).getKey(), written.get(i));
+                putBytes += written.get(i).length;
+                puts++;
+            }
+            compactIfNeeded();
+            return null;
+        });
+    }
+
+    @Override
+    public Future<Void> delete(String key) {
+        return run(() -> {
+            if (slots.containsKey(key)) {
+                record.start();
+                record.out.writeByte(OP_DELETE);
+                writeString(record.out, key);
+                append();
+                slots.remove(key);
+                compactIfNeeded();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Future<Void> updateStatuses(Map<String, ServiceStatus> statuses) {
+        return run(() -> {
+            record.start();
+            Map<Slot, ServiceStatus> changed = new HashMap<>();
+            for (Map.Entry<String, ServiceStatus> entry : statuses.entrySet()) {
+                Slot slot = slots.get(entry.getKey());
+                if (slot != null && slot.status != entry.getValue()) {
+                    record.out.writeByte(OP_STATUS);
+                    writeString(record.out, entry.getKey());
+                    record.out.writeByte(entry.getValue().ordinal());
+                    changed.put(slot, entry.getValue());
+                }
+            }
+            if (changed.isEmpty()) {
+                return null;
+            }
+            append();
+            changed.forEach((slot, status) -> slot.status = status);
+            compactIfNeeded();
+            return null;
+        });
+    }
+
+    /**
+     * The services are read from the log when the scan starts and streamed from that copy
+     */
+    @Override
+    public Future<Void> scan(Function<ReadStream<Service>, Future<Void>> consumer) {
+        Context context = vertx.getOrCreateContext();
+        return run(() -> {
+            List<Service> snapshot = new ArrayList<>(slots.size());
+            read(new ArrayList<>(slots.values()), snapshot::add);
+            return snapshot;
+        }).compose(snapshot -> consumer.apply(new SnapshotStream(context, snapshot)));
+    }
+
+    /**
+     * The owner is part of the key, only the services of the owner are read from the log, but all
+     * the keys are gone through
+     */
+    @Override
+    public Future<Void> scan(String owner, Function<ReadStream<Service>, Future<Void>> consumer) {
+        Context context = vertx.getOrCreateContext();
+        return run(() -> {
+            List<Slot> owned = new ArrayList<>();
+            slots.forEach((key, slot) -> {
+                if (Objects.equals(owner, Service.ownerOfKey(key))) {
+                    owned.add(slot);
+                }
+            });
+            List<Service> snapshot = new ArrayList<>(owned.size());
+            read(owned, snapshot::add);
+            return snapshot;
+        }).compose(snapshot -> consumer.apply(new SnapshotStream(context, snapshot)));
+    }
+
+    @Override
+    public Future<Void> close() {
+        Future<Void> future = Future.future();
+        this.<Void>run(() -> {
+            if (log != null) {
+                log.force(true);
+                log.close();
+                log = null;
+            }
+            return null;
+        }).setHandler(ar -> {
+            executor.close();
+            future.handle(ar);
+        });
+        return future;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * Write the current record at the end of the log. When the write fails the log is cut back to
+     * its previous end, the following records must not come after a partial one.
+     */
+    private void append() throws IOException {
+        ByteBuffer buffer = record.finish();
+        int length = buffer.remaining();
+        if (length - 8 > MAX_RECORD_SIZE) {
+            throw new IOException("Record of " + length + " bytes, the batch is too large");
+        }
+        try {
+            writeFully(log, buffer);
+            if (fsync) {
+                log.force(false);
+            }
+        } catch (IOException e) {
+            log.truncate(size);
+            log.position(size);
+            throw e;
+        }
+        size += length;
+    }
+
+    private long liveBytes() {
+        return HEADER_SIZE + (puts == 0 ? 0 : putBytes / puts * slots.size());
+    }
+
+    /**
+     * Queue a compaction on the worker when the log is over its threshold, the writes submitted
+     * after it wait for it
+     */
+    private void compactIfNeeded() {
+        if (size <= compactAbove || compactionQueued) {
+            return;
+        }
+        compactionQueued = true;
+        run(() -> {
+            compactionQueued = false;
+            // Closed meanwhile
+            if (log != null) {
+                compactNow();
+            }
+            return null;
+        });
+    }
+
+    private void compactNow() {
+        long start = System.nanoTime();
+        long before = size;
+        try {
+            compact();
+            compactions++;
+            LOGGER.info("Compacted the service log from " + before + " to " + size + " bytes in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+        } catch (IOException e) {
+            LOGGER.error("Error while compacting the service log, cause : " + e);
+            try {
+                Files.deleteIfExists(compactPath);
+            } catch (IOException ignored) {
+                // It is deleted at the next open
+            }
+        }
+        // Not again before the log grew by as much, even when the compaction failed
+        compactAbove = Math.max(compactMinBytes, (long) (size * compactRatio));
+    }
+
+    /**
+     * Copy the live services to a new file, with their current status. The positions are only
+     * changed once the new file replaced the log.
+     */
+    private void compact() throws IOException {
+        List<Slot> live = new ArrayList<>(slots.values());
+        long[] offsets = new long[live.size()];
+        int[] lengths = new int[live.size()];
+        long compactedPutBytes = 0;
+        try (FileChannel compacted = FileChannel.open(compactPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT);
+            header.flip();
+            writeFully(compacted, header);
+            long[] recordStart = {HEADER_SIZE};
+            int[] copied = new int[1];
+            record.start();
+            // Sorted by offset by the read, the arrays follow that order
+            read(live, service -> {
+                int i = copied[0]++;
+                offsets[i] = recordStart[0] + record.size();
+                lengths[i] = writeService(record.out, service);
+                if (copied[0] % COMPACTED_SERVICES_PER_RECORD == 0) {
+                    ByteBuffer full = record.finish();
+                    recordStart[0] += full.remaining();
+                    writeFully(compacted, full);
+                    record.start();
+                }
+            });
+            if (copied[0] % COMPACTED_SERVICES_PER_RECORD != 0) {
+                writeFully(compacted, record.finish());
+            }
+            compacted.force(true);
+        }
+        Files.move(compactPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.close();
+        log = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = log.size();
+        log.position(size);
+        for (int i = 0; i < live.size(); i++) {
+            live.get(i).offset = offsets[i];
+            live.get(i).length = lengths[i];
+            compactedPutBytes += lengths[i];
+        }
+        putBytes = compactedPutBytes;
+        puts = live.size();
+    }
+
+    /**
+     * Read the services of the slots from the log, in the order of the file, with their current
+     * status. The slots are sorted by offset.
+     */
+    private void read(List<Slot> toRead, IOConsumer<Service> consumer) throws IOException {
+        toRead.sort(Comparator.comparingLong(slot -> slot.offset));
+        ByteBuffer window = ByteBuffer.allocate(READ_WINDOW);
+        window.limit(0);
+        long windowStart = 0;
+        for (Slot slot : toRead) {
+            if (slot.offset < windowStart || slot.offset + slot.length > windowStart + window.limit()) {
+                if (slot.length > window.capacity()) {
+                    window = ByteBuffer.allocate(slot.length);
+                }
+                window.clear();
+                windowStart = slot.offset;
+                while (window.hasRemaining()) {
+                    if (log.read(window, windowStart + window.position()) < 0) {
+                        break;
+                    }
+                }
+                window.flip();
+                if (window.limit() < slot.length) {
+                    throw new IOException("The service at " + slot.offset + " is past the end of the log");
+                }
+            }
+            // Past the operation byte
+            int start = (int) (slot.offset - windowStart);
+            Service service = readService(ByteBuffer.wrap(window.array(), start + 1, slot.length - 1));
+            service.setStatus(slot.status);
+            consumer.accept(service);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeService(DataOutputStream out, Service service) throws IOException {
+        int start = out.size();
+        out.writeByte(OP_PUT);
+        writeString(out, service.getUrl());
+        writeString(out, service.getName());
+        out.writeLong(service.getCreatedAt());
+        out.writeByte(service.getStatus().ordinal());
+        out.writeInt(service.getPollInterval());
+        writeString(out, service.getOwner());
+        writeString(out, service.getCheck().encode());
+        return out.size() - start;
+    }
+
+    private static Service readService(ByteBuffer in) {
+        String url = readString(in);
+        String name = readString(in);
+        long createdAt = in.getLong();
+        ServiceStatus status = ServiceStatus.valueOf(in.get());
+        int pollInterval = in.getInt();
+        Service service = new Service(name, url, createdAt, status, pollInterval);
+        service.setOwner(readString(in));
+        service.setCheck(ServiceCheck.parse(readString(in)));
+        return service;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Run an operation on the worker thread, in the order of submission, the result is delivered on
+     * the context of the caller
+     */
+    private <T> Future<T> run(IOOperation<T> operation) {
+        Future<T> result = Future.future();
+        executor.<T>executeBlocking(future -> {
+            try {
+                future.complete(operation.apply());
+            } catch (IOException | RuntimeException e) {
+                future.fail(e);
+            }
+        }, true, result);
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface IOOperation<T> {
+        T apply() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface IOConsumer<T> {
+        void accept(T value) throws IOException;
+    }
+
+    /**
+     * Where the put of a live service is in the log, and its current status
+     */
+    private static final class Slot {
+        private long offset;
+        private int length;
+        private ServiceStatus status;
+
+        private Slot(long offset, int length, ServiceStatus status) {
+            this.offset = offset;
+            this.length = length;
+            this.status = status;
+        }
+    }
+
+    /**
+     * The record being written, {@code length, operations..., CRC32}
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream out = new DataOutputStream(this);
+        private final CRC32 crc = new CRC32();
+
+        private RecordBuffer() {
+            super(64 * 1024);
+        }
+
+        private void start() throws IOException {
+            reset();
+            out.writeInt(0);
+        }
+
+        private ByteBuffer finish() throws IOException {
+            int length = count - 4;
+            crc.reset();
+            crc.update(buf, 4, length);
+            out.writeInt((int) crc.getValue());
+            ByteBuffer.wrap(buf).putInt(0, length);
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Stream of the services read for a scan, emitted by chunks on the context of the reader
+     */
+    private static final class SnapshotStream implements ReadStream<Service> {
+        private final Context context;
+        private final List<Service> services;
+        private Handler<Service> handler;
+        private Handler<Void> endHandler;
+        private long demand = Long.MAX_VALUE;
+        private int next;
+        private boolean scheduled;
+        private boolean ended;
+
+        private SnapshotStream(Context context, List<Service> services) {
+            this.context = context;
+            this.services = services;
+        }
+
+        @Override
+        public ReadStream<Service> exceptionHandler(Handler<Throwable> handler) {
+            // The copy cannot fail
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> handler(Handler<Service> handler) {
+            this.handler = handler;
+            schedule();
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> pause() {
+            demand = 0;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> resume() {
+            return fetch(Long.MAX_VALUE);
+        }
+
+        @Override
+        public ReadStream<Service> fetch(long amount) {
+            demand = Long.MAX_VALUE - demand < amount ? Long.MAX_VALUE : demand + amount;
+            schedule();
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> endHandler(Handler<Void> handler) {
+            this.endHandler = handler;
+            return this;
+        }
+
+        private void schedule() {
+            if (!scheduled && !ended && handler != null && demand > 0) {
+                scheduled = true;
+                context.runOnContext(v -> emit());
+            }
+        }
+
+        private void emit() {
+            scheduled = false;
+            int emitted = 0;
+            while (handler != null && demand > 0 && next < services.size() && emitted++ < SCAN_CHUNK) {
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+                handler.handle(services.get(next++));
+            }
+            if (next == services.size() && !ended) {
+                ended = true;
+                if (endHandler != null) {
+                    endHandler.handle(null);
+                }
+            } else {
+                schedule();
+            }
+        }
+    }
+}
@@ -1,221 +1,209 @@
 package se.kry.codetest;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
-import io.vertx.core.json.JsonArray;
+import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.ext.sql.SQLConnection;
-import io.vertx.ext.web.Router;
-import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.handler.BodyHandler;
-import io.vertx.ext.web.handler.StaticHandler;
-import org.apache.commons.validator.routines.UrlValidator;
+import se.kry.codetest.migrate.MigrationRunner;
 
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 public class MainVerticle extends AbstractVerticle {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MainVerticle.class);
 
     private static final int PORT_NUMBER = 8080;
-    private static final String SERVICE_DEFAULT_STATUS = "UNKNOWN";
-    private static final String TM_FORMAT="yyyy-MM-dd HH:mm:ss.SSS";
+    private static final String SNAPSHOT_PATH = "registry.snapshot";
+    private static final long SNAPSHOT_INTERVAL = 60 * 1000;
+    private static final int DEFAULT_MAX_SERVICES_PER_OWNER = 10000;
 
-    private Map<String, Service> services = new HashMap<>();
+    private final ServiceRegistry services = new ServiceRegistry();
     private DBConnector connector;
-    private BackgroundPoller poller;
+    private ServiceStore store;
+    private HistoryStore history;
+    private PollerShards pollers;
+    private RegistrySnapshotFile snapshotFile;
+    private NodeFiles nodeFiles;
+    private MessageConsumer<JsonObject> remoteChanges;
+    private NotificationDispatcher notifications;
 
 
     /**
-     * This method is called when the verticle is deployed. It prepare the database and creates a HTTP server
-     * and registers routes for different requests
+     * This method is called when the verticle is deployed. It prepares the database, deploys the
+     * poller verticles and the HTTP verticle, which accepts requests while the registry is loaded
+     * from the snapshot and then reconciled with the service table in the background. The
+     * deployment completes, and the polling starts, once the registry is reconciled. The registry
+     * lives here and is shared with every instance of the poller and HTTP verticles.
+     * <p>
+     * On a clustered vertx the pollers of all the nodes split the services between them, and the
+     * changes made on the other nodes are applied to the registry. The status changes of the
+     * services polled here are pushed to the {@code notifications} sinks, if any. The status journals
+     * and the snapshot are the files of the {@code node_id} of this process, see {@link NodeFiles}.
      *
      * @param startFuture the future
      */
 
     @Override
     public void start(Future<Void> startFuture) {
-        connector = new DBConnector(vertx);
-        poller = new BackgroundPoller(vertx, connector);
-        vertx.setPeriodic(1000 * 60, timerId -> poller.pollServices(services));
-        Future<Void> startupAction = prepareDatabase().compose(v ->
-                startHttpServer());
+        connector = new DBConnector(vertx, config().getJsonObject("db", new JsonObject()));
+        store = ServiceStore.create(vertx, connector, config().getJsonObject("store", new JsonObject()));
+        history = new HistoryStore(vertx, connector, config().getJsonObject("history", new JsonObject()));
+        nodeFiles = new NodeFiles(config().getString("node_id"));
+        JsonObject pollerConfig = config().getJsonObject("poller", new JsonObject()).copy();
+        pollerConfig.put("journal_path", nodeFiles.path(pollerConfig.getString("journal_path",
+                PollerVerticle.DEFAULT_JOURNAL_PATH)));
+        pollers = new PollerShards(vertx, ServiceEventStream.NODE, services, store, history, pollerConfig);
+        remoteChanges = vertx.eventBus().consumer(ServiceEventStream.ADDRESS,
+                message -> applyRemoteChange(message.body()));
+        JsonObject notificationsConfig = config().getJsonObject("notifications");
+        if (NotificationDispatcher.isEnabled(notificationsConfig)) {
+            notifications = new NotificationDispatcher(vertx, notificationsConfig);
+            notifications.start();
+        }
+        JsonObject snapshotConfig = config().getJsonObject("snapshot", new JsonObject());
+        snapshotFile = new RegistrySnapshotFile(vertx,
+                nodeFiles.path(snapshotConfig.getString("path", SNAPSHOT_PATH)), services,
+                snapshotConfig.getLong("interval", SNAPSHOT_INTERVAL));
+        long start = System.currentTimeMillis();
+        services.startLoading();
+        Future<Void> startupAction = nodeFiles.lock(vertx)
+                .compose(v -> prepareDatabase())
+                .compose(v -> startHttpServer())
+                .compose(v -> {
+                    LOGGER.info("HTTP server accepting requests " + (System.currentTimeMillis() - start)
+                            + "ms after the start, loading the registry");
+                    return snapshotFile.load();
+                })
+                .map(loaded -> {
+                    loaded.forEach(services::put);
+                    LOGGER.info("Serving " + loaded.size() + " services from the snapshot "
+                            + (System.currentTimeMillis() - start) + "ms after the start");
+                    return loaded;
+                })
+                .compose(loaded -> snapshotFile.reconcile(loaded, store, pollers));
         startupAction.setHandler(ar -> {
             if (ar.failed()) {
                 LOGGER.error("Kry Application Startup Failed");
+                // stop() is not called for a failed deployment, a new one must be able to take the lock
+                nodeFiles.unlock();
                 startFuture.fail(ar.cause());
             } else {
                 LOGGER.error("Kry Application Startup Success");
+                services.finishLoading();
+                pollers.start();
+                snapshotFile.start();
+                LOGGER.info("Registry of " + services.size() + " services ready "
+                        + (System.currentTimeMillis() - start) + "ms after the start");
                 startFuture.complete();
             }
         });
 
     }
 
+    /**
+     * Deploy the HTTP verticle, with as many instances as configured
+     */
     private Future<Void> startHttpServer() {
         Future<Void> future = Future.future();
-        // Create a router object.
-        Router router = Router.router(vertx);
-        setRoutes(router);
-        // Create the HTTP server
-        vertx.createHttpServer().requestHandler(router).listen(PORT_NUMBER, start
-                -> {
-            if (start.succeeded()) {
-                LOGGER.info("HTTP server started..");
-                future.complete();
-            } else {
-                LOGGER.error("HTTP server startup failed, cause : "+start.cause());
-                future.fail(start.cause());
-            }
-        });
+        JsonObject httpConfig = config().getJsonObject("http", new JsonObject());
+        int port = httpConfig.getInteger("port", PORT_NUMBER);
+        int instances = httpConfig.getInteger("instances", Runtime.getRuntime().availableProcessors());
+        int maxServices = config().getJsonObject("tenants", new JsonObject())
+                .getInteger("max_services", DEFAULT_MAX_SERVICES_PER_OWNER);
+        vertx.deployVerticle(() -> new HttpVerticle(services, store, history, pollers, port, maxServices),
+                new DeploymentOptions().setInstances(instances), ar -> {
+                    if (ar.succeeded()) {
+                        LOGGER.info("HTTP verticle deployed, instances = " + instances);
+                        future.complete();
+                    } else {
+                        future.fail(ar.cause());
+                    }
+                });
         return future;
     }
 
-    private void setRoutes(Router router) {
-        LOGGER.info("Setting routes..");
-        router.post().handler(BodyHandler.create());
-        router.route("/*").handler(StaticHandler.create());
-        router.get("/service").handler(this::pageRenderHandler);
-        router.post("/service").handler(this::saveHandler);
-        router.post("/delete").handler(this::deleteHandler);
-    }
-
     private Future<Void> prepareDatabase() {
         Future<Void> future = Future.future();
-        connector.getConnection().setHandler(ar -> {
-            SQLConnection con = ar.result();
-            con.execute(DBConnector.SQL_CREATE_SERVICE_TABLE, create -> {
-                con.close();
-                if (create.succeeded()) {
-                    LOGGER.info("Service Table Creation Success");
-                    loadServices(future);
-                } else {
-                    LOGGER.error("Service Table creation failed, cause :"+create.cause());
-                    future.fail(create.cause());
-                }
-            });
-
-        });
-        return future;
-    }
-
-    /**
-     * Here we load the data from Services tables in to the in memory services map
-     * @param future the future
-     */
-    private void loadServices(Future<Void> future) {
-        connector.query(DBConnector.SQL_SELECT_SERVICES_ALL).setHandler(ar
-                -> {
-            if (ar.succeeded()) {
-                ar.result().getRows().forEach(json -> services.put
-                        (json.getString("url"),  new Service(json.getString("name"), json.getString
-                                ("url"), json.getString("insert_time"),json.getString("status"))));
-                LOGGER.debug("Successfully loaded services from DB");
-                future.complete();
+        new MigrationRunner(connector).migrate().setHandler(migrated -> {
+            if (migrated.succeeded()) {
+                LOGGER.info("Database schema at version " + migrated.result());
+                // The pollers apply the status updates of the previous run which did not reach the store
+                store.open().compose(v -> pollers.deploy()).setHandler(recovered -> {
+                    if (recovered.succeeded()) {
+                        future.complete();
+                    } else {
+                        LOGGER.error("Service store opening or status journal recovery failed, cause :"
+                                + recovered.cause());
+                        future.fail(recovered.cause());
+                    }
+                });
             } else {
-                LOGGER.error("Error loading services from DB, cause :"+ar.cause());
-                future.fail(ar.cause());
+                LOGGER.error("Database migration failed, cause :"+migrated.cause());
+                future.fail(migrated.cause());
             }
         });
+        return future;
     }
 
     /**
-     * Handler for rendering the page.
-     * @param context the routing context
+     * Apply a change made on another node of the cluster, the store is shared and already has it
      */
-    private void pageRenderHandler(RoutingContext context) {
-        System.out.println("Started rentering");
-        List<JsonObject> jsonServices = services
-                .entrySet()
-                .stream()
-                .map(entry -> {
-                    Service service = entry.getValue();
-                    return new JsonObject()
-                                .put("name", service.getName())
-                                .put("url", entry.getKey())
-                                .put("status", service.getStatus());
-                }).collect(Collectors.toList());
-        context.response()
-                .putHeader("content-type", "application/json")
-                .end(new JsonArray(jsonServices).encode());
-    }
-
-    private void saveHandler(RoutingContext context) {
-        LOGGER.debug("Received a Save event");
-        // Read the request's content and create an instance of service.
-        JsonObject jsonBody = context.getBodyAsJson();
-        String url = jsonBody.getString("url");
-        // In case the URL is not valid or the URL is a duplicate one, ignore the request
-        if(isValidUrl(url) && !services.containsKey(url)) {
-            String name = jsonBody.getString("name");
-            String currentTm = getCurrentTime();
-            JsonArray jsonArr = new JsonArray();
-            jsonArr.add(name).add(url).add(currentTm).add(SERVICE_DEFAULT_STATUS);
-            connector.updateWithParam(DBConnector.SQL_INSERT_SERVICE, jsonArr)
-                    .setHandler(result -> {
-                        if (result.succeeded()) {
-                            LOGGER.info("URL details saved to DB");
-                            services.put(url, new Service(name, url, currentTm, SERVICE_DEFAULT_STATUS));
-                            context.response().putHeader("content-type", "text/plain")
-                                    .end("OK");
-                        } else {
-                            LOGGER.error("Error while saving URL :"+url+" to DB, cause : "+result.cause());
-                            context.fail(result.cause());
-                        }
-                    });
-        } else {
-            LOGGER.info("Invalid URL or it's an existing URL, Ignoring");
-            context.response().setStatusCode(400).end("INVALID INPUT");
+    private void applyRemoteChange(JsonObject change) {
+        if (ServiceEventStream.NODE.equals(change.getString("node"))) {
+            return;
+        }
+        String url = change.getString("url");
+        String key = Service.key(change.getString("owner"), url);
+        String type = change.getString("type");
+        if (ServiceEventStream.TYPE_ADDED.equals(type)) {
+            Service service = new Service(change.getString("name"), url, change.getLong("created", 0L),
+                    ServiceStatus.parse(change.getString("status")),
+                    change.getInteger("pollInterval", Service.DEFAULT_POLL_INTERVAL));
+            service.setOwner(change.getString("owner"));
+            try {
+                service.setCheck(ServiceCheck.fromJson(change.getJsonObject("check")));
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("Invalid check of the remote service :" + url + ", cause : " + e.getMessage());
+                return;
+            }
+            services.put(service);
+            pollers.schedule(service);
+        } else if (ServiceEventStream.TYPE_DELETED.equals(type)) {
+            services.remove(key);
+            pollers.cancel(key);
+        } else if (ServiceEventStream.TYPE_STATUS.equals(type)) {
+            Service service = services.get(key);
+            ServiceStatus status = ServiceStatus.parse(change.getString("status"));
+            if (service != null && service.getStatus() != status) {
+                services.updateStatus(service, status);
+            }
         }
-    }
-
-    private void deleteHandler(RoutingContext context) {
-        LOGGER.debug("Received a delete event..");
-        JsonObject jsonBody = context.getBodyAsJson();
-        String url = jsonBody.getString("url");
-        connector.updateWithParam(DBConnector.SQL_DELETE_SERVICE, new JsonArray().add(url))
-                .setHandler(result -> {
-                    if (result.succeeded()) {
-                        LOGGER.info("Deleted URL : "+url+" from DB");
-                        services.remove(url);
-                        context.response().putHeader("content-type", "text/plain")
-                                .end("OK");
-                    } else {
-                        LOGGER.info("Error while deleting URL : "+url+" from DB, cause : "+result.cause());
-                        context.fail(result.cause());
-                    }
-                });
-    }
-
-    private String getCurrentTime() {
-        Timestamp ts = new Timestamp(System.currentTimeMillis());
-        SimpleDateFormat sdf = new SimpleDateFormat(TM_FORMAT);
-        return sdf.format(ts);
-    }
-
-    private boolean isValidUrl(String url) {
-        return new UrlValidator().isValid(url);
     }
 
     @Override
-    public void stop() throws Exception {
+    public void stop(Future<Void> stopFuture) throws Exception {
         LOGGER.info("Stopping Main verticle");
-        super.stop();
-        if(poller!=null) {
-            poller.stop();
+        if (remoteChanges != null) {
+            remoteChanges.unregister();
         }
-        if(connector!=null){
-            connector.stop();
+        if (notifications != null) {
+            notifications.stop();
         }
+        // The poller verticles were undeployed first, the snapshot is written after they wrote their
+        // last statuses
+        Future<Void> snapshotStopped = snapshotFile != null ? snapshotFile.stop() : Future.succeededFuture();
+        snapshotStopped.otherwiseEmpty()
+                .compose(v -> history != null ? history.stop() : Future.<Void>succeededFuture())
+                .compose(v -> store != null ? store.close() : Future.<Void>succeededFuture()).setHandler(ar -> {
+            if(connector!=null){
+                connector.stop();
+            }
+            if (nodeFiles != null) {
+                nodeFiles.unlock();
+            }
+            stopFuture.complete();
+        });
     }
 }
-
-
-
@@ -0,0 +1,138 @@
+package se.kry.codetest;
+
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of the application, exposed in the Prometheus text format on {@code /metrics}.
+ * The counters and the histograms are created once, usually in a static field, and are updated
+ * without locks; the gauges read their value only when the metrics are scraped. Asking for a metric
+ * which already exists returns the existing one, so several verticle instances share their series.
+ */
+public final class Metrics {
+
+    private static final String TYPE_COUNTER = "counter";
+    private static final String TYPE_GAUGE = "gauge";
+    private static final String TYPE_HISTOGRAM = "histogram";
+
+    private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name   the name of the metric
+     * @param help   the description of the metric
+     * @param labels the label names and values, alternating
+     * @return the counter of the series
+     */
+    public static LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, TYPE_COUNTER).series.computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    /**
+     * A counter maintained elsewhere, read when the metrics are scraped. Registering it again with
+     * the same labels replaces the previous supplier.
+     */
+    public static void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, TYPE_COUNTER).series.put(labels(labels), value);
+    }
+
+    /**
+     * A gauge read when the metrics are scraped. Registering it again with the same labels replaces
+     * the previous supplier.
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, TYPE_GAUGE).series.put(labels(labels), value);
+    }
+
+    /**
+     * @param name   the name of the metric, in seconds by convention
+     * @param help   the description of the metric
+     * @param labels the label names and values, alternating
+     * @return the histogram of the series
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, TYPE_HISTOGRAM).series
+                .computeIfAbsent(labels(labels), k -> new LatencyHistogram());
+    }
+
+    /**
+     * Write all the metrics in the Prometheus text format
+     *
+     * @param out the output
+     */
+    public static void writeTo(StringBuilder out) {
+        for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    ((LatencyHistogram) metric).writeTo(out, name, labels);
+                    continue;
+                }
+                long value = metric instanceof LongAdder ? ((LongAdder) metric).sum()
+                        : ((LongSupplier) metric).getAsLong();
+                out.append(name);
+                if (!labels.isEmpty()) {
+                    out.append('{').append(labels).append('}');
+                }
+                out.append(' ').append(value).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Route handler serving the metrics
+     *
+     * @param context the routing context
+     */
+    public static void handle(RoutingContext context) {
+        StringBuilder out = new StringBuilder(32 * 1024);
+        writeTo(out);
+        context.response().putHeader("content-type", "text/plain; version=0.0.4").end(out.toString());
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = FAMILIES.computeIfAbsent(name, k -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The local files of this process: the status journals and the registry snapshot. Several
+ * processes can run in one directory with a distinct {@code node_id} each, it prefixes the names of
+ * their files ({@code <node_id>.status.journal}, {@code <node_id>.registry.snapshot}). While it runs
+ * the process holds the lock of {@code <node_id>.node.lock}, or {@code node.lock} without node id, in
+ * the working directory, so a second process with the same node id fails to start instead of
+ * writing the same files.
+ */
+public class NodeFiles {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeFiles.class);
+    private static final String LOCK_FILE = "node.lock";
+
+    private final String nodeId;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    /**
+     * @param nodeId the id of this process, stable across its restarts, null when it runs alone in
+     *               its directory
+     */
+    public NodeFiles(String nodeId) {
+        this.nodeId = nodeId == null || nodeId.isEmpty() ? null : nodeId;
+    }
+
+    /**
+     * @param path a file of this process
+     * @return the path with the node id before the file name
+     */
+    public String path(String path) {
+        if (nodeId == null) {
+            return path;
+        }
+        Path file = Paths.get(path);
+        Path named = Paths.get(nodeId + '.' + file.getFileName());
+        return (file.getParent() == null ? named : file.getParent().resolve(named)).toString();
+    }
+
+    /**
+     * Take the lock of the files of this process
+     *
+     * @return the Future failed when another process holds it
+     */
+    public Future<Void> lock(Vertx vertx) {
+        Future<Void> future = Future.future();
+        String lockPath = path(LOCK_FILE);
+        vertx.<Void>executeBlocking(blocking -> {
+            try {
+                lockChannel = FileChannel.open(Paths.get(lockPath), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                try {
+                    lock = lockChannel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    lock = null;
+                }
+                if (lock == null) {
+                    lockChannel.close();
+                    lockChannel = null;
+                    blocking.fail(new IllegalStateException("The files of " + lockPath
+                            + " are used by another process, give every process its own node_id"));
+                    return;
+                }
+                blocking.complete();
+            } catch (IOException e) {
+                blocking.fail(e);
+            }
+        }, future);
+        return future;
+    }
+
+    /**
+     * Release the lock, once the files are written for the last time
+     */
+    public void unlock() {
+        try {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+                lockChannel = null;
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error while releasing the lock of the node files, cause : " + e);
+        }
+    }
+}
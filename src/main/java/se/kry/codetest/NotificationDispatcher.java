@@ -0,0 +1,303 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes the status changes of the services polled on this node to HTTP sinks, e.g. the on-call
+ * tooling. It listens to the change events of the pollers, so the delivery never slows the probes.
+ * <p>
+ * A change is only notified once the service kept its new status for {@code hysteresis} ms: a
+ * service flapping back to its notified status within the window is not notified at all. The first
+ * successful probe of a service (UNKNOWN to OK) is not notified either. The changes due at every
+ * {@code batch_interval} are sent as one {@code {"node", "transitions": [...]}} POST per sink, at
+ * most {@code max_batch} of them, with one request in flight per sink. Every sink has its own queue
+ * of {@code queue_size} changes, the oldest ones are dropped when it is full, and a failed batch is
+ * retried {@code max_retries} times with an exponential backoff from {@code retry_delay} ms. A sink
+ * may be limited to the services of one {@code owner}.
+ * <p>
+ * The changes within their window stay with the node which saw them: when a service moves to
+ * another poller on a rebalance, its pending change is still notified here once the window elapsed,
+ * and the new poller notifies the changes it sees itself. A service deleted on any node is dropped
+ * from the pending changes at once.
+ * <p>
+ * Not thread safe, all the methods are called from the event loop it was started on.
+ */
+public class NotificationDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationDispatcher.class);
+    private static final long DEFAULT_HYSTERESIS = 30 * 1000;
+    private static final long DEFAULT_BATCH_INTERVAL = 1000;
+    private static final int DEFAULT_MAX_BATCH = 500;
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_MAX_RETRIES = 5;
+    private static final long DEFAULT_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+    private static final long DEFAULT_TIMEOUT = 5000;
+    private static final LongAdder SENT = Metrics.counter("notifications_sent_total",
+            "Status changes delivered to the sinks");
+    private static final LongAdder SUPPRESSED = Metrics.counter("notifications_suppressed_total",
+            "Status changes reverted within the hysteresis window, not notified");
+    static final LongAdder DROPPED = Metrics.counter("notifications_dropped_total",
+            "Status changes dropped by a full queue or after the last retry");
+    private static final LongAdder FAILED = Metrics.counter("notifications_failed_requests_total",
+            "Requests to the sinks which failed and were retried or dropped");
+
+    private final Vertx vertx;
+    private final long hysteresisMs;
+    private final long batchIntervalMs;
+    private final int maxBatch;
+    private final int queueSize;
+    private final int maxRetries;
+    private final long retryDelayMs;
+    private final long timeoutMs;
+    private final List<Sink> sinks = new ArrayList<>();
+    // In the order of their first change, the oldest changes are queued first
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    // The size of pending, read by the metrics from other threads
+    private volatile int pendingCount;
+    private final WebClient client;
+    private MessageConsumer<JsonObject> consumer;
+    private long timerId = -1;
+
+    /**
+     * @param vertx  the vertx instance
+     * @param config {@code sinks} ({@code [{"url", "owner"}]}), {@code hysteresis}, {@code batch_interval},
+     *               {@code max_batch}, {@code queue_size}, {@code max_retries}, {@code retry_delay} and
+     *               {@code timeout}
+     */
+    public NotificationDispatcher(Vertx vertx, JsonObject config) {
+        this.vertx = vertx;
+        this.hysteresisMs = config.getLong("hysteresis", DEFAULT_HYSTERESIS);
+        this.batchIntervalMs = config.getLong("batch_interval", DEFAULT_BATCH_INTERVAL);
+        this.maxBatch = config.getInteger("max_batch", DEFAULT_MAX_BATCH);
+        this.queueSize = config.getInteger("queue_size", DEFAULT_QUEUE_SIZE);
+        this.maxRetries = config.getInteger("max_retries", DEFAULT_MAX_RETRIES);
+        this.retryDelayMs = config.getLong("retry_delay", DEFAULT_RETRY_DELAY);
+        this.timeoutMs = config.getLong("timeout", DEFAULT_TIMEOUT);
+        JsonArray sinksConfig = config.getJsonArray("sinks", new JsonArray());
+        for (int i = 0; i < sinksConfig.size(); i++) {
+            JsonObject sink = sinksConfig.getJsonObject(i);
+            sinks.add(new Sink(String.valueOf(i), sink.getString("url"), sink.getString("owner")));
+        }
+        this.client = WebClient.create(vertx, new WebClientOptions().setConnectTimeout((int) timeoutMs));
+        Metrics.gauge("notifications_pending", "Status changes within their hysteresis window", () -> pendingCount);
+        sinks.forEach(sink -> Metrics.gauge("notifications_queued", "Status changes waiting for their sink",
+                () -> sink.queued, "sink", sink.id));
+    }
+
+    /**
+     * @param config the {@code notifications} configuration
+     * @return true when it has at least one sink
+     */
+    public static boolean isEnabled(JsonObject config) {
+        return config != null && !config.getJsonArray("sinks", new JsonArray()).isEmpty();
+    }
+
+    public void start() {
+        consumer = vertx.eventBus().consumer(ServiceEventStream.ADDRESS, message -> received(message.body()));
+        timerId = vertx.setPeriodic(batchIntervalMs, id -> flush(System.currentTimeMillis()));
+        LOGGER.info("Notifying the status changes to " + sinks.size() + " sinks");
+    }
+
+    private void received(JsonObject change) {
+        String key = Service.key(change.getString("owner"), change.getString("url"));
+        String type = change.getString("type");
+        if (ServiceEventStream.TYPE_DELETED.equals(type)) {
+            // Deleted through the API of any node
+            pending.remove(key);
+        } else if (ServiceEventStream.TYPE_STATUS.equals(type)
+                && ServiceEventStream.NODE.equals(change.getString("node"))) {
+            // Every node notifies the changes of its own pollers
+            statusChanged(key, change, System.currentTimeMillis());
+        }
+        pendingCount = pending.size();
+    }
+
+    private void statusChanged(String key, JsonObject change, long now) {
+        ServiceStatus status = ServiceStatus.parse(change.getString("status"));
+        Pending entry = pending.get(key);
+        if (entry == null) {
+            entry = new Pending(ServiceStatus.parse(change.getString("previous")));
+            pending.put(key, entry);
+        } else if (status == entry.notified) {
+            pending.remove(key);
+            SUPPRESSED.increment();
+            return;
+        }
+        // The window starts again with every new status
+        entry.status = status;
+        entry.changedAt = now;
+        entry.url = change.getString("url");
+        entry.name = change.getString("name");
+        entry.owner = change.getString("owner");
+    }
+
+    /**
+     * Queue the changes whose hysteresis window elapsed and send them
+     */
+    private void flush(long now) {
+        Iterator<Map.Entry<String, Pending>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Pending> entry = entries.next();
+            Pending change = entry.getValue();
+            if (now - change.changedAt < hysteresisMs) {
+                continue;
+            }
+            entries.remove();
+            if (change.notified == ServiceStatus.UNKNOWN && change.status == ServiceStatus.OK) {
+                continue;
+            }
+            JsonObject transition = new JsonObject().put("url", change.url).put("name", change.name)
+                    .put("from", change.notified.name()).put("to", change.status.name())
+                    .put("changed", Service.formatTime(change.changedAt));
+            if (change.owner != null) {
+                transition.put("owner", change.owner);
+            }
+            for (Sink sink : sinks) {
+                sink.offer(transition, change.owner);
+            }
+        }
+        pendingCount = pending.size();
+        sinks.forEach(Sink::send);
+    }
+
+    public void stop() {
+        if (consumer != null) {
+            consumer.unregister();
+        }
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+        }
+        int undelivered = pending.size();
+        for (Sink sink : sinks) {
+            undelivered += sink.queued;
+            if (sink.retryTimerId != -1) {
+                vertx.cancelTimer(sink.retryTimerId);
+            }
+        }
+        if (undelivered > 0) {
+            LOGGER.warn("Stopping with " + undelivered + " status changes not notified");
+        }
+        client.close();
+    }
+
+    /**
+     * A status change within its hysteresis window, with the last status notified
+     */
+    private static final class Pending {
+        private final ServiceStatus notified;
+        private ServiceStatus status;
+        private long changedAt;
+        private String url;
+        private String name;
+        private String owner;
+
+        private Pending(ServiceStatus notified) {
+            this.notified = notified;
+        }
+    }
+
+    private final class Sink {
+        private final String id;
+        private final String url;
+        private final String owner;
+        private final ArrayDeque<JsonObject> queue = new ArrayDeque<>();
+        private JsonArray inFlight;
+        private boolean sending;
+        private int attempts;
+        private long retryTimerId = -1;
+        // In the queue or in flight, read by the metrics from other threads
+        private volatile int queued;
+
+        private Sink(String id, String url, String owner) {
+            this.id = id;
+            this.url = url;
+            this.owner = owner;
+        }
+
+        private void offer(JsonObject transition, String transitionOwner) {
+            if (owner != null && !owner.equals(transitionOwner)) {
+                return;
+            }
+            if (queue.size() >= queueSize) {
+                queue.poll();
+                DROPPED.increment();
+            }
+            queue.add(transition);
+            countQueued();
+        }
+
+        /**
+         * Send the next batch, unless one is in flight or waiting for its retry
+         */
+        private void send() {
+            if (sending || retryTimerId != -1) {
+                return;
+            }
+            if (inFlight == null) {
+                if (queue.isEmpty()) {
+                    return;
+                }
+                inFlight = new JsonArray();
+                while (!queue.isEmpty() && inFlight.size() < maxBatch) {
+                    inFlight.add(queue.poll());
+                }
+            }
+            JsonArray batch = inFlight;
+            sending = true;
+            client.postAbs(url).timeout(timeoutMs).sendJsonObject(new JsonObject()
+                    .put("node", ServiceEventStream.NODE).put("transitions", batch), ar -> {
+                sending = false;
+                if (ar.succeeded() && ar.result().statusCode() / 100 == 2) {
+                    SENT.add(batch.size());
+                    sent();
+                    return;
+                }
+                FAILED.increment();
+                String cause = ar.succeeded() ? "status " + ar.result().statusCode() : String.valueOf(ar.cause());
+                if (++attempts > maxRetries) {
+                    LOGGER.error("Dropping " + batch.size() + " status changes for the sink " + id
+                            + " after " + attempts + " attempts, cause : " + cause);
+                    DROPPED.add(batch.size());
+                    sent();
+                    return;
+                }
+                long delay = Math.min(MAX_RETRY_DELAY, retryDelayMs << Math.min(attempts - 1, 16));
+                LOGGER.warn("Notification to the sink " + id + " failed, retry in " + delay + "ms, cause : " + cause);
+                retryTimerId = vertx.setTimer(delay, timer -> {
+                    retryTimerId = -1;
+                    send();
+                });
+            });
+        }
+
+        /**
+         * Done with the batch in flight, go on with the queue
+         */
+        private void sent() {
+            inFlight = null;
+            attempts = 0;
+            countQueued();
+            send();
+        }
+
+        private void countQueued() {
+            queued = queue.size() + (inFlight != null ? inFlight.size() : 0);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package se.kry.codetest;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Hashed timing wheel that spreads the service probes evenly over their poll interval instead of
+ * firing all of them at the same moment. Every service gets a stable offset inside its interval
+ * (derived from the URL hash, the same for the services of several owners with the same URL, so
+ * they share their probes) and each following run is re-scheduled with a random jitter, so the
+ * poller produces a flat load profile. The wheel is owned by the event loop it was created on, calls
+ * made from other threads are handed over to it.
+ */
+public class PollScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PollScheduler.class);
+    private static final LatencyHistogram TICK_LAG = Metrics.histogram("poller_scheduler_lag_seconds",
+            "How late the scheduler timer fired compared to the tick it was due for");
+    private static final LatencyHistogram TICK_DURATION = Metrics.histogram("poller_scheduler_tick_duration_seconds",
+            "Time spent expiring the due services of the wheel on every timer");
+
+    private final Vertx vertx;
+    private final Context context;
+    private final long tickMs;
+    private final double jitterRatio;
+    private final Consumer<Service> probe;
+    private final List<ArrayDeque<Entry>> wheel;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Random random = new Random();
+    private final LongSupplier nanoClock;
+    // The size of the entries, read by the metrics from other threads
+    private volatile int size;
+
+    private long tick;
+    private long startNanos;
+    private long timerId = -1;
+
+    /**
+     * @param vertx       the vertx instance driving the wheel
+     * @param tickMs      the resolution of the wheel in milliseconds
+     * @param wheelSize   the number of slots in the wheel
+     * @param jitterRatio the jitter applied to every re-schedule, as a ratio of the poll interval
+     * @param probe       the action invoked when a service is due
+     */
+    public PollScheduler(Vertx vertx, long tickMs, int wheelSize, double jitterRatio, Consumer<Service> probe) {
+        this(vertx, tickMs, wheelSize, jitterRatio, probe, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock the monotonic clock the wheel catches up with, in nanoseconds
+     */
+    PollScheduler(Vertx vertx, long tickMs, int wheelSize, double jitterRatio, Consumer<Service> probe,
+                  LongSupplier nanoClock) {
+        if (tickMs <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMs and wheelSize must be positive");
+        }
+        this.vertx = vertx;
+        this.context = vertx.getOrCreateContext();
+        this.tickMs = tickMs;
+        this.jitterRatio = jitterRatio;
+        this.probe = probe;
+        this.nanoClock = nanoClock;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Start turning the wheel
+     */
+    public void start() {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> start());
+            return;
+        }
+        if (timerId != -1) {
+            return;
+        }
+        startNanos = nanoClock.getAsLong();
+        tick = 0;
+        timerId = vertx.setPeriodic(tickMs, id -> advance());
+        LOGGER.info("Poll scheduler started, tick = " + tickMs + "ms, slots = " + wheel.size());
+    }
+
+    /**
+     * Schedule the service. The first probe happens at a stable offset inside the poll interval of
+     * the service, so a restart does not line all the probes up again.
+     *
+     * @param service the service to poll
+     */
+    public void schedule(Service service) {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> schedule(service));
+            return;
+        }
+        cancel(service.getKey());
+        Entry entry = new Entry(service);
+        entries.put(service.getKey(), entry);
+        size = entries.size();
+        long intervalMs = intervalMs(service);
+        place(entry, Math.floorMod(spread(service.getUrl()), intervalMs));
+    }
+
+    /**
+     * Stop polling the service with the given key
+     *
+     * @param key the key of the service
+     */
+    public void cancel(String key) {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> cancel(key));
+            return;
+        }
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            entry.cancelled = true;
+            size = entries.size();
+        }
+    }
+
+    /**
+     * @return the number of services on the wheel, it can be read from any thread
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true when the service with the given key is on the wheel, only to be called from the
+     * owning event loop
+     */
+    public boolean isScheduled(String key) {
+        return entries.containsKey(key);
+    }
+
+    public void stop() {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> stop());
+            return;
+        }
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+        entries.values().forEach(entry -> entry.cancelled = true);
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Catch up with the clock, the periodic timer might fire late when the event loop is busy.
+     */
+    void advance() {
+        long now = nanoClock.getAsLong();
+        long elapsedNanos = now - startNanos;
+        TICK_LAG.record(elapsedNanos - TimeUnit.MILLISECONDS.toNanos((tick + 1) * tickMs));
+        long target = TimeUnit.NANOSECONDS.toMillis(elapsedNanos) / tickMs;
+        while (tick < target) {
+            tick++;
+            expire(wheel.get((int) (tick % wheel.size())));
+        }
+        TICK_DURATION.record(nanoClock.getAsLong() - now);
+    }
+
+    private void expire(ArrayDeque<Entry> bucket) {
+        List<Entry> due = null;
+        Iterator<Entry> it = bucket.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.cancelled) {
+                it.remove();
+            } else if (entry.rounds > 0) {
+                entry.rounds--;
+            } else {
+                it.remove();
+                if (due == null) {
+                    due = new ArrayList<>();
+                }
+                due.add(entry);
+            }
+        }
+        if (due == null) {
+            return;
+        }
+        for (Entry entry : due) {
+            long intervalMs = intervalMs(entry.service);
+            long jitter = (long) ((random.nextDouble() * 2 - 1) * jitterRatio * intervalMs);
+            place(entry, intervalMs + jitter);
+            try {
+                probe.accept(entry.service);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error polling URL :" + entry.service.getUrl() + ", cause : " + e);
+            }
+        }
+    }
+
+    private void place(Entry entry, long delayMs) {
+        long ticks = Math.max(1, delayMs / tickMs);
+        entry.rounds = (ticks - 1) / wheel.size();
+        wheel.get((int) ((tick + ticks) % wheel.size())).add(entry);
+    }
+
+    private static long intervalMs(Service service) {
+        return TimeUnit.SECONDS.toMillis(service.getPollInterval());
+    }
+
+    /**
+     * Mix the bits of the URL hash so that similar URLs still end up far apart on the wheel
+     */
+    private static long spread(String url) {
+        long h = url.hashCode();
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private static final class Entry {
+        private final Service service;
+        private long rounds;
+        private boolean cancelled;
+
+        private Entry(Service service) {
+            this.service = service;
+        }
+    }
+}
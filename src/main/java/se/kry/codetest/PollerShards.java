@@ -0,0 +1,132 @@
+package se.kry.codetest;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * The {@link PollerVerticle} instances of this node, {@code instances} of them (one per core by
+ * default). The registry changes are handed to every instance, each one only polls the services the
+ * ring assigns to it. Thread safe, it is shared by the HTTP verticle instances.
+ */
+public class PollerShards {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PollerShards.class);
+
+    private final Vertx vertx;
+    private final String node;
+    private final ServiceRegistry registry;
+    private final ServiceStore store;
+    private final HistoryStore history;
+    private final JsonObject pollerConfig;
+    private final List<PollerVerticle> instances = new CopyOnWriteArrayList<>();
+    private volatile boolean started;
+
+    /**
+     * @param node         the id of this node
+     * @param pollerConfig the configuration of the pollers, see {@link PollerVerticle}
+     */
+    public PollerShards(Vertx vertx, String node, ServiceRegistry registry, ServiceStore store, HistoryStore history,
+                        JsonObject pollerConfig) {
+        this.vertx = vertx;
+        this.node = node;
+        this.registry = registry;
+        this.store = store;
+        this.history = history;
+        this.pollerConfig = pollerConfig;
+    }
+
+    /**
+     * Deploy the instances, they recover their status journals but do not poll yet. The journals of
+     * the instances of a previous run with more instances are replayed and removed.
+     */
+    public Future<Void> deploy() {
+        int count = pollerConfig.getInteger("instances", Runtime.getRuntime().availableProcessors());
+        return deployInstances(count).compose(v -> recoverJournalsFrom(count));
+    }
+
+    private Future<Void> deployInstances(int count) {
+        Future<Void> future = Future.future();
+        AtomicInteger next = new AtomicInteger();
+        vertx.deployVerticle(() -> {
+            PollerVerticle instance = new PollerVerticle(node, next.getAndIncrement(), registry, store, history,
+                    pollerConfig);
+            instances.add(instance);
+            return instance;
+        }, new DeploymentOptions().setInstances(count), ar -> {
+            if (ar.succeeded()) {
+                LOGGER.info("Poller verticle deployed, instances = " + count);
+                future.complete();
+            } else {
+                future.fail(ar.cause());
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Replay the journals {@code journal_path.<n>} of the instances {@code n >= count} into the store
+     * and remove them
+     */
+    private Future<Void> recoverJournalsFrom(int count) {
+        Path journalPath = Paths.get(pollerConfig.getString("journal_path", PollerVerticle.DEFAULT_JOURNAL_PATH))
+                .toAbsolutePath();
+        String name = journalPath.getFileName().toString();
+        Future<List<String>> files = Future.future();
+        vertx.fileSystem().readDir(journalPath.getParent().toString(), Pattern.quote(name) + "\\.[0-9]+", files);
+        return files.compose(paths -> {
+            Future<Void> recovered = Future.succeededFuture();
+            for (String path : paths) {
+                String suffix = path.substring(path.lastIndexOf('.') + 1);
+                if (suffix.length() > 9 || Integer.parseInt(suffix) < count) {
+                    continue;
+                }
+                recovered = recovered.compose(v -> {
+                    LOGGER.info("Recovering the status journal " + path + " of a removed poller instance");
+                    StatusJournal journal = new StatusJournal(vertx, path, 0);
+                    return BackgroundPoller.replay(journal, store).compose(replayed -> journal.delete());
+                });
+            }
+            return recovered;
+        });
+    }
+
+    /**
+     * Start polling, once the registry is loaded
+     */
+    public void start() {
+        started = true;
+        instances.forEach(PollerVerticle::startPolling);
+    }
+
+    /**
+     * Poll the new or changed service, by the instance of its shard
+     */
+    public void schedule(Service service) {
+        // Until the start the instances take their services from the registry
+        if (started) {
+            instances.forEach(instance -> instance.schedule(service));
+        }
+    }
+
+    /**
+     * Stop polling the service with the given key
+     */
+    public void cancel(String key) {
+        instances.forEach(instance -> instance.cancel(key));
+    }
+
+    public List<PollerVerticle> getInstances() {
+        return instances;
+    }
+}
@@ -0,0 +1,174 @@
+package se.kry.codetest;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * One poller instance: its own {@link PollScheduler} and {@link BackgroundPoller}, with their
+ * probe pipeline, circuits, shared probes and status journal, on the event loop of the verticle.
+ * It polls the services the {@link HashRing} of the live instances assigns to it, by their
+ * normalized URL so the services of every owner with the same target share one instance, and takes
+ * over or hands back services when the ring changes. The instances only share the registry, the
+ * store and the history.
+ */
+public class PollerVerticle extends AbstractVerticle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PollerVerticle.class);
+    private static final long SCHEDULER_TICK_MS = 100;
+    private static final int SCHEDULER_WHEEL_SIZE = 512;
+    private static final double SCHEDULER_JITTER = 0.1;
+    static final String DEFAULT_JOURNAL_PATH = "status.journal";
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 1000;
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final String id;
+    private final int index;
+    private final ServiceRegistry registry;
+    private final ServiceStore store;
+    private final HistoryStore history;
+    private final JsonObject pollerConfig;
+    private BackgroundPoller poller;
+    private PollScheduler scheduler;
+    private ShardMembership membership;
+    private HashRing ring;
+
+    /**
+     * @param node         the id of the node, unique across the nodes
+     * @param index        the index of the instance on the node, its journal is
+     *                     {@code journal_path.index} except for the first instance
+     * @param registry     the registry
+     * @param store        the store the status changes are written to
+     * @param history      the store recording the result of every probe, may be null
+     * @param pollerConfig the configuration of the {@link BackgroundPoller}, and {@code heartbeat_interval}
+     *                     and {@code virtual_nodes} of the ring
+     */
+    public PollerVerticle(String node, int index, ServiceRegistry registry, ServiceStore store, HistoryStore history,
+                          JsonObject pollerConfig) {
+        this.id = node + '/' + index;
+        this.index = index;
+        this.registry = registry;
+        this.store = store;
+        this.history = history;
+        this.pollerConfig = pollerConfig;
+    }
+
+    /**
+     * Create the poller and apply the status updates left in its journal by the previous run, the
+     * polling only starts with {@link #startPolling()}
+     *
+     * @param startFuture the future
+     */
+    @Override
+    public void start(Future<Void> startFuture) {
+        String journalPath = pollerConfig.getString("journal_path", DEFAULT_JOURNAL_PATH);
+        JsonObject config = pollerConfig.copy()
+                .put("journal_path", index == 0 ? journalPath : journalPath + '.' + index)
+                .put("shard", String.valueOf(index));
+        poller = new BackgroundPoller(vertx, store, registry, history, config);
+        scheduler = new PollScheduler(vertx, SCHEDULER_TICK_MS, SCHEDULER_WHEEL_SIZE, SCHEDULER_JITTER,
+                poller::pollService);
+        Metrics.gauge("poller_scheduled_services", "Services on the wheel", scheduler::size,
+                "shard", String.valueOf(index));
+        poller.recover().setHandler(startFuture);
+    }
+
+    /**
+     * Join the ring and poll the services of this instance, the registry must be loaded
+     */
+    public void startPolling() {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> startPolling());
+            return;
+        }
+        if (membership != null) {
+            return;
+        }
+        membership = new ShardMembership(vertx, id,
+                pollerConfig.getLong("heartbeat_interval", DEFAULT_HEARTBEAT_INTERVAL),
+                pollerConfig.getInteger("virtual_nodes", DEFAULT_VIRTUAL_NODES), this::rebalance);
+        membership.start();
+        scheduler.start();
+    }
+
+    /**
+     * Poll the service when it belongs to this instance
+     *
+     * @param service the service, new or changed
+     */
+    public void schedule(Service service) {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> schedule(service));
+            return;
+        }
+        if (owns(service)) {
+            scheduler.schedule(service);
+        }
+    }
+
+    /**
+     * Stop polling the service with the given key, if this instance polls it
+     *
+     * @param key the key of the service
+     */
+    public void cancel(String key) {
+        scheduler.cancel(key);
+    }
+
+    private boolean owns(Service service) {
+        return ring != null && id.equals(ring.owner(SharedProbeCache.normalize(service.getUrl())));
+    }
+
+    /**
+     * Schedule the services the new ring assigns to this instance and cancel the other ones
+     */
+    private void rebalance(HashRing ring) {
+        this.ring = ring;
+        poller.setProbeRateShare(1.0 / ring.size());
+        int added = 0;
+        int removed = 0;
+        for (Service service : registry.values()) {
+            boolean scheduled = scheduler.isScheduled(service.getKey());
+            if (owns(service)) {
+                if (!scheduled) {
+                    scheduler.schedule(service);
+                    added++;
+                }
+            } else if (scheduled) {
+                scheduler.cancel(service.getKey());
+                removed++;
+            }
+        }
+        LOGGER.info("Poller " + id + " rebalanced, taken over = " + added + ", handed over = " + removed
+                + ", polling = " + scheduler.size());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public BackgroundPoller getPoller() {
+        return poller;
+    }
+
+    public PollScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Leave the ring, the other instances take the services over, and flush the status updates
+     *
+     * @param stopFuture the future
+     */
+    @Override
+    public void stop(Future<Void> stopFuture) {
+        if (membership != null) {
+            membership.stop();
+        }
+        scheduler.stop();
+        poller.stop().setHandler(stopFuture);
+    }
+}
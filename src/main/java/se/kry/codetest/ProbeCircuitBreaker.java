@@ -0,0 +1,173 @@
+package se.kry.codetest;
+
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+/**
+ * Circuit breaker per service key. A service starts closed and is probed normally; after a number of
+ * consecutive connection failures the circuit opens and the service is not probed until a backoff
+ * expired. The backoff doubles with every failed retry up to a maximum and is randomized so that
+ * services which went down together do not come back in lock step. When the backoff expired the
+ * circuit is half-open: a single cheap probe decides whether it closes again or stays open.
+ * Only the services with failures have a state, all the methods must be called from the poller's
+ * event loop.
+ */
+public class ProbeCircuitBreaker {
+
+    /**
+     * What the poller should do with a service that is due
+     */
+    public enum Decision {
+        /**
+         * Run the normal probe
+         */
+        PROBE,
+        /**
+         * Run a cheap probe to find out whether the service is back
+         */
+        TRIAL,
+        /**
+         * Do not probe the service
+         */
+        SKIP
+    }
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProbeCircuitBreaker.class);
+
+    private final int failureThreshold;
+    private final long baseBackoffMs;
+    private final long maxBackoffMs;
+    private final double jitterRatio;
+    private final Map<String, Circuit> circuits = new HashMap<>();
+    private final Random random = new Random();
+    // Read by the metrics from other threads
+    private volatile int openCount;
+
+    /**
+     * @param failureThreshold the number of consecutive failures opening the circuit
+     * @param baseBackoffMs    the backoff after the circuit opened for the first time
+     * @param maxBackoffMs     the upper bound of the backoff
+     * @param jitterRatio      the part of the backoff which is randomized, between 0 and 1
+     */
+    public ProbeCircuitBreaker(int failureThreshold, long baseBackoffMs, long maxBackoffMs, double jitterRatio) {
+        if (failureThreshold <= 0 || baseBackoffMs <= 0 || maxBackoffMs < baseBackoffMs) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        this.failureThreshold = failureThreshold;
+        this.baseBackoffMs = baseBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.jitterRatio = Math.max(0, Math.min(1, jitterRatio));
+    }
+
+    /**
+     * Decide how a due service is probed, an open circuit whose backoff expired turns half-open
+     *
+     * @param key the key of the service
+     * @param now the current time in milliseconds
+     * @return the decision
+     */
+    public Decision acquire(String key, long now) {
+        Circuit circuit = circuits.get(key);
+        if (circuit == null || circuit.state == State.CLOSED) {
+            return Decision.PROBE;
+        }
+        if (circuit.state == State.OPEN && now >= circuit.retryAt) {
+            circuit.state = State.HALF_OPEN;
+            return Decision.TRIAL;
+        }
+        return Decision.SKIP;
+    }
+
+    /**
+     * The service answered, close the circuit
+     *
+     * @param key the key of the service
+     */
+    public void onSuccess(String key) {
+        Circuit circuit = circuits.remove(key);
+        if (circuit != null && circuit.state != State.CLOSED) {
+            openCount--;
+            LOGGER.info("Circuit closed for service :" + key + " after " + circuit.failures + " failures");
+        }
+    }
+
+    /**
+     * The service could not be reached, open the circuit when the threshold is reached or when the
+     * trial probe failed
+     *
+     * @param key the key of the service
+     * @param now the current time in milliseconds
+     */
+    public void onFailure(String key, long now) {
+        Circuit circuit = circuits.computeIfAbsent(key, k -> new Circuit());
+        circuit.failures++;
+        if (circuit.state == State.HALF_OPEN || circuit.failures >= failureThreshold) {
+            if (circuit.state == State.CLOSED) {
+                openCount++;
+            }
+            long backoff = backoff(circuit.opened++);
+            circuit.state = State.OPEN;
+            circuit.retryAt = now + backoff;
+            if (circuit.opened == 1) {
+                LOGGER.warn("Circuit opened for service :" + key + ", next try in " + backoff + "ms");
+            }
+        }
+    }
+
+    /**
+     * The trial probe of a half-open circuit did not run, it is tried again on the next run
+     *
+     * @param key the key of the service
+     */
+    public void release(String key) {
+        Circuit circuit = circuits.get(key);
+        if (circuit != null && circuit.state == State.HALF_OPEN) {
+            circuit.state = State.OPEN;
+        }
+    }
+
+    /**
+     * Forget the circuits of the services which are not polled anymore
+     *
+     * @param polled tells whether the service of a key is still polled
+     */
+    public void retain(Predicate<String> polled) {
+        circuits.entrySet().removeIf(entry -> {
+            if (polled.test(entry.getKey())) {
+                return false;
+            }
+            if (entry.getValue().state != State.CLOSED) {
+                openCount--;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * @return the number of services with an open or half-open circuit
+     */
+    public int getOpenCount() {
+        return openCount;
+    }
+
+    private long backoff(int opened) {
+        long backoff = Math.min(maxBackoffMs, baseBackoffMs << Math.min(opened, 30));
+        return backoff - (long) (random.nextDouble() * jitterRatio * backoff);
+    }
+
+    private static final class Circuit {
+        private State state = State.CLOSED;
+        private int failures;
+        private int opened;
+        private long retryAt;
+    }
+}
@@ -0,0 +1,305 @@
+package se.kry.codetest;
+
+import io.vertx.core.Handler;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded concurrency pipeline for the service probes. At most {@code maxInFlight} probes run at the
+ * same time and at most {@code maxPerHost} against the same host, the rest wait in per-host queues
+ * which are served round robin so a slow host does not block the others. A probe that could not even
+ * start before its deadline (the next poll of the same service) is dropped and counted as missed.
+ * All the methods must be called from the owning event loop.
+ */
+public class ProbePipeline {
+
+    private final int maxInFlight;
+    private final int maxPerHost;
+    private final int maxQueued;
+    private final LongSupplier clock;
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private final ArrayDeque<HostQueue> ready = new ArrayDeque<>();
+
+    private boolean paused;
+    // Written on the event loop, read by the metrics from other threads
+    private volatile int inFlight;
+    private volatile int queued;
+    private volatile long completed;
+    private volatile long missed;
+    private volatile long late;
+    private volatile long rejected;
+
+    /**
+     * @param maxInFlight the maximum number of probes running at the same time
+     * @param maxPerHost  the maximum number of probes running at the same time against one host
+     * @param maxQueued   the maximum number of probes waiting for a free slot
+     */
+    public ProbePipeline(int maxInFlight, int maxPerHost, int maxQueued) {
+        this(maxInFlight, maxPerHost, maxQueued, System::currentTimeMillis);
+    }
+
+    /**
+     * @param maxInFlight the maximum number of probes running at the same time
+     * @param maxPerHost  the maximum number of probes running at the same time against one host
+     * @param maxQueued   the maximum number of probes waiting for a free slot
+     * @param clock       the current time in milliseconds, compared with the deadlines
+     */
+    public ProbePipeline(int maxInFlight, int maxPerHost, int maxQueued, LongSupplier clock) {
+        if (maxInFlight <= 0 || maxPerHost <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("Invalid probe pipeline limits");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxPerHost = maxPerHost;
+        this.maxQueued = maxQueued;
+        this.clock = clock;
+    }
+
+    /**
+     * Submit a probe. The task is invoked once there is a free slot and must call the given
+     * completion handler exactly once when the probe is done.
+     *
+     * @param host           the host key of the URL that is probed, see {@link #hostKey(String)}
+     * @param deadlineMillis the time after which the result of the probe is not needed any more
+     * @param task           the probe
+     * @return false when the queue is full and the probe was rejected
+     */
+    public boolean submit(String host, long deadlineMillis, Handler<Handler<Void>> task) {
+        if (queued >= maxQueued) {
+            rejected++;
+            return false;
+        }
+        HostQueue hostQueue = hosts.computeIfAbsent(host, HostQueue::new);
+        hostQueue.probes.add(new Probe(deadlineMillis, task));
+        queued++;
+        markReady(hostQueue);
+        dispatch();
+        return true;
+    }
+
+    private void dispatch() {
+        while (!paused && inFlight < maxInFlight && !ready.isEmpty()) {
+            HostQueue hostQueue = ready.poll();
+            hostQueue.ready = false;
+            Probe probe = hostQueue.probes.poll();
+            queued--;
+            if (clock.getAsLong() > probe.deadlineMillis) {
+                missed++;
+                markReady(hostQueue);
+                release(hostQueue);
+                continue;
+            }
+            hostQueue.inFlight++;
+            inFlight++;
+            markReady(hostQueue);
+            probe.task.handle(done -> {
+                inFlight--;
+                hostQueue.inFlight--;
+                completed++;
+                if (clock.getAsLong() > probe.deadlineMillis) {
+                    late++;
+                }
+                markReady(hostQueue);
+                release(hostQueue);
+                dispatch();
+            });
+        }
+    }
+
+    /**
+     * Stop starting new probes, the probes in flight are not affected
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        if (paused) {
+            paused = false;
+            dispatch();
+        }
+    }
+
+    private void markReady(HostQueue hostQueue) {
+        if (!hostQueue.ready && !hostQueue.probes.isEmpty() && hostQueue.inFlight < maxPerHost) {
+            hostQueue.ready = true;
+            ready.add(hostQueue);
+        }
+    }
+
+    private void release(HostQueue hostQueue) {
+        if (hostQueue.inFlight == 0 && hostQueue.probes.isEmpty()) {
+            hosts.remove(hostQueue.host);
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the number of probes dropped because they could not start within the poll interval
+     */
+    public long getMissed() {
+        return missed;
+    }
+
+    /**
+     * @return the number of probes which finished after the poll interval was over
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * @return the number of probes rejected because the queue was full
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the lower case {@code host:port} of the URL, the URL itself when it has no host
+     */
+    static String hostKey(String url) {
+        String key = plainHostKey(url);
+        if (key != null) {
+            return key;
+        }
+        try {
+            URI uri = URI.create(url);
+            String host = uri.getHost();
+            if (host == null) {
+                return url;
+            }
+            int port = uri.getPort();
+            if (port == -1) {
+                port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+            }
+            return host.toLowerCase() + ':' + port;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    /**
+     * The URLs are nearly always {@code scheme://host[:port]/...} with a host name or an IPv4
+     * address, they are read directly since parsing them as URIs is the slowest part of indexing a
+     * service
+     *
+     * @return the host key of such a URL, null for any other URL
+     */
+    private static String plainHostKey(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0) {
+            return null;
+        }
+        for (int i = 0; i < schemeEnd; i++) {
+            if (!isLetter(url.charAt(i))) {
+                return null;
+            }
+        }
+        int start = schemeEnd + 3;
+        int end = start;
+        int colon = -1;
+        for (; end < url.length(); end++) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            if (c == ':' && colon == -1) {
+                colon = end;
+            } else if (!isLetter(c) && !isDigit(c) && c != '.' && c != '-') {
+                // User info, IPv6 address, escaped characters...
+                return null;
+            }
+        }
+        int hostEnd = colon == -1 ? end : colon;
+        if (!isPlainHost(url, start, hostEnd)) {
+            return null;
+        }
+        int port = 0;
+        if (colon == -1) {
+            port = schemeEnd == 5 && url.regionMatches(true, 0, "https", 0, 5) ? 443 : 80;
+        } else if (end - colon - 1 < 1 || end - colon - 1 > 5) {
+            return null;
+        } else {
+            for (int i = colon + 1; i < end; i++) {
+                if (!isDigit(url.charAt(i))) {
+                    return null;
+                }
+                port = port * 10 + url.charAt(i) - '0';
+            }
+        }
+        return url.substring(start, hostEnd).toLowerCase() + ':' + port;
+    }
+
+    /**
+     * @return true for a host name whose labels start and end with a letter or a digit and whose
+     * last label starts with a letter, or for an IPv4 address
+     */
+    private static boolean isPlainHost(String url, int start, int end) {
+        int labels = 0;
+        boolean numeric = true;
+        int labelStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && url.charAt(i) != '.') {
+                continue;
+            }
+            if (i == labelStart || url.charAt(labelStart) == '-' || url.charAt(i - 1) == '-') {
+                return false;
+            }
+            boolean digits = true;
+            for (int j = labelStart; j < i && digits; j++) {
+                digits = isDigit(url.charAt(j));
+            }
+            numeric &= digits && i - labelStart <= 3 && Integer.parseInt(url.substring(labelStart, i)) <= 255;
+            labels++;
+            if (i == end) {
+                return numeric ? labels == 4 : isLetter(url.charAt(labelStart));
+            }
+            labelStart = i + 1;
+        }
+        return false;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static final class Probe {
+        private final long deadlineMillis;
+        private final Handler<Handler<Void>> task;
+
+        private Probe(long deadlineMillis, Handler<Handler<Void>> task) {
+            this.deadlineMillis = deadlineMillis;
+            this.task = task;
+        }
+    }
+
+    private static final class HostQueue {
+        private final String host;
+        private final ArrayDeque<Probe> probes = new ArrayDeque<>();
+        private int inFlight;
+        private boolean ready;
+
+        private HostQueue(String host) {
+            this.host = host;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary copy of the registry, so a restart does not wait for the whole service table. The file is
+ * {@code magic, format, records..., count, CRC32} where every record is the poll interval, the
+ * status ordinal and the creation time followed by the length-prefixed UTF-8 name, URL, owner
+ * and check. It is read through a memory mapping and rewritten, to a temporary file which replaces it
+ * atomically, whenever the registry changed since the last write. A missing, truncated or corrupt
+ * file is ignored, the database is the reference and the registry is {@link #reconcile reconciled}
+ * with it after the load anyway.
+ */
+public class RegistrySnapshotFile {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistrySnapshotFile.class);
+    private static final int MAGIC = 0x4b525953;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 8;
+    private static final int NULL_LENGTH = -1;
+
+    private final Vertx vertx;
+    private final Path path;
+    private final ServiceRegistry services;
+    private final long intervalMs;
+    private final WorkerExecutor executor;
+    private long timerId = -1;
+    private long savedVersion = -1;
+    private Future<Void> saving;
+
+    /**
+     * @param vertx      the vertx instance
+     * @param path       the snapshot file
+     * @param services   the registry
+     * @param intervalMs the period of the writes
+     */
+    public RegistrySnapshotFile(Vertx vertx, String path, ServiceRegistry services, long intervalMs) {
+        this.vertx = vertx;
+        this.path = Paths.get(path);
+        this.services = services;
+        this.intervalMs = intervalMs;
+        this.executor = vertx.createSharedWorkerExecutor("registry-snapshot-" + path, 1);
+    }
+
+    /**
+     * Read the snapshot
+     *
+     * @return the Future of the services of the snapshot, empty when there is no usable snapshot
+     */
+    public Future<List<Service>> load() {
+        Future<List<Service>> future = Future.future();
+        executor.<List<Service>>executeBlocking(blocking -> {
+            long start = System.nanoTime();
+            List<Service> loaded = new ArrayList<>();
+            try {
+                loaded = read();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Ignoring the registry snapshot " + path + ", cause : " + e);
+            }
+            LOGGER.info("Read " + loaded.size() + " services from the registry snapshot in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+            blocking.complete(loaded);
+        }, true, future);
+        return future;
+    }
+
+    private List<Service> read() throws IOException {
+        if (!Files.exists(path)) {
+            return new ArrayList<>();
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size " + size);
+            }
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int end = (int) size - TRAILER_SIZE;
+            CRC32 crc = new CRC32();
+            ByteBuffer checked = buffer.duplicate();
+            checked.limit(end + 4);
+            crc.update(checked);
+            if ((int) crc.getValue() != buffer.getInt(end + 4)) {
+                throw new IOException("Checksum mismatch");
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+                throw new IOException("Unknown format");
+            }
+            int count = buffer.getInt(end);
+            List<Service> loaded = new ArrayList<>(count);
+            StringReader strings = new StringReader();
+            while (buffer.position() < end) {
+                int pollInterval = buffer.getInt();
+                ServiceStatus status = ServiceStatus.valueOf(buffer.get());
+                long createdAt = buffer.getLong();
+                Service service = new Service(strings.read(buffer), strings.read(buffer), createdAt, status,
+                        pollInterval);
+                service.setOwner(strings.read(buffer));
+                service.setCheck(ServiceCheck.parse(strings.read(buffer)));
+                loaded.add(service);
+            }
+            if (loaded.size() != count) {
+                throw new IOException("Expected " + count + " services, read " + loaded.size());
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * Stream the service store into the registry, which already holds the services of the snapshot:
+     * the missing and changed services are put, the services of the snapshot which are not in the
+     * store any more are removed. The services removed through the HTTP API meanwhile are not brought
+     * back.
+     *
+     * @param loaded  the services of the snapshot
+     * @param store   the service store, the reference
+     * @param pollers the pollers of the changed services
+     */
+    public Future<Void> reconcile(List<Service> loaded, ServiceStore store, PollerShards pollers) {
+        Set<String> seen = new HashSet<>();
+        int[] changed = new int[1];
+        return store.scan(stream -> {
+            Future<Void> done = Future.future();
+            stream.handler(service -> {
+                seen.add(service.getKey());
+                if (services.isRemovedWhileLoading(service.getKey())
+                        || sameService(services.get(service.getKey()), service)) {
+                    return;
+                }
+                services.put(service);
+                pollers.schedule(service);
+                changed[0]++;
+            });
+            stream.exceptionHandler(done::tryFail);
+            stream.endHandler(v -> done.tryComplete());
+            return done;
+        }).map(v -> {
+            int removed = 0;
+            for (Service service : loaded) {
+                if (!seen.contains(service.getKey())) {
+                    services.remove(service.getKey());
+                    pollers.cancel(service.getKey());
+                    removed++;
+                }
+            }
+            LOGGER.info("Reconciled the registry with the store, put = " + changed[0] + ", removed = " + removed);
+            return null;
+        });
+    }
+
+    private static boolean sameService(Service current, Service stored) {
+        return current != null && Objects.equals(current.getName(), stored.getName())
+                && current.getCreatedAt() == stored.getCreatedAt()
+                && current.getStatus() == stored.getStatus()
+                && current.getPollInterval() == stored.getPollInterval()
+                && Objects.equals(current.getOwner(), stored.getOwner())
+                && current.getCheck().equals(stored.getCheck());
+    }
+
+    /**
+     * Write the snapshot periodically
+     */
+    public void start() {
+        timerId = vertx.setPeriodic(intervalMs, id -> save());
+    }
+
+    /**
+     * Write the registry, unless it did not change since the last write or it is still loading
+     *
+     * @return the Future completed once the snapshot is on disk
+     */
+    public Future<Void> save() {
+        long version = services.getVersion();
+        if (saving != null) {
+            return saving;
+        }
+        if (version == savedVersion || !services.isLoaded()) {
+            return Future.succeededFuture();
+        }
+        Future<Void> future = Future.future();
+        saving = future;
+        executor.<Integer>executeBlocking(blocking -> {
+            try {
+                blocking.complete(write());
+            } catch (IOException e) {
+                blocking.fail(e);
+            }
+        }, true, ar -> {
+            saving = null;
+            if (ar.succeeded()) {
+                savedVersion = version;
+                LOGGER.debug("Wrote " + ar.result() + " services to the registry snapshot");
+                future.complete();
+            } else {
+                LOGGER.error("Error while writing the registry snapshot " + path + ", cause : " + ar.cause());
+                future.fail(ar.cause());
+            }
+        });
+        return future;
+    }
+
+    private int write() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(file), 64 * 1024), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            // The registry is concurrent, the services added or removed meanwhile may or may not be
+            // written, the count is only known at the end
+            for (Service service : services.values()) {
+                out.writeInt(service.getPollInterval());
+                out.writeByte(service.getStatus().ordinal());
+                out.writeLong(service.getCreatedAt());
+                writeString(out, service.getName());
+                writeString(out, service.getUrl());
+                writeString(out, service.getOwner());
+                writeString(out, service.getCheck().encode());
+                count++;
+            }
+            out.writeInt(count);
+            out.flush();
+            ByteBuffer checksum = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+            checksum.flip();
+            while (checksum.hasRemaining()) {
+                file.write(checksum);
+            }
+            file.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Stop the periodic writes and write the registry a last time
+     *
+     * @return the Future completed once the snapshot is on disk
+     */
+    public Future<Void> stop() {
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+        Future<Void> future = Future.future();
+        // A periodic write may be running, it does not hold the latest changes
+        Future<Void> running = saving != null ? saving : Future.succeededFuture();
+        running.setHandler(previous -> save().setHandler(ar -> {
+            executor.close();
+            future.handle(ar);
+        }));
+        return future;
+    }
+
+    /**
+     * Decoder of the strings of the records, it reuses its buffer to save an allocation per string
+     */
+    private static final class StringReader {
+        private byte[] scratch = new byte[256];
+
+        private String read(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length == NULL_LENGTH) {
+                return null;
+            }
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -1,20 +1,64 @@
 package se.kry.codetest;
 
+import io.vertx.core.json.JsonObject;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A service of the registry. It is kept small since there may be millions of them: the status is
+ * an enum, the creation time is in epoch milliseconds, and the host key used by the probe pipeline
+ * is computed on the first probe and shared by all the services of the host, it is forgotten with
+ * the last of them. The database keeps the text representation of the status and of the creation
+ * time.
+ */
 public class Service {
 
+    public static final int DEFAULT_POLL_INTERVAL = 60;
+
+    private static final String TIME_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern(TIME_PATTERN).withZone(ZONE);
+    private static final char KEY_SEPARATOR = ' ';
+    // Weak keys and values, the entry of a host goes away with the last service holding its key
+    private static final Map<String, WeakReference<String>> HOST_KEYS = new WeakHashMap<>();
+
     private String name;
     private String url;
-    private String insertTm;
-    private String status;
+    private long createdAt;
+    private volatile ServiceStatus status = ServiceStatus.UNKNOWN;
+    private int pollInterval = DEFAULT_POLL_INTERVAL;
+    private String owner;
+    private ServiceCheck check = ServiceCheck.DEFAULT;
+    // Derived from the URL, racy but always the same value
+    private String hostKey;
 
     public Service() {
     }
 
     public Service(String name, String url, String insertTm, String status) {
+        this(name, url, insertTm, status, DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * Create a service from its database representation
+     */
+    public Service(String name, String url, String insertTm, String status, int pollInterval) {
+        this(name, url, parseTime(insertTm), ServiceStatus.parse(status), pollInterval);
+    }
+
+    public Service(String name, String url, long createdAt, ServiceStatus status, int pollInterval) {
         this.name = name;
         this.url = url;
-        this.insertTm = insertTm;
+        this.createdAt = createdAt;
         this.status = status;
+        this.pollInterval = pollInterval;
     }
 
     public String getName() {
@@ -31,32 +75,193 @@ public class Service {
 
     public void setUrl(String url) {
         this.url = url;
+        this.hostKey = null;
     }
 
-    public String getInsertTm() {
-        return insertTm;
+    /**
+     * @return the key of the service in the registry and the stores, see {@link #key(String, String)}
+     */
+    public String getKey() {
+        return key(owner, url);
     }
 
-    public void setInsertTm(String insertTm) {
-        this.insertTm = insertTm;
+    /**
+     * A URL is registered once per owner, the services are identified by their owner and URL. The
+     * owners and the URLs have no white space, the key is the URL for the services without owner
+     * and the owner and the URL separated by a space otherwise.
+     *
+     * @param owner the owner, null for the services without one
+     * @param url   the URL
+     * @return the key of the service
+     */
+    public static String key(String owner, String url) {
+        return owner == null ? url : owner + KEY_SEPARATOR + url;
     }
 
-    public String getStatus() {
+    /**
+     * @return the owner of the service of the key, null when it has none
+     */
+    public static String ownerOfKey(String key) {
+        int separator = key.indexOf(KEY_SEPARATOR);
+        return separator < 0 ? null : key.substring(0, separator);
+    }
+
+    /**
+     * @return the URL of the service of the key
+     */
+    public static String urlOfKey(String key) {
+        return key.substring(key.indexOf(KEY_SEPARATOR) + 1);
+    }
+
+    /**
+     * @return the creation time in epoch milliseconds
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public ServiceStatus getStatus() {
         return status;
     }
 
-    public void setStatus(String status) {
+    public void setStatus(ServiceStatus status) {
         this.status = status;
     }
 
+    /**
+     * @return the poll interval of the service in seconds
+     */
+    public int getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setPollInterval(int pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @return the owner of the service, null when it has none
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * The owner is indexed by the registry, it can only be set before the service is put in it
+     */
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return how the service is probed, {@link ServiceCheck#DEFAULT} unless it has a check of its own
+     */
+    public ServiceCheck getCheck() {
+        return check;
+    }
+
+    public void setCheck(ServiceCheck check) {
+        this.check = check == null ? ServiceCheck.DEFAULT : check;
+    }
+
+    /**
+     * @return the {@code host:port} of the URL, the same instance for every service of the host
+     */
+    public String getHostKey() {
+        String key = hostKey;
+        if (key == null) {
+            key = intern(ProbePipeline.hostKey(url));
+            hostKey = key;
+        }
+        return key;
+    }
+
+    private static String intern(String key) {
+        synchronized (HOST_KEYS) {
+            WeakReference<String> reference = HOST_KEYS.get(key);
+            String shared = reference == null ? null : reference.get();
+            if (shared == null) {
+                HOST_KEYS.put(key, new WeakReference<>(key));
+                return key;
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * @return the JSON representation of the service used by the HTTP API
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject()
+                .put("name", name)
+                .put("url", url)
+                .put("status", status.name())
+                .put("pollInterval", pollInterval);
+        if (owner != null) {
+            json.put("owner", owner);
+        }
+        if (check != ServiceCheck.DEFAULT) {
+            json.put("check", check.toJson());
+        }
+        return json;
+    }
+
+    /**
+     * @param epochMillis the time in epoch milliseconds
+     * @return the time as stored in the database, in the local time zone
+     */
+    public static String formatTime(long epochMillis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * @param time the time as stored in the database
+     * @return the time in epoch milliseconds, 0 when it is missing or not valid
+     */
+    public static long parseTime(String time) {
+        if (time == null || time.isEmpty()) {
+            return 0;
+        }
+        try {
+            // The fixed layout is read directly, the formatter is much slower for a million rows
+            LocalDateTime local = time.length() == TIME_PATTERN.length() && time.charAt(4) == '-'
+                    && time.charAt(7) == '-' && time.charAt(10) == ' ' && time.charAt(13) == ':'
+                    && time.charAt(16) == ':' && time.charAt(19) == '.'
+                    ? LocalDateTime.of(digits(time, 0, 4), digits(time, 5, 7), digits(time, 8, 10),
+                    digits(time, 11, 13), digits(time, 14, 16), digits(time, 17, 19), digits(time, 20, 23) * 1000000)
+                    : LocalDateTime.parse(time, TIME_FORMAT);
+            return local.atZone(ZONE).toInstant().toEpochMilli();
+        } catch (DateTimeException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int digits(String text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(text);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
     @Override
     public String toString() {
         return "Service{" +
                 "name='" + name + '\'' +
                 ", url='" + url + '\'' +
-                ", insertTm='" + insertTm + '\'' +
-                ", status='" + status + '\'' +
+                ", createdAt=" + createdAt +
+                ", status=" + status +
+                ", pollInterval=" + pollInterval +
+                ", owner='" + owner + '\'' +
+                ", check=" + check +
                 '}';
     }
 }
-
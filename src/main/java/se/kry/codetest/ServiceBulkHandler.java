@@ -0,0 +1,414 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.ext.web.RoutingContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bulk import and export of the services.
+ * <p>
+ * {@code POST /services/bulk} reads the body as it arrives, one service per line, either NDJSON
+ * ({@code {"url": ..., "name": ..., "pollInterval": ...}}) or CSV ({@code url,name,pollInterval} with an
+ * optional header) when the content type is {@code text/csv}. Every line is validated and
+ * deduplicated on its own, a line needs a valid URL and a name, the valid ones are inserted in
+ * batched transactions. The response is an NDJSON stream with the result of every line, followed
+ * by a summary line. The {@link ServiceCheck} of a service is only in the NDJSON lines, the CSV
+ * services get the default check. The services are imported for the owner of the request, the
+ * {@code owner} of the lines is ignored, and the lines beyond the quota of the owner are rejected.
+ * <p>
+ * {@code GET /services/export} streams the services of the owner of the request from the service
+ * store as NDJSON, or as CSV with {@code format=csv}; both can be imported again.
+ */
+public class ServiceBulkHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceBulkHandler.class);
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String CSV = "text/csv";
+    private static final String CSV_HEADER = "url,name,pollInterval,status,created,owner";
+
+    private final Vertx vertx;
+    private final ServiceRegistry services;
+    private final ServiceStore store;
+    private final PollerShards pollers;
+    private final int maxServices;
+
+    /**
+     * @param maxServices the maximum number of services of an owner
+     */
+    public ServiceBulkHandler(Vertx vertx, ServiceRegistry services, ServiceStore store, PollerShards pollers,
+                              int maxServices) {
+        this.vertx = vertx;
+        this.services = services;
+        this.store = store;
+        this.pollers = pollers;
+        this.maxServices = maxServices;
+    }
+
+    /**
+     * Handler of {@code POST /services/bulk}, it must be registered before the body handler
+     *
+     * @param context the routing context
+     */
+    public void importServices(RoutingContext context) {
+        String contentType = context.request().getHeader("content-type");
+        new Import(context, contentType != null && contentType.startsWith(CSV)).start();
+    }
+
+    /**
+     * Handler of {@code GET /services/export}
+     *
+     * @param context the routing context
+     */
+    public void exportServices(RoutingContext context) {
+        boolean csv = "csv".equals(context.request().getParam("format"));
+        String owner = HttpVerticle.ownerOf(context);
+        HttpServerResponse response = context.response();
+        response.setChunked(true).putHeader("content-type", csv ? CSV : NDJSON);
+        if (csv) {
+            response.write(CSV_HEADER + "\n");
+        }
+        store.scan(owner, stream -> {
+            Future<Void> done = Future.future();
+            response.closeHandler(v -> done.tryComplete());
+            stream.exceptionHandler(e -> {
+                LOGGER.error("Error while exporting the services, cause : " + e);
+                done.tryFail(e);
+            });
+            stream.handler(service -> {
+                response.write(csv ? toCsv(service) : toJson(service));
+                if (response.writeQueueFull()) {
+                    stream.pause();
+                    response.drainHandler(v -> stream.resume());
+                }
+            });
+            stream.endHandler(v -> done.tryComplete());
+            return done;
+        }).setHandler(ar -> {
+            if (response.closed() || response.ended()) {
+                return;
+            }
+            if (ar.succeeded()) {
+                response.end();
+            } else {
+                // The status line is gone already, the client can only notice the broken stream
+                response.close();
+            }
+        });
+    }
+
+    private static String toJson(Service service) {
+        JsonObject json = new JsonObject()
+                .put("url", service.getUrl())
+                .put("name", service.getName())
+                .put("pollInterval", service.getPollInterval())
+                .put("status", service.getStatus().name())
+                .put("created", Service.formatTime(service.getCreatedAt()))
+                .put("owner", service.getOwner());
+        if (service.getCheck() != ServiceCheck.DEFAULT) {
+            json.put("check", service.getCheck().toJson());
+        }
+        return json.encode() + "\n";
+    }
+
+    private static String toCsv(Service service) {
+        return csvField(service.getUrl()) + ',' + csvField(service.getName()) + ',' + service.getPollInterval()
+                + ',' + csvField(service.getStatus().name()) + ','
+                + csvField(Service.formatTime(service.getCreatedAt())) + ','
+                + csvField(service.getOwner()) + "\n";
+    }
+
+    private static String csvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Split one CSV line, fields may be quoted with doubled quotes inside
+     */
+    static List<String> parseCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * One running import. The parser is paused while a batch is inserted or while the client does
+     * not read the report, so neither the body nor the report pile up in memory.
+     */
+    private final class Import {
+        private final RoutingContext context;
+        private final HttpServerResponse response;
+        private final boolean csv;
+        private final String owner;
+        private final Set<String> seen = new HashSet<>();
+        private List<Row> batch = new ArrayList<>();
+        private RecordParser parser;
+        private int lineNumber;
+        private int created;
+        private int duplicates;
+        private int errors;
+        private boolean inserting;
+        private boolean ended;
+
+        private Import(RoutingContext context, boolean csv) {
+            this.context = context;
+            this.response = context.response();
+            this.csv = csv;
+            this.owner = HttpVerticle.ownerOf(context);
+        }
+
+        private void start() {
+            response.setChunked(true).putHeader("content-type", NDJSON);
+            response.drainHandler(v -> resume());
+            parser = RecordParser.newDelimited("\n", context.request()).maxRecordSize(MAX_LINE_LENGTH);
+            parser.exceptionHandler(e -> {
+                LOGGER.info("Bulk import aborted at line " + (lineNumber + 1) + ", cause : " + e.getMessage());
+                report(new JsonObject().put("line", lineNumber + 1).put("result", "error")
+                        .put("error", "line too long or broken upload"));
+                errors++;
+                ended = true;
+                insert();
+            });
+            parser.endHandler(v -> {
+                ended = true;
+                insert();
+            });
+            parser.handler(this::line);
+        }
+
+        private void line(Buffer buffer) {
+            lineNumber++;
+            String text = buffer.toString(StandardCharsets.UTF_8).trim();
+            if (text.isEmpty() || (csv && lineNumber == 1 && text.toLowerCase().startsWith("url"))) {
+                return;
+            }
+            Row row;
+            try {
+                row = csv ? fromCsv(text) : fromJson(text);
+            } catch (IllegalArgumentException | DecodeException | ClassCastException e) {
+                error(lineNumber, null, "malformed line");
+                return;
+            }
+            if (row.url == null || !HttpVerticle.isValidUrl(row.url)) {
+                error(lineNumber, row.url, "invalid url");
+                return;
+            }
+            if (row.name == null || row.name.trim().isEmpty()) {
+                error(lineNumber, row.url, "invalid name");
+                return;
+            }
+            if (row.pollInterval < HttpVerticle.MIN_POLL_INTERVAL || row.pollInterval > HttpVerticle.MAX_POLL_INTERVAL) {
+                error(lineNumber, row.url, "invalid poll interval");
+                return;
+            }
+            if (!seen.add(row.url) || services.containsKey(Service.key(owner, row.url))) {
+                duplicates++;
+                report(new JsonObject().put("line", lineNumber).put("url", row.url).put("result", "duplicate"));
+                return;
+            }
+            // The rows of the batch hold their slot until they are inserted
+            if (!services.reserve(owner, maxServices)) {
+                error(lineNumber, row.url, "quota exceeded");
+                return;
+            }
+            row.line = lineNumber;
+            batch.add(row);
+            if (batch.size() >= BATCH_SIZE) {
+                insert();
+            }
+        }
+
+        private Row fromJson(String text) {
+            JsonObject json = new JsonObject(text);
+            return new Row(json.getString("url"), json.getString("name"),
+                    json.getInteger("pollInterval", Service.DEFAULT_POLL_INTERVAL),
+                    ServiceCheck.fromJson(json.getJsonObject("check")));
+        }
+
+        private Row fromCsv(String text) {
+            List<String> fields = parseCsv(text);
+            String name = fields.size() > 1 ? fields.get(1) : null;
+            int pollInterval = fields.size() > 2 && !fields.get(2).isEmpty()
+                    ? Integer.parseInt(fields.get(2)) : Service.DEFAULT_POLL_INTERVAL;
+            // The columns of the export, the status, the creation time and the owner, are not imported
+            return new Row(fields.get(0), name, pollInterval, ServiceCheck.DEFAULT);
+        }
+
+        /**
+         * Insert the current batch in one transaction; when it fails, e.g. because another request
+         * added one of the URLs meanwhile, the rows are inserted one by one to report each of them
+         */
+        private void insert() {
+            if (inserting) {
+                return;
+            }
+            if (batch.isEmpty()) {
+                if (ended) {
+                    finish();
+                }
+                return;
+            }
+            List<Row> rows = batch;
+            batch = new ArrayList<>();
+            inserting = true;
+            parser.pause();
+            long createdAt = System.currentTimeMillis();
+            List<Service> added = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                added.add(toService(row, createdAt));
+            }
+            store.insert(added).setHandler(ar -> {
+                if (ar.succeeded()) {
+                    for (int i = 0; i < rows.size(); i++) {
+                        added(rows.get(i), added.get(i));
+                    }
+                    inserted();
+                } else {
+                    LOGGER.info("Bulk insert of " + rows.size() + " services failed, inserting one by one, cause : "
+                            + ar.cause());
+                    insertEach(rows, added, 0);
+                }
+            });
+        }
+
+        private void insertEach(List<Row> rows, List<Service> added, int index) {
+            if (index == rows.size()) {
+                inserted();
+                return;
+            }
+            Row row = rows.get(index);
+            Service service = added.get(index);
+            store.insert(Collections.singletonList(service)).setHandler(ar -> {
+                if (ar.succeeded()) {
+                    added(row, service);
+                } else if (services.containsKey(service.getKey())) {
+                    services.release(owner);
+                    duplicates++;
+                    report(new JsonObject().put("line", row.line).put("url", row.url).put("result", "duplicate"));
+                } else {
+                    services.release(owner);
+                    LOGGER.error("Error while saving URL :" + row.url + " to DB, cause : " + ar.cause());
+                    error(row.line, row.url, "database error");
+                }
+                insertEach(rows, added, index + 1);
+            });
+        }
+
+        private Service toService(Row row, long createdAt) {
+            Service service = new Service(row.name, row.url, createdAt, HttpVerticle.SERVICE_DEFAULT_STATUS,
+                    row.pollInterval);
+            service.setOwner(owner);
+            service.setCheck(row.check);
+            return service;
+        }
+
+        private void added(Row row, Service service) {
+            services.put(service);
+            services.release(owner);
+            pollers.schedule(service);
+            ServiceEventStream.publishAdded(vertx, service);
+            created++;
+            report(new JsonObject().put("line", row.line).put("url", row.url).put("result", "created"));
+        }
+
+        private void inserted() {
+            inserting = false;
+            if (ended || batch.size() >= BATCH_SIZE) {
+                insert();
+            } else {
+                resume();
+            }
+        }
+
+        private void resume() {
+            if (!inserting && !ended && !response.writeQueueFull()) {
+                parser.resume();
+            }
+        }
+
+        private void error(int line, String url, String message) {
+            errors++;
+            report(new JsonObject().put("line", line).put("url", url).put("result", "error").put("error", message));
+        }
+
+        private void report(JsonObject result) {
+            if (response.closed()) {
+                return;
+            }
+            response.write(result.encode() + "\n");
+            if (response.writeQueueFull()) {
+                parser.pause();
+            }
+        }
+
+        private void finish() {
+            LOGGER.info("Bulk import done, created = " + created + ", duplicates = " + duplicates
+                    + ", errors = " + errors);
+            if (!response.closed() && !response.ended()) {
+                response.end(new JsonObject().put("summary", new JsonObject()
+                        .put("lines", lineNumber)
+                        .put("created", created)
+                        .put("duplicates", duplicates)
+                        .put("errors", errors)).encode() + "\n");
+            }
+        }
+    }
+
+    private static final class Row {
+        private final String url;
+        private final String name;
+        private final int pollInterval;
+        private final ServiceCheck check;
+        private int line;
+
+        private Row(String url, String name, int pollInterval, ServiceCheck check) {
+            this.url = url;
+            this.name = name;
+            this.pollInterval = pollInterval;
+            this.check = check;
+        }
+    }
+}
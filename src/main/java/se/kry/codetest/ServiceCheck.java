@@ -0,0 +1,285 @@
+package se.kry.codetest;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How a service is probed and when it is healthy: the HTTP method ({@code GET} or {@code HEAD}), the
+ * accepted status codes and optionally a text the body must contain within its first
+ * {@code bodyLimit} bytes. It is immutable, the services with the same check share one instance and
+ * the services without a check of their own share {@link #DEFAULT}, a {@code GET} answered with 200.
+ * <p>
+ * The JSON representation is
+ * {@code {"method": "GET", "status": [200, "300-399", "5xx"], "bodyContains": "UP", "bodyLimit": 4096}},
+ * every field is optional.
+ */
+public final class ServiceCheck {
+
+    public static final int DEFAULT_BODY_LIMIT = 4096;
+    public static final int MAX_BODY_LIMIT = 1024 * 1024;
+    public static final ServiceCheck DEFAULT = new ServiceCheck(HttpMethod.GET, new int[]{200, 200}, null,
+            DEFAULT_BODY_LIMIT);
+    /**
+     * The cheap probe of a service with an open circuit, any answer will do
+     */
+    static final ServiceCheck TRIAL = new ServiceCheck(HttpMethod.HEAD, new int[]{100, 599}, null,
+            DEFAULT_BODY_LIMIT);
+
+    private static final ConcurrentMap<ServiceCheck, ServiceCheck> SHARED = new ConcurrentHashMap<>();
+
+    private final HttpMethod method;
+    // Pairs of inclusive bounds
+    private final int[] statusRanges;
+    private final String bodyContains;
+    private final int bodyLimit;
+    private final byte[] needle;
+    // Knuth-Morris-Pratt table: the length of the longest proper prefix of needle[0..i] which is also its suffix
+    private final int[] fallback;
+    // Computed on first use, racy but always the same value
+    private String encoded;
+
+    private ServiceCheck(HttpMethod method, int[] statusRanges, String bodyContains, int bodyLimit) {
+        this.method = method;
+        this.statusRanges = statusRanges;
+        this.bodyContains = bodyContains;
+        this.bodyLimit = bodyLimit;
+        if (bodyContains == null) {
+            needle = null;
+            fallback = null;
+        } else {
+            needle = bodyContains.getBytes(StandardCharsets.UTF_8);
+            fallback = new int[needle.length];
+            for (int i = 1, k = 0; i < needle.length; i++) {
+                while (k > 0 && needle[i] != needle[k]) {
+                    k = fallback[k - 1];
+                }
+                if (needle[i] == needle[k]) {
+                    k++;
+                }
+                fallback[i] = k;
+            }
+        }
+    }
+
+    /**
+     * @param json the JSON representation, null for the default check
+     * @return the check, shared with the services having the same one
+     * @throws IllegalArgumentException when the check is not valid
+     */
+    public static ServiceCheck fromJson(JsonObject json) {
+        if (json == null || json.isEmpty()) {
+            return DEFAULT;
+        }
+        try {
+            HttpMethod method = HttpMethod.valueOf(json.getString("method", "GET").toUpperCase());
+            if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+                throw new IllegalArgumentException("Unsupported check method : " + method);
+            }
+            JsonArray status = json.getJsonArray("status");
+            int[] ranges = status == null ? DEFAULT.statusRanges : parseRanges(status);
+            String bodyContains = json.getString("bodyContains");
+            int bodyLimit = json.getInteger("bodyLimit", DEFAULT_BODY_LIMIT);
+            if (bodyLimit < 1 || bodyLimit > MAX_BODY_LIMIT) {
+                throw new IllegalArgumentException("Invalid check body limit : " + bodyLimit);
+            }
+            if (bodyContains != null && (bodyContains.isEmpty() || method == HttpMethod.HEAD
+                    || bodyContains.getBytes(StandardCharsets.UTF_8).length > bodyLimit)) {
+                throw new IllegalArgumentException("Invalid check body assertion : " + bodyContains);
+            }
+            ServiceCheck check = new ServiceCheck(method, ranges, bodyContains, bodyLimit);
+            if (check.equals(DEFAULT)) {
+                return DEFAULT;
+            }
+            ServiceCheck shared = SHARED.putIfAbsent(check, check);
+            return shared != null ? shared : check;
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid check : " + json.encode(), e);
+        }
+    }
+
+    /**
+     * @param text the JSON representation as stored, null for the default check
+     */
+    public static ServiceCheck parse(String text) {
+        if (text == null || text.isEmpty()) {
+            return DEFAULT;
+        }
+        try {
+            return fromJson(new JsonObject(text));
+        } catch (DecodeException e) {
+            throw new IllegalArgumentException("Invalid check : " + text, e);
+        }
+    }
+
+    private static int[] parseRanges(JsonArray status) {
+        if (status.isEmpty()) {
+            throw new IllegalArgumentException("No accepted status in the check");
+        }
+        int[] ranges = new int[status.size() * 2];
+        for (int i = 0; i < status.size(); i++) {
+            Object value = status.getValue(i);
+            String range = String.valueOf(value).trim();
+            int low;
+            int high;
+            try {
+                if (value instanceof Integer) {
+                    low = high = (Integer) value;
+                } else if (range.length() == 3 && range.substring(1).equalsIgnoreCase("xx")) {
+                    low = Integer.parseInt(range.substring(0, 1)) * 100;
+                    high = low + 99;
+                } else if (range.indexOf('-') > 0) {
+                    low = Integer.parseInt(range.substring(0, range.indexOf('-')).trim());
+                    high = Integer.parseInt(range.substring(range.indexOf('-') + 1).trim());
+                } else {
+                    low = high = Integer.parseInt(range);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid status range : " + range, e);
+            }
+            if (low < 100 || high > 599 || low > high) {
+                throw new IllegalArgumentException("Invalid status range : " + range);
+            }
+            ranges[2 * i] = low;
+            ranges[2 * i + 1] = high;
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the JSON representation, null for the default check
+     */
+    public JsonObject toJson() {
+        if (this == DEFAULT) {
+            return null;
+        }
+        JsonArray status = new JsonArray();
+        for (int i = 0; i < statusRanges.length; i += 2) {
+            status.add(statusRanges[i] == statusRanges[i + 1] ? String.valueOf(statusRanges[i])
+                    : statusRanges[i] + "-" + statusRanges[i + 1]);
+        }
+        JsonObject json = new JsonObject().put("method", method.name()).put("status", status);
+        if (bodyContains != null) {
+            json.put("bodyContains", bodyContains).put("bodyLimit", bodyLimit);
+        }
+        return json;
+    }
+
+    /**
+     * @return the JSON representation as stored, null for the default check
+     */
+    public String encode() {
+        if (this == DEFAULT) {
+            return null;
+        }
+        String text = encoded;
+        if (text == null) {
+            text = toJson().encode();
+            encoded = text;
+        }
+        return text;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public String getBodyContains() {
+        return bodyContains;
+    }
+
+    public int getBodyLimit() {
+        return bodyLimit;
+    }
+
+    public boolean accepts(int statusCode) {
+        for (int i = 0; i < statusRanges.length; i += 2) {
+            if (statusCode >= statusRanges[i] && statusCode <= statusRanges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasBodyAssertion() {
+        return needle != null;
+    }
+
+    /**
+     * @return a matcher of the body assertion for one response, only for a check with one
+     */
+    BodyMatcher newMatcher() {
+        return new BodyMatcher();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServiceCheck)) {
+            return false;
+        }
+        ServiceCheck other = (ServiceCheck) o;
+        return method == other.method && bodyLimit == other.bodyLimit
+                && Arrays.equals(statusRanges, other.statusRanges)
+                && Objects.equals(bodyContains, other.bodyContains);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(method, Arrays.hashCode(statusRanges), bodyContains, bodyLimit);
+    }
+
+    @Override
+    public String toString() {
+        return this == DEFAULT ? "default" : toJson().encode();
+    }
+
+    /**
+     * Incremental search of the text in the body as its chunks arrive, nothing of the body is kept:
+     * the state is the length of the text matched so far and the number of bytes read.
+     */
+    final class BodyMatcher {
+        private int matched;
+        private int read;
+
+        /**
+         * @param chunk the next chunk of the body
+         * @return true once the text was found within the limit
+         */
+        boolean feed(Buffer chunk) {
+            int length = Math.min(chunk.length(), bodyLimit - read);
+            for (int i = 0; i < length && matched < needle.length; i++) {
+                byte b = chunk.getByte(i);
+                while (matched > 0 && b != needle[matched]) {
+                    matched = fallback[matched - 1];
+                }
+                if (b == needle[matched]) {
+                    matched++;
+                }
+            }
+            read += length;
+            return isFound();
+        }
+
+        boolean isFound() {
+            return matched == needle.length;
+        }
+
+        /**
+         * @return true when the limit is reached, the rest of the body does not matter
+         */
+        boolean isExhausted() {
+            return read >= bodyLimit;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Streams the service changes published on the event bus to the browsers as server-sent events.
+ * Only the changes are sent, the client loads the full list whenever it (re)connects. Every client
+ * has its own buffer in which the changes are coalesced per service while the connection can not
+ * take more data; when a client falls too far behind its buffer is dropped and it is asked to
+ * reload the list instead.
+ * A client only gets the changes of the services of its owner, see {@link HttpVerticle#ownerOf}.
+ * All the methods must be called from the owning event loop.
+ */
+public class ServiceEventStream {
+
+    /**
+     * The event bus address of the service changes
+     */
+    public static final String ADDRESS = "service.changes";
+    /**
+     * The id of this node, every change carries the {@code node} it was made on
+     */
+    public static final String NODE = UUID.randomUUID().toString();
+    public static final String TYPE_ADDED = "added";
+    public static final String TYPE_DELETED = "deleted";
+    public static final String TYPE_STATUS = "status";
+    private static final String TYPE_RESYNC = "resync";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceEventStream.class);
+    private static final long HEARTBEAT_INTERVAL = 15 * 1000;
+    private static final int DEFAULT_MAX_PENDING = 10000;
+
+    private final Vertx vertx;
+    private final int maxPending;
+    private final Set<Client> clients = new HashSet<>();
+    private final Map<String, Set<Client>> clientsByOwner = new HashMap<>();
+    private final MessageConsumer<JsonObject> consumer;
+    private final long heartbeatTimerId;
+
+    public ServiceEventStream(Vertx vertx) {
+        this(vertx, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param vertx      the vertx instance
+     * @param maxPending the number of changes buffered for a slow client before it has to resync
+     */
+    public ServiceEventStream(Vertx vertx, int maxPending) {
+        this.vertx = vertx;
+        this.maxPending = maxPending;
+        this.consumer = vertx.eventBus().consumer(ADDRESS, message -> dispatch(message.body()));
+        this.heartbeatTimerId = vertx.setPeriodic(HEARTBEAT_INTERVAL, id ->
+                clients.forEach(client -> {
+                    if (!client.response.writeQueueFull()) {
+                        client.response.write(":\n\n");
+                    }
+                }));
+    }
+
+    /**
+     * Publish a change of a service to every connected client of its owner
+     *
+     * @param vertx  the vertx instance
+     * @param type   the type of the change
+     * @param url    the URL of the service
+     * @param status the status of the service
+     * @param owner  the owner of the service, null when it has none
+     */
+    public static void publish(Vertx vertx, String type, String url, String status, String owner) {
+        JsonObject change = new JsonObject().put("type", type).put("url", url).put("status", status);
+        if (owner != null) {
+            change.put("owner", owner);
+        }
+        publish(vertx, change);
+    }
+
+    /**
+     * Publish a status change of a service, with its name and previous status for the notifications
+     */
+    public static void publishStatus(Vertx vertx, Service service, ServiceStatus previous) {
+        JsonObject change = new JsonObject().put("type", TYPE_STATUS).put("url", service.getUrl())
+                .put("status", service.getStatus().name()).put("previous", previous.name())
+                .put("name", service.getName());
+        if (service.getOwner() != null) {
+            change.put("owner", service.getOwner());
+        }
+        publish(vertx, change);
+    }
+
+    /**
+     * Publish a new service, with its creation time so that the other nodes can add it as it is
+     */
+    public static void publishAdded(Vertx vertx, Service service) {
+        publish(vertx, service.toJson().put("type", TYPE_ADDED).put("created", service.getCreatedAt()));
+    }
+
+    /**
+     * @param change the change, with the {@code owner} of the service unless it has none
+     */
+    public static void publish(Vertx vertx, JsonObject change) {
+        vertx.eventBus().publish(ADDRESS, change.put("node", NODE));
+    }
+
+    /**
+     * Route handler opening the event stream
+     *
+     * @param context the routing context
+     */
+    public void handle(RoutingContext context) {
+        HttpServerResponse response = context.response();
+        response.setChunked(true)
+                .putHeader("content-type", "text/event-stream")
+                .putHeader("cache-control", "no-cache")
+                .putHeader("connection", "keep-alive")
+                // Compressed streams are buffered by the encoder, the events must go out as they come
+                .putHeader("content-encoding", "identity")
+                .write("retry: 5000\n\n");
+        Client client = new Client(response);
+        String owner = HttpVerticle.ownerOf(context);
+        clients.add(client);
+        clientsByOwner.computeIfAbsent(owner, key -> new HashSet<>()).add(client);
+        response.closeHandler(v -> {
+            clients.remove(client);
+            Set<Client> ownerClients = clientsByOwner.get(owner);
+            if (ownerClients != null && ownerClients.remove(client) && ownerClients.isEmpty()) {
+                clientsByOwner.remove(owner);
+            }
+        });
+        response.drainHandler(v -> client.flush());
+        LOGGER.debug("Event stream client connected, clients = " + clients.size());
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    private void dispatch(JsonObject change) {
+        Set<Client> ownerClients = clientsByOwner.get(change.getString("owner"));
+        if (ownerClients != null) {
+            for (Client client : ownerClients) {
+                client.offer(change);
+            }
+        }
+    }
+
+    public void stop() {
+        consumer.unregister();
+        vertx.cancelTimer(heartbeatTimerId);
+        clients.forEach(client -> client.response.end());
+        clients.clear();
+        clientsByOwner.clear();
+    }
+
+    private final class Client {
+        private final HttpServerResponse response;
+        private final Map<String, JsonObject> pending = new LinkedHashMap<>();
+        private boolean resync;
+
+        private Client(HttpServerResponse response) {
+            this.response = response;
+        }
+
+        private void offer(JsonObject change) {
+            if (resync) {
+                return;
+            }
+            String key = Service.key(change.getString("owner"), change.getString("url"));
+            JsonObject previous = pending.get(key);
+            if (previous != null && TYPE_ADDED.equals(previous.getString("type"))
+                    && TYPE_STATUS.equals(change.getString("type"))) {
+                // The client has not seen the service yet, send it once with the latest status
+                pending.put(key, previous.copy().put("status", change.getString("status")));
+            } else {
+                pending.remove(key);
+                pending.put(key, change);
+            }
+            if (pending.size() > maxPending) {
+                pending.clear();
+                resync = true;
+            }
+            flush();
+        }
+
+        private void flush() {
+            if (resync && !response.writeQueueFull()) {
+                resync = false;
+                write(TYPE_RESYNC, "{}");
+            }
+            Iterator<JsonObject> it = pending.values().iterator();
+            while (it.hasNext() && !response.writeQueueFull()) {
+                JsonObject change = it.next();
+                it.remove();
+                write(change.getString("type"), change.encode());
+            }
+        }
+
+        private void write(String event, String data) {
+            response.write("event: " + event + "\ndata: " + data + "\n\n");
+        }
+    }
+}
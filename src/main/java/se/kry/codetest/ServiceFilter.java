@@ -0,0 +1,66 @@
+package se.kry.codetest;
+
+/**
+ * The criteria of a filtered read of the registry, all of them optional. A service matches when it
+ * matches every criterion which is set.
+ */
+public final class ServiceFilter {
+
+    private final ServiceStatus status;
+    private final String namePrefix;
+    private final String hostPrefix;
+    private final String owner;
+    private final long createdAfter;
+
+    /**
+     * @param status       the status, null for any
+     * @param namePrefix   the prefix of the name, null for any
+     * @param hostPrefix   the prefix of the {@code host:port} of the URL, case insensitive, null for any
+     * @param owner        the owner, null for any
+     * @param createdAfter the creation time in epoch milliseconds the services are created after,
+     *                     {@code Long.MIN_VALUE} for any
+     */
+    public ServiceFilter(ServiceStatus status, String namePrefix, String hostPrefix, String owner, long createdAfter) {
+        this.status = status;
+        this.namePrefix = namePrefix;
+        this.hostPrefix = hostPrefix == null ? null : hostPrefix.toLowerCase();
+        this.owner = owner;
+        this.createdAfter = createdAfter;
+    }
+
+    public ServiceStatus getStatus() {
+        return status;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public String getHostPrefix() {
+        return hostPrefix;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getCreatedAfter() {
+        return createdAfter;
+    }
+
+    /**
+     * @return true when no criterion is set
+     */
+    public boolean isEmpty() {
+        return status == null && namePrefix == null && hostPrefix == null && owner == null
+                && createdAfter == Long.MIN_VALUE;
+    }
+
+    public boolean matches(Service service) {
+        return (status == null || service.getStatus() == status)
+                && (namePrefix == null || service.getName() != null && service.getName().startsWith(namePrefix))
+                && (hostPrefix == null || service.getHostKey().startsWith(hostPrefix))
+                && (owner == null || owner.equals(service.getOwner()))
+                && service.getCreatedAt() > createdAfter;
+    }
+}
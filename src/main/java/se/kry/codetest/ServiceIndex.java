@@ -0,0 +1,207 @@
+package se.kry.codetest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Secondary indexes of a partition of the {@link ServiceRegistry}: the services by status, by host,
+ * by name and by creation time. They are updated with every change of the registry, so a filtered
+ * read only visits the services of the most selective criterion instead of the whole partition.
+ * The registry is partitioned by owner, there is no owner index.
+ * <p>
+ * Not thread safe, the registry updates and reads it under the lock of the partition.
+ */
+final class ServiceIndex {
+
+    private static final Comparator<Service> BY_NAME = (a, b) -> {
+        int byName = a.getName().compareTo(b.getName());
+        return byName != 0 ? byName : a.getUrl().compareTo(b.getUrl());
+    };
+    private static final Comparator<Service> BY_CREATION = (a, b) -> {
+        int byTime = Long.compare(a.getCreatedAt(), b.getCreatedAt());
+        return byTime != 0 ? byTime : a.getUrl().compareTo(b.getUrl());
+    };
+
+    private final Map<ServiceStatus, ServiceSet> byStatus = new EnumMap<>(ServiceStatus.class);
+    private final NavigableMap<String, ServiceSet> byHost = new TreeMap<>();
+    // The services without a name are not in the name index, they never match a name prefix
+    private final NavigableSet<Service> byName = new TreeSet<>(BY_NAME);
+    private final NavigableSet<Service> byCreation = new TreeSet<>(BY_CREATION);
+
+    ServiceIndex() {
+        for (ServiceStatus status : ServiceStatus.values()) {
+            byStatus.put(status, new ServiceSet());
+        }
+    }
+
+    void add(Service service) {
+        byStatus.get(service.getStatus()).add(service);
+        byHost.computeIfAbsent(service.getHostKey(), host -> new ServiceSet()).add(service);
+        if (service.getName() != null) {
+            byName.add(service);
+        }
+        byCreation.add(service);
+    }
+
+    void remove(Service service) {
+        byStatus.get(service.getStatus()).remove(service);
+        removeFromBucket(byHost, service.getHostKey(), service);
+        if (service.getName() != null) {
+            byName.remove(service);
+        }
+        byCreation.remove(service);
+    }
+
+    private static void removeFromBucket(Map<String, ServiceSet> index, String key, Service service) {
+        ServiceSet bucket = index.get(key);
+        if (bucket != null) {
+            bucket.remove(service);
+            if (bucket.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    int size() {
+        return byCreation.size();
+    }
+
+    /**
+     * @return all the services, by creation time
+     */
+    List<Service> all() {
+        return new ArrayList<>(byCreation);
+    }
+
+    /**
+     * Move a service, whose status was already changed, to the bucket of its new status
+     *
+     * @param service  the service
+     * @param previous the status it had
+     */
+    void changeStatus(Service service, ServiceStatus previous) {
+        if (previous != service.getStatus()) {
+            byStatus.get(previous).remove(service);
+            byStatus.get(service.getStatus()).add(service);
+        }
+    }
+
+    /**
+     * Find the services matching a filter. The index of every criterion is a candidate list, the
+     * shortest one is scanned and its services are checked against the other criteria. The length of
+     * a range of a sorted index is not known up front, it is counted up to the shortest length found
+     * so far, so the cost stays proportional to the shortest candidate list.
+     *
+     * @param filter the filter
+     * @return the matching services, in no particular order
+     */
+    List<Service> find(ServiceFilter filter) {
+        Scan best = null;
+        int bestSize = Integer.MAX_VALUE;
+        if (filter.getStatus() != null) {
+            ServiceSet bucket = byStatus.get(filter.getStatus());
+            best = scan(bucket);
+            bestSize = bucket.size();
+        }
+        List<Scan> ranges = new ArrayList<>();
+        if (filter.getNamePrefix() != null) {
+            ranges.add(namesStartingWith(filter.getNamePrefix()));
+        }
+        if (filter.getHostPrefix() != null) {
+            ranges.add(hostsStartingWith(filter.getHostPrefix()));
+        }
+        if (filter.getCreatedAfter() != Long.MIN_VALUE) {
+            ranges.add(createdAfter(filter.getCreatedAfter()));
+        }
+        for (Scan range : ranges) {
+            int size = count(range, bestSize);
+            if (size < bestSize) {
+                best = range;
+                bestSize = size;
+            }
+        }
+        if (best == null) {
+            // No indexed criterion, e.g. only the owner of the partition
+            best = createdAfter(Long.MIN_VALUE);
+        }
+        List<Service> matches = new ArrayList<>();
+        best.forEach(service -> {
+            if (filter.matches(service)) {
+                matches.add(service);
+            }
+            return true;
+        });
+        return matches;
+    }
+
+    private static Scan scan(ServiceSet bucket) {
+        return action -> {
+            for (Service service : bucket) {
+                if (!action.test(service)) {
+                    return;
+                }
+            }
+        };
+    }
+
+    private Scan namesStartingWith(String prefix) {
+        Service from = new Service(prefix, "", 0, ServiceStatus.UNKNOWN, 0);
+        return action -> {
+            for (Service service : byName.tailSet(from, true)) {
+                if (!service.getName().startsWith(prefix) || !action.test(service)) {
+                    return;
+                }
+            }
+        };
+    }
+
+    private Scan hostsStartingWith(String prefix) {
+        return action -> {
+            for (Map.Entry<String, ServiceSet> host : byHost.tailMap(prefix, true).entrySet()) {
+                if (!host.getKey().startsWith(prefix)) {
+                    return;
+                }
+                for (Service service : host.getValue()) {
+                    if (!action.test(service)) {
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    private Scan createdAfter(long time) {
+        if (time == Long.MAX_VALUE) {
+            return action -> { };
+        }
+        Service from = new Service(null, "", time + 1, ServiceStatus.UNKNOWN, 0);
+        return action -> {
+            for (Service service : byCreation.tailSet(from, true)) {
+                if (!action.test(service)) {
+                    return;
+                }
+            }
+        };
+    }
+
+    private static int count(Scan scan, int limit) {
+        int[] count = new int[1];
+        scan.forEach(service -> ++count[0] < limit);
+        return count[0];
+    }
+
+    /**
+     * A list of candidates, visited until the action returns false
+     */
+    private interface Scan {
+        void forEach(Predicate<Service> action);
+    }
+}
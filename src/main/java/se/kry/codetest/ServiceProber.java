@@ -0,0 +1,203 @@
+package se.kry.codetest;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the {@link ServiceCheck} of a service. The response is read as a stream and nothing of the
+ * body is kept, so a probe uses the same memory whatever the endpoint returns. The verdict is given
+ * as soon as it is known: with the status line, or once the body assertion is found or its limit is
+ * reached. The rest of the response is then drained, so the connection is kept alive, and the
+ * connection is only reset when more than {@link #DRAIN_LIMIT} bytes are left or keep streaming in.
+ * <p>
+ * The timeout covers the whole probe, a body trickling in does not extend it.
+ */
+public class ServiceProber {
+
+    static final int DRAIN_LIMIT = 64 * 1024;
+
+    private final Vertx vertx;
+    private final HttpClient client;
+
+    public ServiceProber(Vertx vertx, HttpClient client) {
+        this.vertx = vertx;
+        this.client = client;
+    }
+
+    /**
+     * @param url       the URL
+     * @param check     the check
+     * @param timeoutMs the time the verdict must be known in
+     * @param handler   called once with the status code and whether the check passed, or failed when
+     *                  there was no answer (connection error, timeout...)
+     */
+    public void probe(String url, ServiceCheck check, long timeoutMs, Handler<AsyncResult<Result>> handler) {
+        new Probe(check, timeoutMs, handler).start(url);
+    }
+
+    /**
+     * The verdict of a probe
+     */
+    public static final class Result {
+        private final int statusCode;
+        private final boolean healthy;
+
+        Result(int statusCode, boolean healthy) {
+            this.statusCode = statusCode;
+            this.healthy = healthy;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+    }
+
+    private final class Probe {
+        private final ServiceCheck check;
+        private final long timeoutMs;
+        private final Handler<AsyncResult<Result>> handler;
+        private HttpClientRequest request;
+        private long timerId = -1;
+        private boolean decided;
+        private boolean ended;
+        // The bytes of the body received, and how many of them were received before the verdict
+        private long received;
+        private long receivedAtVerdict;
+
+        private Probe(ServiceCheck check, long timeoutMs, Handler<AsyncResult<Result>> handler) {
+            this.check = check;
+            this.timeoutMs = timeoutMs;
+            this.handler = handler;
+        }
+
+        // In Vert.x 3.6 every HttpClient method taking a response handler is deprecated, its
+        // signature changes in 4.0. The WebClient gives neither the status line before the body nor
+        // a way to reset the connection, which is what a probe needs.
+        @SuppressWarnings("deprecation")
+        private void start(String url) {
+            try {
+                request = client.requestAbs(check.getMethod(), url, this::onResponse);
+            } catch (RuntimeException e) {
+                // Not a URL the client can request
+                decide(Future.failedFuture(e));
+                return;
+            }
+            request.setFollowRedirects(true);
+            request.exceptionHandler(e -> {
+                ended = true;
+                cancelTimer();
+                decide(Future.failedFuture(e));
+            });
+            timerId = vertx.setTimer(timeoutMs, id -> {
+                timerId = -1;
+                decide(Future.failedFuture(new TimeoutException("No verdict after " + timeoutMs + "ms")));
+                if (!ended) {
+                    request.reset();
+                }
+            });
+            request.end();
+        }
+
+        private void onResponse(HttpClientResponse response) {
+            // The request of the last redirect
+            request = response.request();
+            int statusCode = response.statusCode();
+            response.exceptionHandler(e -> {
+                ended = true;
+                cancelTimer();
+                decide(Future.failedFuture(e));
+            });
+            response.endHandler(v -> {
+                ended = true;
+                decide(Future.succeededFuture(new Result(statusCode, false)));
+                cancelTimer();
+            });
+            if (!check.accepts(statusCode) || !check.hasBodyAssertion() || check.getMethod() == HttpMethod.HEAD) {
+                response.handler(this::drain);
+                decide(Future.succeededFuture(new Result(statusCode, check.accepts(statusCode))));
+                release(response);
+                return;
+            }
+            ServiceCheck.BodyMatcher matcher = check.newMatcher();
+            response.handler(chunk -> {
+                if (decided) {
+                    drain(chunk);
+                    return;
+                }
+                received += chunk.length();
+                if (matcher.feed(chunk) || matcher.isExhausted()) {
+                    decide(Future.succeededFuture(new Result(statusCode, matcher.isFound())));
+                    release(response);
+                }
+            });
+        }
+
+        /**
+         * Drain the rest of the response once the verdict is given, the connection goes back to the
+         * pool at the end. It is dropped at once when the announced length leaves too much to read.
+         */
+        private void release(HttpClientResponse response) {
+            receivedAtVerdict = received;
+            if (ended || check.getMethod() == HttpMethod.HEAD) {
+                return;
+            }
+            if (remaining(response.getHeader("content-length")) > DRAIN_LIMIT) {
+                reset();
+            }
+            // Otherwise the timer resets it if the rest does not arrive in time
+        }
+
+        /**
+         * Discard a chunk received after the verdict, the connection is dropped when the body keeps
+         * streaming past the drain limit
+         */
+        private void drain(Buffer chunk) {
+            received += chunk.length();
+            if (!ended && received - receivedAtVerdict > DRAIN_LIMIT) {
+                reset();
+            }
+        }
+
+        private long remaining(String contentLength) {
+            try {
+                return contentLength == null ? 0 : Long.parseLong(contentLength) - received;
+            } catch (NumberFormatException e) {
+                // Read until the drain limit
+                return 0;
+            }
+        }
+
+        private void reset() {
+            cancelTimer();
+            ended = true;
+            request.reset();
+        }
+
+        private void decide(AsyncResult<Result> result) {
+            if (!decided) {
+                decided = true;
+                handler.handle(result);
+            }
+        }
+
+        private void cancelTimer() {
+            if (timerId != -1) {
+                vertx.cancelTimer(timerId);
+                timerId = -1;
+            }
+        }
+    }
+}
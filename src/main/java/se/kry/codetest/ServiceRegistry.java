@@ -0,0 +1,310 @@
+package se.kry.codetest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory list of services. Every change (add, delete or status change) increments the
+ * version of the registry, so the readers can tell whether a cached view is still current.
+ * The registry is thread safe, it is shared by the poller and all the HTTP verticle instances.
+ * <p>
+ * The services are partitioned by owner: every {@link Partition} has its own secondary indexes,
+ * version and cached snapshot, so the reads of an owner cost in proportion to its own services and
+ * the changes of the other owners do not invalidate its snapshot. The changes and the filtered
+ * reads of a partition go through its lock, which keeps its indexes in line with the services, the
+ * lookups by key do not lock. A service is identified by its {@link Service#getKey() key}, its owner
+ * and URL: the same URL can be registered by several owners. A partition also counts the slots
+ * {@link #reserve(String, int) reserved} for the services being stored, so the quota of an owner
+ * holds while its inserts are in flight.
+ * <p>
+ * While it is loading, the registry already serves requests but it may be incomplete or hold
+ * services which were deleted meanwhile, and it remembers the removals so the loader does not bring
+ * them back.
+ */
+public class ServiceRegistry {
+
+    private static final Partition EMPTY = new Partition("");
+
+    private final ConcurrentMap<String, Service> services = new ConcurrentHashMap<>();
+    // By owner, the services without owner are in the partition of the empty string
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final Set<String> removedWhileLoading = ConcurrentHashMap.newKeySet();
+    private volatile ServiceSnapshot snapshot;
+    private volatile boolean loaded = true;
+
+    /**
+     * @param key the key of the service, see {@link Service#key(String, String)}
+     * @return the service, null when there is none
+     */
+    public Service get(String key) {
+        return services.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return services.containsKey(key);
+    }
+
+    /**
+     * Add a service, or replace the service with the same owner and URL
+     */
+    public void put(Service service) {
+        // The partitions are only created and dropped under this lock
+        synchronized (partitions) {
+            Service previous = services.put(service.getKey(), service);
+            if (previous != null) {
+                removeFromPartition(previous);
+            }
+            Partition partition = partitions.computeIfAbsent(key(service.getOwner()), Partition::new);
+            synchronized (partition) {
+                partition.index.add(service);
+                partition.version = version.incrementAndGet();
+            }
+        }
+    }
+
+    public Service remove(String key) {
+        if (!loaded) {
+            removedWhileLoading.add(key);
+        }
+        synchronized (partitions) {
+            Service service = services.remove(key);
+            if (service != null) {
+                removeFromPartition(service);
+            }
+            return service;
+        }
+    }
+
+    private void removeFromPartition(Service service) {
+        Partition partition = partitions.get(key(service.getOwner()));
+        if (partition == null) {
+            return;
+        }
+        synchronized (partition) {
+            partition.index.remove(service);
+            partition.version = version.incrementAndGet();
+            dropIfEmpty(partition);
+        }
+    }
+
+    private void dropIfEmpty(Partition partition) {
+        if (partition.index.size() == 0 && partition.reserved == 0) {
+            partitions.remove(partition.owner, partition);
+        }
+    }
+
+    /**
+     * Reserve the slot of a new service of an owner, before it is stored. The slot must be released
+     * with {@link #release(String)} once the service is {@link #put(Service) put} or its insert failed.
+     *
+     * @param owner       the owner, null for the services without one
+     * @param maxServices the quota of the owner
+     * @return false when the services and the reserved slots of the owner are at its quota
+     */
+    public boolean reserve(String owner, int maxServices) {
+        synchronized (partitions) {
+            Partition partition = partitions.computeIfAbsent(key(owner), Partition::new);
+            synchronized (partition) {
+                if (partition.index.size() + partition.reserved >= maxServices) {
+                    dropIfEmpty(partition);
+                    return false;
+                }
+                partition.reserved++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a slot taken by {@link #reserve(String, int)}
+     *
+     * @param owner the owner, null for the services without one
+     */
+    public void release(String owner) {
+        synchronized (partitions) {
+            Partition partition = partitions.get(key(owner));
+            if (partition == null) {
+                return;
+            }
+            synchronized (partition) {
+                partition.reserved--;
+                dropIfEmpty(partition);
+            }
+        }
+    }
+
+    private static String key(String owner) {
+        return owner == null ? "" : owner;
+    }
+
+    /**
+     * @param owner the owner, null for the services without one
+     * @return the services of the owner, a partition without services when it has none
+     */
+    public Partition partition(String owner) {
+        return partitions.getOrDefault(key(owner), EMPTY);
+    }
+
+    /**
+     * Mark the registry as loading, until {@link #finishLoading()} is called
+     */
+    public void startLoading() {
+        loaded = false;
+    }
+
+    public void finishLoading() {
+        loaded = true;
+        removedWhileLoading.clear();
+    }
+
+    /**
+     * @return false while the registry is loading
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @param key the key of the service
+     * @return true when the service was removed since the loading started
+     */
+    public boolean isRemovedWhileLoading(String key) {
+        return removedWhileLoading.contains(key);
+    }
+
+    /**
+     * Change the status of a service
+     *
+     * @param service the service
+     * @param status  the new status
+     */
+    public void updateStatus(Service service, ServiceStatus status) {
+        Partition partition = partitions.getOrDefault(key(service.getOwner()), EMPTY);
+        synchronized (partition) {
+            ServiceStatus previous = service.getStatus();
+            service.setStatus(status);
+            // A service removed meanwhile is not in the indexes any more
+            if (partition != EMPTY && services.get(service.getKey()) == service) {
+                partition.index.changeStatus(service, previous);
+                partition.version = version.incrementAndGet();
+                return;
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Find the services matching a filter, through the secondary indexes of the partition of its
+     * owner, or of every partition when it has none
+     *
+     * @param filter the filter, not empty
+     * @return the matching services, in no particular order
+     */
+    public List<Service> find(ServiceFilter filter) {
+        if (filter.getOwner() != null) {
+            return partition(filter.getOwner()).find(filter);
+        }
+        List<Service> matches = new ArrayList<>();
+        partitions.values().forEach(partition -> matches.addAll(partition.find(filter)));
+        return matches;
+    }
+
+    public Collection<Service> values() {
+        return services.values();
+    }
+
+    public int size() {
+        return services.size();
+    }
+
+    public boolean isEmpty() {
+        return services.isEmpty();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return the serialized view of the current version, it is only rebuilt when the registry
+     * changed since the last call
+     */
+    public ServiceSnapshot snapshot() {
+        ServiceSnapshot current = snapshot;
+        long currentVersion = version.get();
+        if (current != null && current.getVersion() == currentVersion) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            // The version is read before the services, a change made while building only makes the
+            // snapshot look older than it is and it is rebuilt on the next call
+            currentVersion = version.get();
+            if (current == null || current.getVersion() != currentVersion) {
+                current = ServiceSnapshot.build(currentVersion, services.values());
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * The services of one owner. Its version is the version of the registry at its last change, so
+     * it is never reused by another partition or by a partition created again for the same owner.
+     */
+    public static final class Partition {
+        private final String owner;
+        private final ServiceIndex index = new ServiceIndex();
+        private int reserved;
+        private volatile long version;
+        private volatile ServiceSnapshot snapshot;
+
+        private Partition(String owner) {
+            this.owner = owner;
+        }
+
+        public synchronized int size() {
+            return index.size();
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @param filter the filter, without owner or with the owner of the partition
+         * @return the services of the partition matching the filter, in no particular order
+         */
+        public synchronized List<Service> find(ServiceFilter filter) {
+            return index.find(filter);
+        }
+
+        /**
+         * @return the serialized view of the current version of the partition, it is only rebuilt
+         * when the partition changed since the last call
+         */
+        public ServiceSnapshot snapshot() {
+            ServiceSnapshot current = snapshot;
+            if (current != null && current.getVersion() == version) {
+                return current;
+            }
+            long currentVersion;
+            List<Service> all;
+            synchronized (this) {
+                currentVersion = version;
+                all = index.all();
+            }
+            // Built out of the lock, when two readers race the older snapshot may win and the next
+            // call builds it again
+            current = ServiceSnapshot.build(currentVersion, all);
+            snapshot = current;
+            return current;
+        }
+    }
+}
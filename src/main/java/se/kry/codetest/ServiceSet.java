@@ -0,0 +1,118 @@
+package se.kry.codetest;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of services for the buckets of the {@link ServiceIndex}. Every service of the registry is in
+ * several buckets, so they use open addressing with linear probing: one array slot per service
+ * instead of a map entry. The services are compared by identity and hashed by URL.
+ * <p>
+ * Not thread safe, and not to be changed while it is iterated.
+ */
+final class ServiceSet implements Iterable<Service> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private Service[] slots = new Service[MIN_CAPACITY];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void add(Service service) {
+        if ((size + 1) * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        int mask = slots.length - 1;
+        int i = home(service, mask);
+        while (slots[i] != null) {
+            if (slots[i] == service) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = service;
+        size++;
+    }
+
+    void remove(Service service) {
+        int mask = slots.length - 1;
+        int i = home(service, mask);
+        while (slots[i] != service) {
+            if (slots[i] == null) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = null;
+        size--;
+        // Move back the services of the probe sequence which cannot be found past the hole any more
+        for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+            int k = home(slots[j], mask);
+            boolean reachable = i <= j ? i < k && k <= j : i < k || k <= j;
+            if (!reachable) {
+                slots[i] = slots[j];
+                slots[j] = null;
+                i = j;
+            }
+        }
+        if (size * 8 < slots.length && slots.length > MIN_CAPACITY) {
+            resize(slots.length / 2);
+        }
+    }
+
+    private void resize(int capacity) {
+        Service[] previous = slots;
+        slots = new Service[capacity];
+        int mask = capacity - 1;
+        for (Service service : previous) {
+            if (service != null) {
+                int i = home(service, mask);
+                while (slots[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = service;
+            }
+        }
+    }
+
+    private static int home(Service service, int mask) {
+        int hash = service.getUrl().hashCode() * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @Override
+    public Iterator<Service> iterator() {
+        return new Iterator<Service>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < slots.length && slots[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < slots.length;
+            }
+
+            @Override
+            public Service next() {
+                if (next >= slots.length) {
+                    throw new NoSuchElementException();
+                }
+                Service service = slots[next];
+                next = advance(next + 1);
+                return service;
+            }
+        };
+    }
+}
@@ -0,0 +1,166 @@
+package se.kry.codetest;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable, pre-serialized view of one version of the {@link ServiceRegistry}. The services are
+ * encoded once, sorted by URL, and the responses of {@code GET /service} are assembled from the
+ * encoded bytes: the full list is kept as one buffer (and gzipped on first use) together with the
+ * offset of every service in it, pages are sliced out of it with a cursor pointing after the last
+ * URL of the previous page.
+ */
+public final class ServiceSnapshot {
+
+    private static final Buffer OPEN = Buffer.buffer("[");
+    private static final Buffer CLOSE = Buffer.buffer("]");
+    // The versions start again at every boot, the entity tags of two boots must not match
+    private static final String EPOCH = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+
+    private final long version;
+    private final String[] urls;
+    // offsets[i] is the start of the service i in full, offsets[size] the position of the closing bracket
+    private final int[] offsets;
+    private final Buffer full;
+    private volatile Buffer gzipped;
+
+    private ServiceSnapshot(long version, String[] urls, int[] offsets, Buffer full) {
+        this.version = version;
+        this.urls = urls;
+        this.offsets = offsets;
+        this.full = full;
+    }
+
+    static ServiceSnapshot build(long version, Collection<Service> services) {
+        Service[] sorted = services.toArray(new Service[0]);
+        Arrays.sort(sorted, (a, b) -> a.getUrl().compareTo(b.getUrl()));
+        String[] urls = new String[sorted.length];
+        int[] offsets = new int[sorted.length + 1];
+        Buffer full = Buffer.buffer(sorted.length * 128 + 2).appendBuffer(OPEN);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0) {
+                full.appendByte((byte) ',');
+            }
+            urls[i] = sorted[i].getUrl();
+            offsets[i] = full.length();
+            full.appendBuffer(sorted[i].toJson().toBuffer());
+        }
+        offsets[sorted.length] = full.length();
+        full.appendBuffer(CLOSE);
+        // Trim the spare capacity, the buffer lives as long as the version
+        return new ServiceSnapshot(version, urls, offsets, full.copy());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the entity tag of this version, weak because the body may be served compressed
+     */
+    public String etag() {
+        return etag(version);
+    }
+
+    /**
+     * @param version a version of the registry or of a partition
+     * @return the entity tag of the version in this boot of the application
+     */
+    static String etag(long version) {
+        return "W/\"" + EPOCH + '-' + version + '"';
+    }
+
+    public int size() {
+        return urls.length;
+    }
+
+    /**
+     * @return the JSON array of all the services
+     */
+    public Buffer all() {
+        return full;
+    }
+
+    /**
+     * @return the gzip encoded JSON array of all the services, compressed once per version
+     */
+    public Buffer gzipped() {
+        Buffer result = gzipped;
+        if (result == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(full.length() / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                gzip.write(full.getBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            result = Buffer.buffer(bytes.toByteArray());
+            gzipped = result;
+        }
+        return result;
+    }
+
+    /**
+     * Read one page of services
+     *
+     * @param cursor the cursor returned with the previous page, null for the first page
+     * @param limit  the maximum number of services in the page
+     * @return the page
+     * @throws IllegalArgumentException when the cursor is not valid
+     */
+    public Page page(String cursor, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        int start = 0;
+        if (cursor != null) {
+            String after = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int index = Arrays.binarySearch(urls, after);
+            start = index >= 0 ? index + 1 : -index - 1;
+        }
+        int end = (int) Math.min((long) start + limit, urls.length);
+        String next = end < urls.length
+                ? Base64.getUrlEncoder().withoutPadding().encodeToString(urls[end - 1].getBytes(StandardCharsets.UTF_8))
+                : null;
+        return new Page(join(start, end), next);
+    }
+
+    private Buffer join(int start, int end) {
+        if (start >= end) {
+            return Buffer.buffer(2).appendBuffer(OPEN).appendBuffer(CLOSE);
+        }
+        // The separators are between the services, the slice ends before the one after the last service
+        int from = offsets[start];
+        int to = end == urls.length ? offsets[end] : offsets[end] - 1;
+        return Buffer.buffer(to - from + 2).appendBuffer(OPEN).appendBuffer(full, from, to - from).appendBuffer(CLOSE);
+    }
+
+    /**
+     * A page of services and the cursor of the next page, null on the last page
+     */
+    public static final class Page {
+        private final Buffer body;
+        private final String nextCursor;
+
+        private Page(Buffer body, String nextCursor) {
+            this.body = body;
+            this.nextCursor = nextCursor;
+        }
+
+        public Buffer getBody() {
+            return body;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+}
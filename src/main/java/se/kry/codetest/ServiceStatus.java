@@ -0,0 +1,35 @@
+package se.kry.codetest;
+
+/**
+ * The status of a service. The name is what is stored in the database and returned by the API.
+ */
+public enum ServiceStatus {
+    OK,
+    FAIL,
+    UNKNOWN;
+
+    private static final ServiceStatus[] VALUES = values();
+
+    /**
+     * @param status the stored status
+     * @return the status, UNKNOWN for null or any unexpected value
+     */
+    public static ServiceStatus parse(String status) {
+        if (status != null) {
+            for (ServiceStatus value : VALUES) {
+                if (value.name().equals(status)) {
+                    return value;
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @param ordinal the ordinal of a status
+     * @return the status, UNKNOWN for an ordinal out of range
+     */
+    public static ServiceStatus valueOf(int ordinal) {
+        return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : UNKNOWN;
+    }
+}
@@ -0,0 +1,98 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Persistent storage of the services. The registry is loaded from it at startup and every change
+ * of a service is written to it. The Futures complete on the context of the caller.
+ * <p>
+ * Two implementations: {@link SqliteServiceStore}, the service table of the SQLite database, and
+ * {@link LogServiceStore}, an append-only log for high status update rates. The history of the
+ * probes stays in the SQLite database with either of them. The services are identified by their
+ * {@link Service#getKey() key}, their owner and URL.
+ */
+public interface ServiceStore {
+
+    String TYPE_SQLITE = "sqlite";
+    String TYPE_LOG = "log";
+
+    /**
+     * Create the store of the configuration
+     *
+     * @param vertx     the vertx instance
+     * @param connector the DB connector, used by the SQLite store
+     * @param config    the {@code store} configuration, {@code type} is {@code sqlite} (default) or
+     *                  {@code log}, see {@link LogServiceStore} for the options of the log
+     * @return the store, to be opened
+     */
+    static ServiceStore create(Vertx vertx, DBConnector connector, JsonObject config) {
+        String type = config.getString("type", TYPE_SQLITE);
+        switch (type) {
+            case TYPE_SQLITE:
+                return new SqliteServiceStore(connector);
+            case TYPE_LOG:
+                return new LogServiceStore(vertx, config);
+            default:
+                throw new IllegalArgumentException("Unknown service store type : " + type);
+        }
+    }
+
+    /**
+     * Prepare the store, it must complete before any other call
+     */
+    Future<Void> open();
+
+    /**
+     * Add services, all of them or none
+     *
+     * @param services the services
+     * @return the Future failed when one of the services, the same owner and URL, is already stored
+     */
+    Future<Void> insert(List<Service> services);
+
+    /**
+     * Remove a service, nothing happens when it is not stored
+     *
+     * @param key the key of the service
+     */
+    Future<Void> delete(String key);
+
+    /**
+     * Change the status of services, all of them or none. The services which are not stored, e.g.
+     * deleted meanwhile, are ignored.
+     *
+     * @param statuses the new status per key of the service
+     */
+    Future<Void> updateStatuses(Map<String, ServiceStatus> statuses);
+
+    /**
+     * Read all the stored services, in no particular order
+     *
+     * @param consumer called with the stream of the services, returns the Future completed once it is
+     *                 done with the stream
+     * @return the Future completed once the consumer is done
+     */
+    Future<Void> scan(Function<ReadStream<Service>, Future<Void>> consumer);
+
+    /**
+     * Read the stored services of one owner, in no particular order
+     *
+     * @param owner    the owner, null for the services without one
+     * @param consumer called with the stream of the services, returns the Future completed once it is
+     *                 done with the stream
+     * @return the Future completed once the consumer is done
+     */
+    Future<Void> scan(String owner, Function<ReadStream<Service>, Future<Void>> consumer);
+
+    /**
+     * Release the resources of the store
+     */
+    Future<Void> close();
+}
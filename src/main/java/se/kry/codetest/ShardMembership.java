@@ -0,0 +1,123 @@
+package se.kry.codetest;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The live poller instances, learnt from the heartbeats they publish on the event bus. Every
+ * instance publishes one every {@code heartbeatMs}, an instance missing {@link #MISSED_HEARTBEATS}
+ * of them is dropped and an instance which stops says so. The ring of the members is handed to the
+ * handler when they change; the first one only after a few heartbeats, so the instances starting
+ * together do not all begin with the whole registry.
+ * <p>
+ * The local event bus connects the instances of one JVM, a clustered one the instances of every
+ * node. All the methods must be called from the event loop the membership was started on.
+ */
+public class ShardMembership {
+
+    /**
+     * The event bus address of the heartbeats
+     */
+    public static final String ADDRESS = "poller.members";
+    static final int MISSED_HEARTBEATS = 3;
+    private static final int SETTLE_HEARTBEATS = 2;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardMembership.class);
+
+    private final Vertx vertx;
+    private final String id;
+    private final long heartbeatMs;
+    private final int virtualNodes;
+    private final Handler<HashRing> ringHandler;
+    private final Map<String, Long> lastSeen = new HashMap<>();
+    private MessageConsumer<JsonObject> consumer;
+    private long timerId = -1;
+    private int heartbeats;
+    private HashRing ring;
+
+    /**
+     * @param vertx        the vertx instance
+     * @param id           the id of this instance, unique across the nodes
+     * @param heartbeatMs  the interval of the heartbeats
+     * @param virtualNodes the points of every member on the ring
+     * @param ringHandler  called with the ring whenever the members changed
+     */
+    public ShardMembership(Vertx vertx, String id, long heartbeatMs, int virtualNodes, Handler<HashRing> ringHandler) {
+        this.vertx = vertx;
+        this.id = id;
+        this.heartbeatMs = heartbeatMs;
+        this.virtualNodes = virtualNodes;
+        this.ringHandler = ringHandler;
+    }
+
+    public void start() {
+        consumer = vertx.eventBus().consumer(ADDRESS, message -> received(message.body()));
+        lastSeen.put(id, System.currentTimeMillis());
+        publish(true);
+        timerId = vertx.setPeriodic(heartbeatMs, timer -> heartbeat());
+    }
+
+    private void received(JsonObject message) {
+        String member = message.getString("id");
+        if (member == null || member.equals(id)) {
+            return;
+        }
+        if (message.getBoolean("up", false)) {
+            lastSeen.put(member, System.currentTimeMillis());
+        } else if (lastSeen.remove(member) != null && ring != null) {
+            // Take over the services of a stopped instance right away
+            update();
+        }
+    }
+
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        publish(true);
+        lastSeen.put(id, now);
+        lastSeen.values().removeIf(seen -> now - seen > heartbeatMs * MISSED_HEARTBEATS);
+        if (++heartbeats >= SETTLE_HEARTBEATS) {
+            update();
+        }
+    }
+
+    private void update() {
+        if (ring != null && ring.getMembers().equals(lastSeen.keySet())) {
+            return;
+        }
+        ring = new HashRing(lastSeen.keySet(), virtualNodes);
+        LOGGER.info("Poller " + id + " sees " + ring.size() + " poller instances : " + ring.getMembers());
+        ringHandler.handle(ring);
+    }
+
+    private void publish(boolean up) {
+        vertx.eventBus().publish(ADDRESS, new JsonObject().put("id", id).put("up", up));
+    }
+
+    /**
+     * @return the current ring, null until the first one was built
+     */
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Tell the other instances this one stops
+     */
+    public void stop() {
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+        if (consumer != null) {
+            consumer.unregister();
+            consumer = null;
+        }
+        publish(false);
+    }
+}
@@ -0,0 +1,275 @@
+package se.kry.codetest;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shares the probes of the services with the same target: the same URL once normalized, see
+ * {@link #normalize(String)}, and the same {@link ServiceCheck}. The result of a probe is reused by
+ * the services of the target polled within {@code ttlRatio} of their poll interval, and a service
+ * polled while the probe of its target is queued or running subscribes to it instead of starting
+ * another one. The probes then grow with the number of targets rather than with the number of
+ * services, e.g. when many owners register the same URL. The subscribers of a probe which is given
+ * up, past its deadline, are failed with a {@link TimeoutException}.
+ * <p>
+ * The results of at most {@code maxEntries} targets are kept, the probes in flight are always
+ * shared. Not thread safe, all the methods must be called from the poller's event loop.
+ *
+ * @param <T> the result of a probe
+ */
+public class SharedProbeCache<T> {
+
+    /**
+     * What {@link #lookup} found for the target
+     */
+    public enum Lookup {
+        /**
+         * A recent result, the handler was called with it
+         */
+        HIT,
+        /**
+         * A probe in flight, the handler is called with its result
+         */
+        JOINED,
+        /**
+         * Nothing, the caller runs the probe and reports its result with {@link #complete}, the
+         * handler is called with it
+         */
+        MISS
+    }
+
+    private final double ttlRatio;
+    private final int maxEntries;
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+    private long maxTtlMs;
+    // Written on the event loop, read by the metrics from other threads
+    private volatile int size;
+    private volatile long hits;
+    private volatile long joins;
+    private volatile long misses;
+
+    /**
+     * @param ttlRatio   how long a result is reused, as a ratio of the poll interval of the service
+     *                   asking for it, below 1 so a service never reuses the result of its own
+     *                   previous poll; 0 only shares the probes in flight
+     * @param maxEntries the maximum number of targets whose result is kept
+     */
+    public SharedProbeCache(double ttlRatio, int maxEntries) {
+        if (ttlRatio < 0 || ttlRatio >= 1 || maxEntries < 0) {
+            throw new IllegalArgumentException("Invalid probe cache settings");
+        }
+        this.ttlRatio = ttlRatio;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the key of the target of a service
+     */
+    public static String target(String url, ServiceCheck check) {
+        String normalized = normalize(url);
+        return check == ServiceCheck.DEFAULT ? normalized : normalized + ' ' + check.encode();
+    }
+
+    /**
+     * Find the result of a target for a service which is due
+     *
+     * @param target              the target, see {@link #target}
+     * @param pollIntervalSeconds the poll interval of the service
+     * @param now                 the current time in milliseconds
+     * @param deadline            the time after which a probe started now is not expected any more,
+     *                            the services polled later do not wait for it
+     * @param handler             called with the result, or failed when the probe is given up
+     * @return whether the handler was called, will be called, or the caller must probe the target
+     */
+    public Lookup lookup(String target, int pollIntervalSeconds, long now, long deadline,
+                         Handler<AsyncResult<T>> handler) {
+        long ttlMs = (long) (ttlRatio * pollIntervalSeconds * 1000);
+        maxTtlMs = Math.max(maxTtlMs, ttlMs);
+        Entry<T> entry = entries.get(target);
+        if (entry == null) {
+            entry = new Entry<>();
+            entries.put(target, entry);
+            size = entries.size();
+        } else if (entry.result != null && now - entry.completedAt < ttlMs) {
+            hits++;
+            handler.handle(Future.succeededFuture(entry.result));
+            return Lookup.HIT;
+        } else if (entry.subscribers != null && now <= entry.deadline) {
+            joins++;
+            entry.subscribers.add(handler);
+            return Lookup.JOINED;
+        }
+        // The probe of a previous miss which did not run before its deadline is given up
+        giveUp(target, entry);
+        misses++;
+        entry.subscribers = new ArrayList<>(1);
+        entry.subscribers.add(handler);
+        entry.deadline = deadline;
+        return Lookup.MISS;
+    }
+
+    /**
+     * Report the result of the probe of a miss, the subscribers of the target are called with it
+     *
+     * @param target the target
+     * @param result the result
+     * @param now    the current time in milliseconds
+     */
+    public void complete(String target, T result, long now) {
+        Entry<T> entry = entries.get(target);
+        if (entry == null) {
+            return;
+        }
+        List<Handler<AsyncResult<T>>> subscribers = entry.subscribers;
+        entry.subscribers = null;
+        if (entries.size() <= maxEntries && ttlRatio > 0) {
+            entry.result = result;
+            entry.completedAt = now;
+        } else {
+            entries.remove(target);
+            size = entries.size();
+        }
+        if (subscribers != null) {
+            AsyncResult<T> completed = Future.succeededFuture(result);
+            subscribers.forEach(subscriber -> subscriber.handle(completed));
+        }
+    }
+
+    /**
+     * The probe of a miss will not run, e.g. the pipeline rejected it, its subscribers are dropped.
+     * To be called right after the miss, the caller is then the only subscriber.
+     */
+    public void abandon(String target) {
+        Entry<T> entry = entries.get(target);
+        if (entry != null) {
+            entry.subscribers = null;
+            if (entry.result == null) {
+                entries.remove(target);
+                size = entries.size();
+            }
+        }
+    }
+
+    /**
+     * Forget the results which cannot be reused any more, and give up the probes which should have
+     * completed long ago
+     *
+     * @param now the current time in milliseconds
+     */
+    public void expire(long now) {
+        Iterator<Map.Entry<String, Entry<T>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry<T>> target = iterator.next();
+            Entry<T> entry = target.getValue();
+            long last = Math.max(entry.completedAt, entry.subscribers != null ? entry.deadline : Long.MIN_VALUE);
+            if (now - last >= maxTtlMs) {
+                iterator.remove();
+                giveUp(target.getKey(), entry);
+            }
+        }
+        size = entries.size();
+    }
+
+    /**
+     * Fail the subscribers of the probe in flight of an entry, if any
+     */
+    private void giveUp(String target, Entry<T> entry) {
+        List<Handler<AsyncResult<T>>> subscribers = entry.subscribers;
+        if (subscribers == null) {
+            return;
+        }
+        entry.subscribers = null;
+        AsyncResult<T> failed = Future.failedFuture(new TimeoutException("No result of the probe of " + target
+                + " before its deadline"));
+        subscribers.forEach(subscriber -> subscriber.handle(failed));
+    }
+
+    /**
+     * @return the number of targets with a result or a probe in flight, it can be read from any thread
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of lookups answered with a recent result
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups which subscribed to a probe in flight
+     */
+    public long getJoins() {
+        return joins;
+    }
+
+    /**
+     * @return the number of lookups which needed a probe
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * The URL with its scheme and host in lower case, without the default port nor the fragment, and
+     * with {@code /} as path when it has none. The URLs which are not plain {@code http} or
+     * {@code https} URLs, e.g. with user info, are kept as they are.
+     *
+     * @return the normalized URL, the same instance when it is already normalized
+     */
+    static String normalize(String url) {
+        int schemeEnd = url.indexOf("://");
+        String defaultPort;
+        if (schemeEnd == 4 && url.regionMatches(true, 0, "http", 0, 4)) {
+            defaultPort = ":80";
+        } else if (schemeEnd == 5 && url.regionMatches(true, 0, "https", 0, 5)) {
+            defaultPort = ":443";
+        } else {
+            return url;
+        }
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        boolean lowerCase = true;
+        for (; authorityEnd < url.length(); authorityEnd++) {
+            char c = url.charAt(authorityEnd);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            if (c == '@') {
+                return url;
+            }
+            lowerCase &= c < 'A' || c > 'Z';
+        }
+        for (int i = 0; i < schemeEnd; i++) {
+            lowerCase &= url.charAt(i) >= 'a';
+        }
+        int hostEnd = url.regionMatches(authorityEnd - defaultPort.length(), defaultPort, 0, defaultPort.length())
+                && authorityEnd - defaultPort.length() > authorityStart ? authorityEnd - defaultPort.length()
+                : authorityEnd;
+        int fragment = url.indexOf('#', authorityEnd);
+        int end = fragment == -1 ? url.length() : fragment;
+        boolean noPath = authorityEnd == url.length() || url.charAt(authorityEnd) != '/';
+        if (lowerCase && hostEnd == authorityEnd && end == url.length() && !noPath) {
+            return url;
+        }
+        return url.substring(0, hostEnd).toLowerCase() + (noPath ? "/" : "") + url.substring(authorityEnd, end);
+    }
+
+    private static final class Entry<T> {
+        private T result;
+        private long completedAt;
+        // The subscribers of the probe in flight, null when there is none
+        private List<Handler<AsyncResult<T>>> subscribers;
+        private long deadline;
+    }
+}
@@ -0,0 +1,160 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.sql.SQLRowStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The services in the {@code service} table of the SQLite database. The table is created by the
+ * schema migrations, the batches are written in one transaction by the writer of the
+ * {@link DBConnector}. The table is keyed by owner and URL, the services without owner have the
+ * empty owner in the table.
+ */
+public class SqliteServiceStore implements ServiceStore {
+
+    static final String SQL_SELECT_SERVICES_ALL = "SELECT name, url, " +
+            "created_datetime, status, poll_interval, owner, check_definition from service";
+    // Through the service_owner index, in the order of creation
+    static final String SQL_SELECT_SERVICES_OF_OWNER = SQL_SELECT_SERVICES_ALL +
+            " where owner=? order by created_datetime";
+    static final String SQL_INSERT_SERVICE = "INSERT INTO service " +
+            "(name, url, created_datetime, status, poll_interval, owner, check_definition) values(?,?,?,?,?,?,?)";
+    static final String SQL_UPDATE_SERVICE = "update service set status=? where owner=? and url=?";
+    static final String SQL_DELETE_SERVICE = "DELETE from service  " +
+            "where owner=? and url=?";
+    private static final String NO_OWNER = "";
+
+    private final DBConnector connector;
+
+    public SqliteServiceStore(DBConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Nothing to do, the table is created by the migrations which run before
+     */
+    @Override
+    public Future<Void> open() {
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<Void> insert(List<Service> services) {
+        List<JsonArray> params = new ArrayList<>(services.size());
+        for (Service service : services) {
+            JsonArray row = nullable(new JsonArray(), service.getName()).add(service.getUrl())
+                    .add(Service.formatTime(service.getCreatedAt())).add(service.getStatus().name())
+                    .add(service.getPollInterval());
+            row.add(owner(service.getOwner()));
+            params.add(nullable(row, service.getCheck().encode()));
+        }
+        return connector.batchWithParams(SQL_INSERT_SERVICE, params);
+    }
+
+    @Override
+    public Future<Void> delete(String key) {
+        return connector.updateWithParam(SQL_DELETE_SERVICE, keyParams(new JsonArray(), key)).map(rs -> null);
+    }
+
+    @Override
+    public Future<Void> updateStatuses(Map<String, ServiceStatus> statuses) {
+        List<JsonArray> params = new ArrayList<>(statuses.size());
+        statuses.forEach((key, status) -> params.add(keyParams(new JsonArray().add(status.name()), key)));
+        return connector.batchWithParams(SQL_UPDATE_SERVICE, params);
+    }
+
+    @Override
+    public Future<Void> scan(Function<ReadStream<Service>, Future<Void>> consumer) {
+        return connector.queryStream(SQL_SELECT_SERVICES_ALL, new JsonArray(),
+                rows -> consumer.apply(new ServiceRowStream(rows)));
+    }
+
+    @Override
+    public Future<Void> scan(String owner, Function<ReadStream<Service>, Future<Void>> consumer) {
+        return connector.queryStream(SQL_SELECT_SERVICES_OF_OWNER, new JsonArray().add(owner(owner)),
+                rows -> consumer.apply(new ServiceRowStream(rows)));
+    }
+
+    /**
+     * Nothing to do, the connector is shared with the history and stopped with the application
+     */
+    @Override
+    public Future<Void> close() {
+        return Future.succeededFuture();
+    }
+
+    private static JsonArray keyParams(JsonArray params, String key) {
+        return params.add(owner(Service.ownerOfKey(key))).add(Service.urlOfKey(key));
+    }
+
+    private static String owner(String owner) {
+        return owner == null ? NO_OWNER : owner;
+    }
+
+    private static JsonArray nullable(JsonArray row, String value) {
+        return value == null ? row.addNull() : row.add(value);
+    }
+
+    private static Service toService(JsonArray row) {
+        Service service = new Service(row.getString(0), row.getString(1), row.getString(2), row.getString(3),
+                row.getInteger(4));
+        String owner = row.getString(5);
+        service.setOwner(owner == null || owner.equals(NO_OWNER) ? null : owner);
+        service.setCheck(ServiceCheck.parse(row.getString(6)));
+        return service;
+    }
+
+    /**
+     * The rows of the service table read as services
+     */
+    private static final class ServiceRowStream implements ReadStream<Service> {
+        private final SQLRowStream rows;
+
+        private ServiceRowStream(SQLRowStream rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public ReadStream<Service> exceptionHandler(Handler<Throwable> handler) {
+            rows.exceptionHandler(handler);
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> handler(Handler<Service> handler) {
+            rows.handler(handler == null ? null : row -> handler.handle(toService(row)));
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> pause() {
+            rows.pause();
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> resume() {
+            rows.resume();
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> fetch(long amount) {
+            rows.fetch(amount);
+            return this;
+        }
+
+        @Override
+        public ReadStream<Service> endHandler(Handler<Void> handler) {
+            rows.endHandler(handler);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the status updates which are not known to be in the database yet.
+ * Every record is {@code length, CRC32, payload} so a record torn by a crash is detected and
+ * dropped on replay. The appends are collected on the event loop and written by a worker thread,
+ * with one fsync for everything appended during the sync window. The journal is replayed into the
+ * database on startup and truncated whenever the database caught up with it.
+ * All the methods must be called from the owning event loop.
+ */
+public class StatusJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatusJournal.class);
+    private static final int HEADER_SIZE = 8;
+
+    private final Vertx vertx;
+    private final Path path;
+    private final long syncWindowMs;
+    private final WorkerExecutor executor;
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long syncTimerId = -1;
+    // Written on the event loop, read by the metrics from other threads
+    private volatile long records;
+    private volatile long syncs;
+    // Only used from the worker thread
+    private FileChannel channel;
+
+    /**
+     * @param vertx        the vertx instance
+     * @param path         the journal file
+     * @param syncWindowMs the time the appends are collected before they are written and synced
+     */
+    public StatusJournal(Vertx vertx, String path, long syncWindowMs) {
+        this.vertx = vertx;
+        this.path = Paths.get(path);
+        this.syncWindowMs = syncWindowMs;
+        this.executor = vertx.createSharedWorkerExecutor("status-journal-" + path, 1);
+    }
+
+    /**
+     * Read the journal. A torn or corrupt record ends the journal, it and everything after it is
+     * cut off.
+     *
+     * @return the latest journaled status of every service, by key
+     */
+    public Future<Map<String, String>> replay() {
+        Future<Map<String, String>> future = Future.future();
+        executor.<Map<String, String>>executeBlocking(blocking -> {
+            try {
+                blocking.complete(read());
+            } catch (IOException e) {
+                blocking.fail(e);
+            }
+        }, true, future);
+        return future;
+    }
+
+    private Map<String, String> read() throws IOException {
+        Map<String, String> statuses = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return statuses;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        int valid = 0;
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                statuses.put(in.readUTF(), in.readUTF());
+            }
+            valid = buffer.position();
+            count++;
+        }
+        if (valid < buffer.limit()) {
+            LOGGER.warn("Status journal " + path + " has a torn or corrupt tail, dropping "
+                    + (buffer.limit() - valid) + " bytes");
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(valid);
+                file.force(true);
+            }
+        }
+        LOGGER.info("Replayed " + count + " records of the status journal " + path);
+        return statuses;
+    }
+
+    /**
+     * Append a status update, it is on disk at the end of the current sync window
+     *
+     * @param key    the key of the service
+     * @param status the status
+     */
+    public void append(String key, String status) {
+        pending.add(encode(key, status));
+        records++;
+        if (syncTimerId == -1) {
+            syncTimerId = vertx.setTimer(syncWindowMs, id -> {
+                syncTimerId = -1;
+                sync();
+            });
+        }
+    }
+
+    /**
+     * Write and fsync everything appended so far
+     *
+     * @return the Future completed once it is on disk
+     */
+    public Future<Void> sync() {
+        if (syncTimerId != -1) {
+            vertx.cancelTimer(syncTimerId);
+            syncTimerId = -1;
+        }
+        if (pending.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        List<ByteBuffer> batch = pending;
+        pending = new ArrayList<>();
+        syncs++;
+        return run(() -> {
+            FileChannel file = channel();
+            ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= file.write(buffers);
+            }
+            file.force(false);
+        });
+    }
+
+    /**
+     * Empty the journal, the appends made before are dropped with it. Only call this when the
+     * database holds every journaled status.
+     *
+     * @return the Future completed once the journal is empty
+     */
+    public Future<Void> truncate() {
+        if (syncTimerId != -1) {
+            vertx.cancelTimer(syncTimerId);
+            syncTimerId = -1;
+        }
+        pending.clear();
+        return run(() -> {
+            FileChannel file = channel();
+            if (file.size() > 0) {
+                file.truncate(0);
+                file.force(true);
+            }
+        });
+    }
+
+    /**
+     * Sync what is still pending and close the file
+     *
+     * @return the Future completed once the journal is closed
+     */
+    public Future<Void> close() {
+        Future<Void> future = Future.future();
+        sync().setHandler(ar -> run(() -> {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }).setHandler(closed -> {
+            executor.close();
+            future.handle(ar.failed() ? ar : closed);
+        }));
+        return future;
+    }
+
+    /**
+     * Close the journal and remove its file. Only call this when the database holds every journaled
+     * status.
+     *
+     * @return the Future completed once the file is removed
+     */
+    public Future<Void> delete() {
+        pending.clear();
+        return close().compose(v -> {
+            Future<Void> future = Future.future();
+            vertx.<Void>executeBlocking(blocking -> {
+                try {
+                    Files.deleteIfExists(path);
+                    blocking.complete();
+                } catch (IOException e) {
+                    blocking.fail(e);
+                }
+            }, future);
+            return future;
+        });
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getSyncs() {
+        return syncs;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    private Future<Void> run(IOAction action) {
+        Future<Void> future = Future.future();
+        executor.<Void>executeBlocking(blocking -> {
+            try {
+                action.run();
+                blocking.complete();
+            } catch (IOException e) {
+                LOGGER.error("Error while writing the status journal " + path + ", cause : " + e);
+                blocking.fail(e);
+            }
+        }, true, future);
+        return future;
+    }
+
+    private static ByteBuffer encode(String key, String status) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(key.length() + 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(key);
+            out.writeUTF(status);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        record.flip();
+        return record;
+    }
+
+    @FunctionalInterface
+    private interface IOAction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,215 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind buffer for the status updates. Updates are merged per service (only the latest status
+ * is written) and flushed in one batched transaction, either when the batch is full or when the
+ * flush window is over. Only one flush runs at a time, when the buffer holds more than
+ * {@code maxPending} services it reports {@link #writeQueueFull()} until it drained below half of it.
+ * All the methods must be called from the owning event loop.
+ */
+public class StatusWriteBuffer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatusWriteBuffer.class);
+    private static final long REPORT_INTERVAL = 60 * 1000;
+
+    private final Vertx vertx;
+    private final ServiceStore store;
+    private final int maxBatchSize;
+    private final long flushWindowMs;
+    private final int maxPending;
+    private final LinkedHashMap<String, ServiceStatus> pending = new LinkedHashMap<>();
+    private final long reportTimerId;
+
+    private Handler<Map<String, ServiceStatus>> writtenHandler = batch -> {};
+    private Handler<Map<String, ServiceStatus>> failedHandler = batch -> {};
+    private Handler<Void> drainHandler;
+    private Future<Void> stopFuture;
+    private boolean flushing;
+    private long flushTimerId = -1;
+    private long batches;
+    private long rows;
+    private long lastReportBatches;
+    private long lastReportRows;
+    private long lastReportTime = System.currentTimeMillis();
+
+    /**
+     * @param vertx         the vertx instance
+     * @param store         the store the updates are written to
+     * @param maxBatchSize  the maximum number of rows written in one transaction
+     * @param flushWindowMs the maximum time an update waits in the buffer
+     * @param maxPending    the number of buffered services above which the writers should back off
+     */
+    public StatusWriteBuffer(Vertx vertx, ServiceStore store, int maxBatchSize, long flushWindowMs,
+                             int maxPending) {
+        if (maxBatchSize <= 0 || flushWindowMs <= 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("Invalid write buffer limits");
+        }
+        this.vertx = vertx;
+        this.store = store;
+        this.maxBatchSize = maxBatchSize;
+        this.flushWindowMs = flushWindowMs;
+        this.maxPending = maxPending;
+        this.reportTimerId = vertx.setPeriodic(REPORT_INTERVAL, id -> report());
+    }
+
+    /**
+     * Buffer the status of the service, replacing any status of the same service which was not
+     * written yet
+     *
+     * @param key    the key of the service
+     * @param status the status
+     */
+    public void offer(String key, ServiceStatus status) {
+        pending.put(key, status);
+        if (pending.size() >= maxBatchSize) {
+            flush();
+        } else if (!flushing) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * @return true when the writers should stop producing updates until the drain handler is called
+     */
+    public boolean writeQueueFull() {
+        return pending.size() >= maxPending;
+    }
+
+    public StatusWriteBuffer drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
+    /**
+     * @param handler called with the updates of every batch which was committed
+     */
+    public StatusWriteBuffer writtenHandler(Handler<Map<String, ServiceStatus>> handler) {
+        this.writtenHandler = handler;
+        return this;
+    }
+
+    /**
+     * @param handler called with the updates of every batch which could not be written
+     */
+    public StatusWriteBuffer failedHandler(Handler<Map<String, ServiceStatus>> handler) {
+        this.failedHandler = handler;
+        return this;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return true when every offered update was written or failed
+     */
+    public boolean isIdle() {
+        return pending.isEmpty() && !flushing;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    private void flush() {
+        if (flushTimerId != -1) {
+            vertx.cancelTimer(flushTimerId);
+            flushTimerId = -1;
+        }
+        if (flushing) {
+            return;
+        }
+        if (pending.isEmpty()) {
+            completeStop();
+            return;
+        }
+        Map<String, ServiceStatus> batch = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, ServiceStatus>> it = pending.entrySet().iterator();
+        while (it.hasNext() && batch.size() < maxBatchSize) {
+            Map.Entry<String, ServiceStatus> entry = it.next();
+            batch.put(entry.getKey(), entry.getValue());
+            it.remove();
+        }
+        flushing = true;
+        store.updateStatuses(batch).setHandler(ar -> {
+            flushing = false;
+            if (ar.succeeded()) {
+                batches++;
+                rows += batch.size();
+                LOGGER.debug("Flushed " + batch.size() + " status updates");
+                writtenHandler.handle(batch);
+            } else {
+                LOGGER.error("Error while flushing " + batch.size() + " status updates, cause : " + ar.cause());
+                // A newer status of the same service is still buffered and supersedes the failed one
+                batch.keySet().removeAll(pending.keySet());
+                failedHandler.handle(batch);
+            }
+            if (drainHandler != null && pending.size() < maxPending / 2) {
+                drainHandler.handle(null);
+            }
+            if (pending.size() >= maxBatchSize || stopFuture != null) {
+                flush();
+            } else if (!pending.isEmpty()) {
+                scheduleFlush();
+            }
+        });
+    }
+
+    private void scheduleFlush() {
+        if (flushTimerId == -1) {
+            flushTimerId = vertx.setTimer(flushWindowMs, id -> {
+                flushTimerId = -1;
+                flush();
+            });
+        }
+    }
+
+    private void completeStop() {
+        if (stopFuture != null && !stopFuture.isComplete()) {
+            stopFuture.complete();
+        }
+    }
+
+    /**
+     * Log the throughput of the buffer since the last report
+     */
+    private void report() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastReportTime) / 1000.0;
+        if (batches > lastReportBatches) {
+            LOGGER.info(String.format("Status write buffer : %.2f batches/sec, %.2f rows/sec, pending = %d",
+                    (batches - lastReportBatches) / seconds, (rows - lastReportRows) / seconds, pending.size()));
+        }
+        lastReportBatches = batches;
+        lastReportRows = rows;
+        lastReportTime = now;
+    }
+
+    /**
+     * Flush everything which is still buffered
+     *
+     * @return the Future completed once the buffer is empty
+     */
+    public Future<Void> stop() {
+        vertx.cancelTimer(reportTimerId);
+        if (stopFuture == null) {
+            stopFuture = Future.future();
+            flush();
+        }
+        return stopFuture;
+    }
+}
@@ -0,0 +1,53 @@
+package se.kry.codetest;
+
+/**
+ * Rate limit of the probes of one owner: the bucket holds up to {@code burst} tokens, refilled at
+ * {@code rate} tokens per second, and every probe takes one. The time is passed in by the caller.
+ * Not thread safe, the poller uses it from its event loop.
+ */
+final class TokenBucket {
+
+    private final double ratePerMs;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param rate  the tokens per second
+     * @param burst the capacity of the bucket, it starts full
+     * @param now   the current time in milliseconds
+     */
+    TokenBucket(double rate, double burst, long now) {
+        this.ratePerMs = rate / 1000;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAt = now;
+    }
+
+    /**
+     * @return true when a token was taken
+     */
+    boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * @return true when the bucket is full again, it can be dropped and created again when needed
+     */
+    boolean isFull(long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+
+    private void refill(long now) {
+        if (now > refilledAt) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerMs);
+            refilledAt = now;
+        }
+    }
+}
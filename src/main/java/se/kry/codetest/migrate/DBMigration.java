@@ -1,26 +1,31 @@
 package se.kry.codetest.migrate;
 
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
 import se.kry.codetest.DBConnector;
 
+/**
+ * Migrate the database without starting the application, the path of the database is the
+ * optional argument
+ */
 public class DBMigration {
 
   public static void main(String[] args) {
     Vertx vertx = Vertx.vertx();
-    DBConnector connector = null;
-    try {
-       connector = new DBConnector(vertx);
-    } catch (Exception e) {
-      e.printStackTrace();
+    JsonObject config = new JsonObject();
+    if (args.length > 0) {
+      config.put("path", args[0]);
     }
-    connector.query("CREATE TABLE IF NOT EXISTS service (url VARCHAR(128) NOT NULL)").setHandler(done -> {
+    DBConnector connector = new DBConnector(vertx, config);
+    new MigrationRunner(connector).migrate().setHandler(done -> {
       if(done.succeeded()){
-        System.out.println("completed db migrations");
+        System.out.println("completed db migrations, schema version " + done.result());
       } else {
         done.cause().printStackTrace();
       }
+      connector.stop();
       vertx.close(shutdown -> {
-        System.exit(0);
+        System.exit(done.succeeded() ? 0 : 1);
       });
     });
   }
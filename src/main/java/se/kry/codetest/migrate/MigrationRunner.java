@@ -0,0 +1,193 @@
+package se.kry.codetest.migrate;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import se.kry.codetest.DBConnector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Brings the database schema to the latest version. The applied versions are recorded in the
+ * {@code schema_version} table and every pending migration runs in its own transaction together
+ * with its version row, so a migration is applied completely or not at all, and at most once.
+ * <p>
+ * The statements of a migration are computed from the schema found when it runs, which lets the
+ * first migrations adopt the databases created before the versions were tracked. Migrations are
+ * never changed once released, a schema change is a new migration at the end of the list.
+ */
+public class MigrationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationRunner.class);
+
+    private static final String SQL_CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS schema_version " +
+            "(version INTEGER NOT NULL PRIMARY KEY, description TEXT NOT NULL, applied_at TEXT NOT NULL)";
+    private static final String SQL_SELECT_VERSION = "SELECT max(version) AS version FROM schema_version";
+    private static final String SQL_INSERT_VERSION = "INSERT INTO schema_version (version, description, " +
+            "applied_at) values(%d, '%s', strftime('%%Y-%%m-%%d %%H:%%M:%%f', 'now'))";
+    private static final String SQL_SELECT_TABLES = "SELECT name FROM sqlite_master WHERE type = 'table'";
+    private static final String SERVICE_COLUMNS = "(name TEXT NOT NULL, url TEXT NOT NULL PRIMARY KEY, " +
+            "created_datetime TEXT NOT NULL, status TEXT NOT NULL)";
+
+    static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            new Migration(1, "Create the service table", schema -> {
+                if (!schema.hasTable("service")) {
+                    return Collections.singletonList("CREATE TABLE service " + SERVICE_COLUMNS);
+                }
+                if (schema.hasColumn("service", "name")) {
+                    return Collections.emptyList();
+                }
+                // The table of the first DBMigration only had the URL, without a key
+                return Arrays.asList(
+                        "CREATE TABLE service_v1 " + SERVICE_COLUMNS,
+                        "INSERT OR IGNORE INTO service_v1 (name, url, created_datetime, status) " +
+                                "SELECT url, url, strftime('%Y-%m-%d %H:%M:%f', 'now'), 'UNKNOWN' FROM service",
+                        "DROP TABLE service",
+                        "ALTER TABLE service_v1 RENAME TO service");
+            }),
+            new Migration(2, "Add the poll interval of the services", schema ->
+                    schema.hasColumn("service", "poll_interval") ? Collections.emptyList()
+                            : Collections.singletonList("ALTER TABLE service " +
+                            "ADD COLUMN poll_interval INTEGER NOT NULL DEFAULT 60")),
+            new Migration(3, "Create the history tables", schema -> Arrays.asList(
+                    "CREATE TABLE IF NOT EXISTS service_history (url TEXT NOT NULL, " +
+                            "checked_at INTEGER NOT NULL, latency_ms INTEGER NOT NULL, http_code INTEGER, " +
+                            "outcome TEXT NOT NULL)",
+                    "CREATE INDEX IF NOT EXISTS service_history_checked_at ON service_history (checked_at)",
+                    "CREATE TABLE IF NOT EXISTS service_rollup (url TEXT NOT NULL, resolution TEXT NOT NULL, " +
+                            "bucket_start INTEGER NOT NULL, samples INTEGER NOT NULL, ok_count INTEGER NOT NULL, " +
+                            "fail_count INTEGER NOT NULL, unknown_count INTEGER NOT NULL, " +
+                            "latency_sum INTEGER NOT NULL, latency_min INTEGER NOT NULL, " +
+                            "latency_max INTEGER NOT NULL, PRIMARY KEY (url, resolution, bucket_start)) WITHOUT ROWID",
+                    "CREATE INDEX IF NOT EXISTS service_rollup_bucket ON service_rollup (resolution, bucket_start)")),
+            new Migration(4, "Add the owner of the services", schema ->
+                    schema.hasColumn("service", "owner") ? Collections.emptyList()
+                            : Collections.singletonList("ALTER TABLE service ADD COLUMN owner TEXT")),
+            new Migration(5, "Index the services by status, owner and creation time", schema -> Arrays.asList(
+                    "CREATE INDEX IF NOT EXISTS service_status ON service (status)",
+                    "CREATE INDEX IF NOT EXISTS service_owner ON service (owner, created_datetime)",
+                    "CREATE INDEX IF NOT EXISTS service_created ON service (created_datetime)")),
+            new Migration(6, "Add the check definition of the services", schema ->
+                    schema.hasColumn("service", "check_definition") ? Collections.emptyList()
+                            : Collections.singletonList("ALTER TABLE service ADD COLUMN check_definition TEXT")),
+            // The empty owner stands for no owner, a NULL would make every service without owner distinct
+            new Migration(7, "Key the services by owner and URL", schema -> Arrays.asList(
+                    "CREATE TABLE service_v7 (name TEXT NOT NULL, url TEXT NOT NULL, " +
+                            "created_datetime TEXT NOT NULL, status TEXT NOT NULL, " +
+                            "poll_interval INTEGER NOT NULL DEFAULT 60, owner TEXT NOT NULL DEFAULT '', " +
+                            "check_definition TEXT, PRIMARY KEY (owner, url))",
+                    "INSERT INTO service_v7 (name, url, created_datetime, status, poll_interval, owner, " +
+                            "check_definition) SELECT name, url, created_datetime, status, poll_interval, " +
+                            "coalesce(owner, ''), check_definition FROM service",
+                    "DROP TABLE service",
+                    "ALTER TABLE service_v7 RENAME TO service",
+                    "CREATE INDEX service_status ON service (status)",
+                    "CREATE INDEX service_owner ON service (owner, created_datetime)",
+                    "CREATE INDEX service_created ON service (created_datetime)"))
+    ));
+
+    private final DBConnector connector;
+    private final List<Migration> migrations;
+
+    public MigrationRunner(DBConnector connector) {
+        this(connector, MIGRATIONS);
+    }
+
+    MigrationRunner(DBConnector connector, List<Migration> migrations) {
+        this.connector = connector;
+        this.migrations = migrations;
+    }
+
+    /**
+     * Apply the pending migrations, in order
+     *
+     * @return the Future of the schema version once they are applied
+     */
+    public Future<Integer> migrate() {
+        return connector.execute(SQL_CREATE_VERSION_TABLE)
+                .compose(v -> connector.query(SQL_SELECT_VERSION))
+                .compose(rs -> {
+                    Integer version = rs.getRows().get(0).getInteger("version");
+                    int current = version == null ? 0 : version;
+                    Future<Integer> chain = Future.succeededFuture(current);
+                    for (Migration migration : migrations) {
+                        if (migration.version > current) {
+                            chain = chain.compose(v -> apply(migration));
+                        }
+                    }
+                    return chain;
+                });
+    }
+
+    private Future<Integer> apply(Migration migration) {
+        return readSchema().compose(schema -> {
+            List<String> statements = new ArrayList<>(migration.statements.apply(schema));
+            statements.add(String.format(SQL_INSERT_VERSION, migration.version,
+                    migration.description.replace("'", "''")));
+            return connector.executeInTransaction(statements);
+        }).map(v -> {
+            LOGGER.info("Applied the schema migration " + migration.version + " : " + migration.description);
+            return migration.version;
+        });
+    }
+
+    private Future<Schema> readSchema() {
+        Schema schema = new Schema();
+        return connector.query(SQL_SELECT_TABLES).compose(tables -> {
+            Future<Void> chain = Future.succeededFuture();
+            for (JsonObject table : tables.getRows()) {
+                String name = table.getString("name");
+                chain = chain.compose(v -> connector.query("PRAGMA table_info(\"" + name + "\")").map(columns -> {
+                    Set<String> names = new HashSet<>();
+                    columns.getRows().forEach(column -> names.add(column.getString("name")));
+                    schema.columns.put(name, names);
+                    return null;
+                }));
+            }
+            return chain;
+        }).map(v -> schema);
+    }
+
+    /**
+     * One version of the schema
+     */
+    static final class Migration {
+        private final int version;
+        private final String description;
+        private final Function<Schema, List<String>> statements;
+
+        Migration(int version, String description, Function<Schema, List<String>> statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+
+        int getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * The tables and columns of the database when a migration runs
+     */
+    static final class Schema {
+        private final Map<String, Set<String>> columns = new HashMap<>();
+
+        boolean hasTable(String table) {
+            return columns.containsKey(table);
+        }
+
+        boolean hasColumn(String table, String column) {
+            return columns.getOrDefault(table, Collections.emptySet()).contains(column);
+        }
+    }
+}
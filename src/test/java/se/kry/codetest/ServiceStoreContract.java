@@ -0,0 +1,224 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The behaviour every {@link ServiceStore} must have, run against each implementation by its
+ * subclass.
+ */
+@ExtendWith(VertxExtension.class)
+public abstract class ServiceStoreContract {
+
+  protected Path dir;
+
+  /**
+   * Open a store on the files of a directory, again on the same files when it is called again
+   */
+  protected abstract Future<ServiceStore> open(Vertx vertx, Path dir);
+
+  @BeforeEach
+  void create_directory() throws IOException {
+    dir = Files.createTempDirectory("service-store");
+  }
+
+  @AfterEach
+  void delete_directory() {
+    File[] files = dir.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.toFile().delete();
+  }
+
+  @Test
+  @DisplayName("The inserted services are read back with all their fields")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void inserts_and_scans(Vertx vertx, VertxTestContext testContext) {
+    Service owned = service("https://kry.se", ServiceStatus.OK);
+    owned.setOwner("team-a");
+    owned.setCheck(ServiceCheck.fromJson(new JsonObject().put("bodyContains", "UP")));
+    Service other = service("https://www.google.com", ServiceStatus.UNKNOWN);
+    open(vertx, dir).compose(store -> store.insert(Arrays.asList(owned, other))
+        .compose(v -> scanAll(store)))
+        .setHandler(testContext.succeeding(stored -> testContext.verify(() -> {
+          assertEquals(2, stored.size());
+          assertSameService(owned, stored.get(owned.getKey()));
+          assertEquals("team-a", stored.get(owned.getKey()).getOwner());
+          assertSameService(other, stored.get(other.getUrl()));
+          assertNull(stored.get(other.getUrl()).getOwner());
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("A batch with an URL already stored is not inserted at all")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void rejects_duplicate_batch(Vertx vertx, VertxTestContext testContext) {
+    Service first = service("https://kry.se", ServiceStatus.UNKNOWN);
+    Service second = service("https://www.google.com", ServiceStatus.UNKNOWN);
+    open(vertx, dir).compose(store -> store.insert(Collections.singletonList(first))
+        .compose(v -> {
+          Future<Map<String, Service>> stored = Future.future();
+          store.insert(Arrays.asList(second, first)).setHandler(ar -> {
+            if (ar.succeeded()) {
+              stored.fail("The batch with a duplicate URL was inserted");
+            } else {
+              scanAll(store).setHandler(stored);
+            }
+          });
+          return stored;
+        }))
+        .setHandler(testContext.succeeding(stored -> testContext.verify(() -> {
+          assertEquals(1, stored.size());
+          assertSameService(first, stored.get(first.getUrl()));
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("The status updates and deletes are applied, the unknown URLs are ignored")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void updates_and_deletes(Vertx vertx, VertxTestContext testContext) {
+    Service kept = service("https://kry.se", ServiceStatus.UNKNOWN);
+    Service deleted = service("https://www.google.com", ServiceStatus.UNKNOWN);
+    Map<String, ServiceStatus> statuses = new LinkedHashMap<>();
+    statuses.put(kept.getUrl(), ServiceStatus.FAIL);
+    statuses.put("https://unknown.kry.se", ServiceStatus.OK);
+    open(vertx, dir).compose(store -> store.insert(Arrays.asList(kept, deleted))
+        .compose(v -> store.updateStatuses(statuses))
+        .compose(v -> store.delete(deleted.getUrl()))
+        .compose(v -> store.delete("https://unknown.kry.se"))
+        .compose(v -> scanAll(store)))
+        .setHandler(testContext.succeeding(stored -> testContext.verify(() -> {
+          assertEquals(1, stored.size());
+          assertEquals(ServiceStatus.FAIL, stored.get(kept.getUrl()).getStatus());
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("The same URL of two owners is stored, updated and deleted for each owner alone")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void keys_by_owner_and_url(Vertx vertx, VertxTestContext testContext) {
+    Service alice = service("https://kry.se", ServiceStatus.UNKNOWN);
+    alice.setOwner("alice");
+    Service bob = service("https://kry.se", ServiceStatus.UNKNOWN);
+    bob.setOwner("bob");
+    Service anonymous = service("https://kry.se", ServiceStatus.UNKNOWN);
+    open(vertx, dir).compose(store -> store.insert(Arrays.asList(alice, bob, anonymous))
+        .compose(v -> store.updateStatuses(Collections.singletonMap(bob.getKey(), ServiceStatus.FAIL)))
+        .compose(v -> store.delete(alice.getKey()))
+        .compose(v -> scanAll(store)))
+        .setHandler(testContext.succeeding(stored -> testContext.verify(() -> {
+          assertEquals(2, stored.size());
+          assertNull(stored.get(alice.getKey()));
+          assertEquals(ServiceStatus.FAIL, stored.get(bob.getKey()).getStatus());
+          assertSameService(anonymous, stored.get(anonymous.getUrl()));
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("The scan of an owner only reads the services of that owner")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void scans_owner(Vertx vertx, VertxTestContext testContext) {
+    Service alice = service("https://kry.se", ServiceStatus.UNKNOWN);
+    alice.setOwner("alice");
+    Service bob = service("https://kry.se", ServiceStatus.UNKNOWN);
+    bob.setOwner("bob");
+    Service anonymous = service("https://www.google.com", ServiceStatus.UNKNOWN);
+    open(vertx, dir).compose(store -> store.insert(Arrays.asList(alice, bob, anonymous))
+        .compose(v -> scanOwner(store, "alice")
+            .compose(ofAlice -> scanOwner(store, null).map(ofNobody -> Arrays.asList(ofAlice, ofNobody)))))
+        .setHandler(testContext.succeeding(scans -> testContext.verify(() -> {
+          assertEquals(1, scans.get(0).size());
+          assertSameService(alice, scans.get(0).get(alice.getKey()));
+          assertEquals(1, scans.get(1).size());
+          assertSameService(anonymous, scans.get(1).get(anonymous.getKey()));
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("The services are found again after the store is closed and opened")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void persists_across_reopen(Vertx vertx, VertxTestContext testContext) {
+    Service kept = service("https://kry.se", ServiceStatus.UNKNOWN);
+    Service deleted = service("https://www.google.com", ServiceStatus.UNKNOWN);
+    open(vertx, dir).compose(store -> store.insert(Arrays.asList(kept, deleted))
+        .compose(v -> store.updateStatuses(Collections.singletonMap(kept.getUrl(), ServiceStatus.OK)))
+        .compose(v -> store.delete(deleted.getUrl()))
+        .compose(v -> store.close()))
+        .compose(v -> open(vertx, dir))
+        .compose(store -> scanAll(store).compose(stored -> store.close().map(stored)))
+        .setHandler(testContext.succeeding(stored -> testContext.verify(() -> {
+          assertEquals(1, stored.size());
+          kept.setStatus(ServiceStatus.OK);
+          assertSameService(kept, stored.get(kept.getUrl()));
+          testContext.completeNow();
+        })));
+  }
+
+  protected static Service service(String url, ServiceStatus status) {
+    // Whole milliseconds since the SQLite store keeps the time as text
+    return new Service("name of " + url, url, 1546300800123L, status, 30);
+  }
+
+  protected static Future<Map<String, Service>> scanAll(ServiceStore store) {
+    Map<String, Service> stored = new HashMap<>();
+    return store.scan(stream -> {
+      Future<Void> done = Future.future();
+      stream.exceptionHandler(done::tryFail);
+      stream.endHandler(v -> done.tryComplete());
+      stream.handler(service -> stored.put(service.getKey(), service));
+      return done;
+    }).map(stored);
+  }
+
+  private static Future<Map<String, Service>> scanOwner(ServiceStore store, String owner) {
+    Map<String, Service> stored = new HashMap<>();
+    return store.scan(owner, stream -> {
+      Future<Void> done = Future.future();
+      stream.exceptionHandler(done::tryFail);
+      stream.endHandler(v -> done.tryComplete());
+      stream.handler(service -> stored.put(service.getKey(), service));
+      return done;
+    }).map(stored);
+  }
+
+  protected static void assertSameService(Service expected, Service actual) {
+    assertEquals(expected.getUrl(), actual.getUrl());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+    assertEquals(expected.getStatus(), actual.getStatus());
+    assertEquals(expected.getPollInterval(), actual.getPollInterval());
+    assertEquals(expected.getOwner(), actual.getOwner());
+    assertEquals(expected.getCheck(), actual.getCheck());
+  }
+}
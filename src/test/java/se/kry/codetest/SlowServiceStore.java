@@ -0,0 +1,57 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A store whose status updates complete when the test says so, the other operations succeed at once
+ */
+class SlowServiceStore implements ServiceStore {
+
+  final Deque<Future<Void>> writes = new ArrayDeque<>();
+  final Deque<Map<String, ServiceStatus>> batches = new ArrayDeque<>();
+
+  @Override
+  public Future<Void> open() {
+    return Future.succeededFuture();
+  }
+
+  @Override
+  public Future<Void> insert(List<Service> services) {
+    return Future.succeededFuture();
+  }
+
+  @Override
+  public Future<Void> delete(String key) {
+    return Future.succeededFuture();
+  }
+
+  @Override
+  public Future<Void> updateStatuses(Map<String, ServiceStatus> statuses) {
+    Future<Void> write = Future.future();
+    writes.add(write);
+    batches.add(statuses);
+    return write;
+  }
+
+  @Override
+  public Future<Void> scan(Function<ReadStream<Service>, Future<Void>> consumer) {
+    return Future.succeededFuture();
+  }
+
+  @Override
+  public Future<Void> scan(String owner, Function<ReadStream<Service>, Future<Void>> consumer) {
+    return Future.succeededFuture();
+  }
+
+  @Override
+  public Future<Void> close() {
+    return Future.succeededFuture();
+  }
+}
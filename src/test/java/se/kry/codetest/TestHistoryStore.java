@@ -0,0 +1,165 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import se.kry.codetest.migrate.MigrationRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(VertxExtension.class)
+public class TestHistoryStore {
+
+  private static final String KEY = "alice http://a.example.com";
+  // 2019-01-01T10:30:30Z
+  private static final long NOW = 1546338630000L;
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  private Path dir;
+  private DBConnector connector;
+
+  @BeforeEach
+  void create_database(Vertx vertx, VertxTestContext testContext) throws IOException {
+    dir = Files.createTempDirectory("history-store");
+    connector = new DBConnector(vertx, new JsonObject().put("path", dir.resolve("poller.db").toString()));
+    new MigrationRunner(connector).migrate().setHandler(testContext.succeeding(v -> testContext.completeNow()));
+  }
+
+  @AfterEach
+  void delete_database() {
+    connector.stop();
+    File[] files = dir.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.toFile().delete();
+  }
+
+  @Test
+  @DisplayName("The samples are rolled up into minutes, the minutes into hours and the hours into days")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void rolls_up(Vertx vertx, VertxTestContext testContext) {
+    HistoryStore history = new HistoryStore(vertx, connector, new JsonObject());
+    vertx.runOnContext(start -> {
+      history.record(KEY, NOW - 80000, 100, 200, "OK");
+      history.record(KEY, NOW - 40000, 300, 500, "FAIL");
+      history.record(KEY, NOW - 25000, 200, 200, "OK");
+      // Another service, another bucket
+      history.record("http://b.example.com", NOW - 25000, 50, 200, "OK");
+      history.rollup(NOW)
+          .compose(v -> history.history(KEY, HistoryStore.Resolution.MINUTE, NOW - HOUR, NOW + MINUTE))
+          .compose(minutes -> {
+            testContext.verify(() -> {
+              assertEquals(2, minutes.size());
+              assertBucket(minutes.getJsonObject(0), NOW - 30000 - MINUTE, 2, 1, 1, 200, 100, 300);
+              assertBucket(minutes.getJsonObject(1), NOW - 30000, 1, 1, 0, 200, 200, 200);
+            });
+            return history.history(KEY, HistoryStore.Resolution.HOUR, NOW - DAY, NOW + HOUR);
+          })
+          .compose(hours -> {
+            testContext.verify(() -> {
+              assertEquals(1, hours.size());
+              assertBucket(hours.getJsonObject(0), NOW - 30 * MINUTE - 30000, 3, 2, 1, 200, 100, 300);
+            });
+            return history.history(KEY, HistoryStore.Resolution.DAY, NOW - 2 * DAY, NOW + DAY);
+          })
+          .compose(days -> {
+            testContext.verify(() -> {
+              assertEquals(1, days.size());
+              assertBucket(days.getJsonObject(0), NOW - 10 * HOUR - 30 * MINUTE - 30000, 3, 2, 1, 200, 100, 300);
+            });
+            return history.stop();
+          })
+          .setHandler(testContext.succeeding(v -> testContext.completeNow()));
+    });
+  }
+
+  @Test
+  @DisplayName("Every level is deleted after its retention, the coarser levels are kept")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void applies_retention(Vertx vertx, VertxTestContext testContext) {
+    HistoryStore history = new HistoryStore(vertx, connector, new JsonObject()
+        .put("raw_retention", HOUR).put("minute_retention", HOUR));
+    vertx.runOnContext(start -> {
+      history.record(KEY, NOW - 25000, 200, 200, "OK");
+      long later = NOW + 2 * HOUR;
+      history.rollup(NOW)
+          .compose(v -> history.rollup(later))
+          .compose(v -> connector.query("SELECT count(*) FROM service_history"))
+          .compose(raw -> {
+            testContext.verify(() -> assertEquals(0, (long) raw.getResults().get(0).getLong(0)));
+            return history.history(KEY, HistoryStore.Resolution.MINUTE, NOW - HOUR, later);
+          })
+          .compose(minutes -> {
+            testContext.verify(() -> assertEquals(new JsonArray(), minutes));
+            return history.history(KEY, HistoryStore.Resolution.HOUR, NOW - HOUR, later);
+          })
+          .compose(hours -> {
+            testContext.verify(() -> {
+              assertEquals(1, hours.size());
+              assertEquals(1, (long) hours.getJsonObject(0).getLong("samples"));
+            });
+            return history.stop();
+          })
+          .setHandler(testContext.succeeding(v -> testContext.completeNow()));
+    });
+  }
+
+  @Test
+  @DisplayName("The pollers of every event loop record into the same store without losing a sample")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void records_from_every_thread(Vertx vertx, VertxTestContext testContext) throws InterruptedException {
+    HistoryStore history = new HistoryStore(vertx, connector, new JsonObject().put("batch_size", 7));
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      String key = "http://" + t + ".example.com";
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 5000; i++) {
+          history.record(key, NOW - i, 100, 200, "OK");
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    history.stop()
+        .compose(v -> connector.query("SELECT count(*) FROM service_history"))
+        .setHandler(testContext.succeeding(count -> testContext.verify(() -> {
+          assertEquals(40000, (long) count.getResults().get(0).getLong(0));
+          assertEquals(0, history.getDropped());
+          testContext.completeNow();
+        })));
+  }
+
+  private static void assertBucket(JsonObject bucket, long start, long samples, long ok, long fail,
+                                   long latencyAvg, long latencyMin, long latencyMax) {
+    assertEquals(start, (long) bucket.getLong("start"));
+    assertEquals(samples, (long) bucket.getLong("samples"));
+    assertEquals(ok, (long) bucket.getLong("ok"));
+    assertEquals(fail, (long) bucket.getLong("fail"));
+    assertEquals(0, (long) bucket.getLong("unknown"));
+    assertEquals(latencyAvg, (long) bucket.getLong("latencyAvg"));
+    assertEquals(latencyMin, (long) bucket.getLong("latencyMin"));
+    assertEquals(latencyMax, (long) bucket.getLong("latencyMax"));
+  }
+}
@@ -0,0 +1,49 @@
+package se.kry.codetest;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestLatencyHistogram {
+
+  @Test
+  @DisplayName("A value equal to an upper bound is in that bucket, the next value in the following one")
+  void bounds_are_inclusive() {
+    assertEquals(0, LatencyHistogram.bucket(0));
+    int buckets = 0;
+    while (LatencyHistogram.upperBound(buckets) != Long.MAX_VALUE) {
+      long bound = LatencyHistogram.upperBound(buckets);
+      assertEquals(buckets, LatencyHistogram.bucket(bound), "bound " + bound);
+      assertEquals(buckets + 1, LatencyHistogram.bucket(bound + 1), "above bound " + bound);
+      if (buckets > 0) {
+        long previous = LatencyHistogram.upperBound(buckets - 1);
+        assertTrue(bound > previous && bound <= previous * 3 / 2, "bound " + bound);
+      }
+      buckets++;
+    }
+    assertEquals(buckets, LatencyHistogram.bucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  @DisplayName("The Prometheus buckets are cumulative and the sum is in seconds")
+  void writes_prometheus_format() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1L << 16);
+    histogram.record((1L << 16) + 1);
+    histogram.record(-5);
+    histogram.record(1, TimeUnit.HOURS);
+    StringBuilder out = new StringBuilder();
+    histogram.writeTo(out, "latency_seconds", "route=\"/service\"");
+    String text = out.toString();
+    assertTrue(text.startsWith("latency_seconds_bucket{route=\"/service\",le=\"6.5536E-5\"} 2\n"
+        + "latency_seconds_bucket{route=\"/service\",le=\"9.8304E-5\"} 3\n"), text);
+    assertTrue(text.contains("latency_seconds_bucket{route=\"/service\",le=\"+Inf\"} 4\n"), text);
+    assertTrue(text.contains("latency_seconds_sum{route=\"/service\"} 3600.000131073\n"), text);
+    assertTrue(text.endsWith("latency_seconds_count{route=\"/service\"} 4\n"), text);
+    assertEquals(4, histogram.getCount());
+  }
+}
@@ -0,0 +1,111 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestLogServiceStore extends ServiceStoreContract {
+
+  private static final int SERVICES = 20;
+
+  @Override
+  protected Future<ServiceStore> open(Vertx vertx, Path dir) {
+    return open(vertx, dir, new JsonObject()).map(store -> store);
+  }
+
+  private Future<LogServiceStore> open(Vertx vertx, Path dir, JsonObject config) {
+    LogServiceStore store = new LogServiceStore(vertx, config.put("path", dir.resolve("services.log").toString()));
+    return store.open().map(store);
+  }
+
+  @Test
+  @DisplayName("The log is compacted as the status updates pile up, without losing any service")
+  @Timeout(value = 20, timeUnit = TimeUnit.SECONDS)
+  void compacts(Vertx vertx, VertxTestContext testContext) {
+    List<Service> services = new ArrayList<>();
+    for (int i = 0; i < SERVICES; i++) {
+      services.add(service("https://service-" + i + ".kry.se", ServiceStatus.UNKNOWN));
+    }
+    JsonObject config = new JsonObject().put("compact_min_bytes", 4096);
+    open(vertx, dir, config).compose(store -> {
+      Future<Void> updated = store.insert(services);
+      for (int round = 0; round < 100; round++) {
+        ServiceStatus status = round % 2 == 0 ? ServiceStatus.OK : ServiceStatus.FAIL;
+        Map<String, ServiceStatus> statuses = new HashMap<>();
+        services.forEach(service -> statuses.put(service.getUrl(), status));
+        updated = updated.compose(v -> store.updateStatuses(statuses));
+      }
+      // The scan waits for a compaction queued by the last update
+      return updated.compose(v -> scanAll(store)).compose(stored -> {
+        testContext.verify(() -> {
+          assertTrue(store.getCompactions() > 0);
+          assertTrue(store.getSize() <= 2 * 4096);
+          assertEquals(SERVICES, stored.size());
+          stored.values().forEach(service -> assertEquals(ServiceStatus.FAIL, service.getStatus()));
+        });
+        return store.close();
+      });
+    })
+        .compose(v -> open(vertx, dir, config))
+        .compose(ServiceStoreContract::scanAll)
+        .setHandler(testContext.succeeding(stored -> testContext.verify(() -> {
+          assertEquals(SERVICES, stored.size());
+          for (Service service : services) {
+            // The last round set them FAIL
+            service.setStatus(ServiceStatus.FAIL);
+            assertSameService(service, stored.get(service.getUrl()));
+          }
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("A record torn by a crash at the end of the log is dropped, the next records are kept")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void drops_torn_record(Vertx vertx, VertxTestContext testContext) {
+    Service first = service("https://kry.se", ServiceStatus.OK);
+    Service second = service("https://www.google.com", ServiceStatus.UNKNOWN);
+    Path log = dir.resolve("services.log");
+    open(vertx, dir).compose(store -> store.insert(Collections.singletonList(first))
+        .compose(v -> store.close()))
+        .compose(v -> {
+          try {
+            // The length and the beginning of a record, the rest never reached the file
+            ByteBuffer torn = ByteBuffer.allocate(12).putInt(100).putInt(0x01020304).putInt(0x05060708);
+            torn.flip();
+            Files.write(log, torn.array(), StandardOpenOption.APPEND);
+          } catch (IOException e) {
+            return Future.failedFuture(e);
+          }
+          return open(vertx, dir);
+        })
+        .compose(store -> store.insert(Collections.singletonList(second)).compose(v -> store.close()))
+        .compose(v -> open(vertx, dir))
+        .compose(ServiceStoreContract::scanAll)
+        .setHandler(testContext.succeeding(stored -> testContext.verify(() -> {
+          assertEquals(2, stored.size());
+          assertSameService(first, stored.get(first.getUrl()));
+          assertSameService(second, stored.get(second.getUrl()));
+          testContext.completeNow();
+        })));
+  }
+}
@@ -1,7 +1,9 @@
 package se.kry.codetest;
 
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.client.WebClient;
 import io.vertx.junit5.Timeout;
 import io.vertx.junit5.VertxExtension;
@@ -11,9 +13,19 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(VertxExtension.class)
 public class TestMainVerticle {
@@ -37,4 +49,125 @@ public class TestMainVerticle {
         }));
   }
 
+  @Test
+  @DisplayName("The list of services has an entity tag of this boot and is revalidated with a 304")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void revalidates_with_etag(Vertx vertx, VertxTestContext testContext) {
+    WebClient client = WebClient.create(vertx);
+    client.get(8080, "::1", "/service").send(testContext.succeeding(first -> {
+      String etag = first.getHeader("etag");
+      testContext.verify(() -> {
+        assertTrue(etag.matches("W/\"[0-9a-z]+-[0-9]+\""), etag);
+        assertEquals("Cookie, Accept-Encoding", first.getHeader("vary"));
+      });
+      client.get(8080, "::1", "/service").putHeader("if-none-match", etag)
+          .send(testContext.succeeding(second -> testContext.verify(() -> {
+            assertEquals(304, second.statusCode());
+            assertEquals(etag, second.getHeader("etag"));
+            assertNull(second.body());
+            testContext.completeNow();
+          })));
+    }));
+  }
+
+  @Test
+  @DisplayName("The list of services is gzipped when the client accepts it")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void gzips_when_accepted(Vertx vertx, VertxTestContext testContext) {
+    WebClient client = WebClient.create(vertx);
+    client.get(8080, "::1", "/service").putHeader("accept-encoding", "gzip, deflate")
+        .send(testContext.succeeding(gzipped -> {
+          testContext.verify(() -> {
+            assertEquals("gzip", gzipped.getHeader("content-encoding"));
+            assertEquals("Cookie, Accept-Encoding", gzipped.getHeader("vary"));
+            assertEquals(1, new JsonArray(gunzip(gzipped.body())).size());
+          });
+          client.get(8080, "::1", "/service").putHeader("accept-encoding", "gzip;q=0, identity")
+              .send(testContext.succeeding(plain -> testContext.verify(() -> {
+                assertNull(plain.getHeader("content-encoding"));
+                assertEquals(1, plain.bodyAsJsonArray().size());
+                testContext.completeNow();
+              })));
+        }));
+  }
+
+  @Test
+  @DisplayName("A poll interval which is not a number is rejected as invalid input")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void rejects_poll_interval_string(Vertx vertx, VertxTestContext testContext) {
+    JsonObject body = new JsonObject().put("url", "https://kry.se/string-interval").put("name", "kry")
+        .put("pollInterval", "30");
+    WebClient.create(vertx).post(8080, "::1", "/service")
+        .sendJsonObject(body, testContext.succeeding(response -> testContext.verify(() -> {
+          assertEquals(400, response.statusCode());
+          assertEquals("INVALID INPUT", response.bodyAsString());
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("The static route is only timed for the files it serves, not for the API requests passing through it")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void times_static_files_only(Vertx vertx, VertxTestContext testContext) {
+    LatencyHistogram histogram = Metrics.histogram(HttpVerticle.HANDLER_DURATION, HttpVerticle.HANDLER_DURATION_HELP,
+        "method", "GET", "route", "/*");
+    WebClient client = WebClient.create(vertx);
+    long before = histogram.getCount();
+    client.get(8080, "::1", "/service").send(testContext.succeeding(api -> {
+      testContext.verify(() -> assertEquals(before, histogram.getCount()));
+      client.get(8080, "::1", "/index.html").send(testContext.succeeding(file -> testContext.verify(() -> {
+        assertEquals(200, file.statusCode());
+        assertEquals(before + 1, histogram.getCount());
+        testContext.completeNow();
+      })));
+    }));
+  }
+
+  @Test
+  @DisplayName("The history of a service with '+' and '%' in its URL is found with the URL encoded once in the path")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void finds_history_of_encoded_url(Vertx vertx, VertxTestContext testContext) throws UnsupportedEncodingException {
+    String url = "https://kry.se/search?q=a+b%25c";
+    String path = "/service/" + URLEncoder.encode(url, "UTF-8") + "/history";
+    WebClient client = WebClient.create(vertx);
+    client.post(8080, "::1", "/service").sendJsonObject(new JsonObject().put("url", url).put("name", "kry"),
+        testContext.succeeding(saved -> {
+          testContext.verify(() -> assertEquals(200, saved.statusCode()));
+          client.get(8080, "::1", path).send(testContext.succeeding(history -> testContext.verify(() -> {
+            assertEquals(200, history.statusCode(), history.bodyAsString());
+            client.post(8080, "::1", "/delete").sendJsonObject(new JsonObject().put("url", url),
+                testContext.succeeding(deleted -> testContext.verify(() -> {
+                  assertEquals(200, deleted.statusCode());
+                  testContext.completeNow();
+                })));
+          })));
+        }));
+  }
+
+  private static Buffer gunzip(Buffer gzipped) {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.getBytes()))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] chunk = new byte[4096];
+      for (int read; (read = in.read(chunk)) > 0; ) {
+        out.write(chunk, 0, read);
+      }
+      return Buffer.buffer(out.toByteArray());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Test
+  @DisplayName("Accept-Encoding is parsed with its quality values")
+  void parses_accept_encoding() {
+    assertTrue(HttpVerticle.acceptsGzip("gzip"));
+    assertTrue(HttpVerticle.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(HttpVerticle.acceptsGzip("*"));
+    assertFalse(HttpVerticle.acceptsGzip(null));
+    assertFalse(HttpVerticle.acceptsGzip("identity"));
+    assertFalse(HttpVerticle.acceptsGzip("gzip;q=0"));
+    assertFalse(HttpVerticle.acceptsGzip("gzip; q=0.000, identity"));
+    assertFalse(HttpVerticle.acceptsGzip("*;q=0"));
+    assertFalse(HttpVerticle.acceptsGzip("gzip;q=0, *"));
+  }
 }
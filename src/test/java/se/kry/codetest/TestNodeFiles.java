@@ -0,0 +1,86 @@
+package se.kry.codetest;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestNodeFiles {
+
+  private static final int BUSY_PORT = 9095;
+
+  @Test
+  @DisplayName("The node id prefixes the file names")
+  void prefixes_paths() {
+    assertEquals("status.journal", new NodeFiles(null).path("status.journal"));
+    assertEquals("a.status.journal", new NodeFiles("a").path("status.journal"));
+    assertEquals("data" + File.separator + "a.registry.snapshot", new NodeFiles("a").path("data/registry.snapshot"));
+  }
+
+  @Test
+  @DisplayName("A node id is locked by one holder at a time")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void locks_node(Vertx vertx, VertxTestContext testContext) {
+    String node = "test-" + System.nanoTime();
+    NodeFiles first = new NodeFiles(node);
+    NodeFiles second = new NodeFiles(node);
+    NodeFiles other = new NodeFiles(node + "-other");
+    first.lock(vertx)
+        .compose(v -> other.lock(vertx))
+        .compose(v -> second.lock(vertx).otherwise(e -> {
+          testContext.verify(() -> assertTrue(e instanceof IllegalStateException));
+          first.unlock();
+          return null;
+        }))
+        .compose(v -> second.lock(vertx))
+        .setHandler(testContext.succeeding(v -> {
+          second.unlock();
+          other.unlock();
+          new File(first.path("node.lock")).delete();
+          new File(other.path("node.lock")).delete();
+          testContext.completeNow();
+        }));
+  }
+
+  @Test
+  @DisplayName("A deployment which fails after taking the lock releases it, the next one can take it")
+  @Timeout(value = 20, timeUnit = TimeUnit.SECONDS)
+  void failed_deployment_unlocks(Vertx vertx, VertxTestContext testContext) throws IOException {
+    String node = "test-" + System.nanoTime();
+    DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject().put("node_id", node)
+        .put("http", new JsonObject().put("port", BUSY_PORT).put("instances", 1)));
+    // The HTTP server can not start, the port is taken outside of vertx
+    ServerSocket busy = new ServerSocket(BUSY_PORT);
+    vertx.deployVerticle(new MainVerticle(), options, testContext.failing(first ->
+        vertx.deployVerticle(new MainVerticle(), options, testContext.failing(second -> {
+          testContext.verify(() -> assertFalse(second instanceof IllegalStateException, second.toString()));
+          try {
+            busy.close();
+          } catch (IOException e) {
+            testContext.failNow(e);
+          }
+          File[] files = new File(".").listFiles((dir, name) -> name.startsWith(node + "."));
+          if (files != null) {
+            for (File file : files) {
+              file.delete();
+            }
+          }
+          testContext.completeNow();
+        }))));
+  }
+}
@@ -0,0 +1,178 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(VertxExtension.class)
+public class TestNotificationDispatcher {
+
+  private static final int PORT = 9097;
+
+  @Test
+  @DisplayName("Flapping is not notified, the other changes are sent in one batch and retried on failure")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void batches_settled_changes(Vertx vertx, VertxTestContext testContext) {
+    List<JsonObject> requests = new ArrayList<>();
+    vertx.createHttpServer().requestHandler(request -> request.bodyHandler(body -> {
+      requests.add(body.toJsonObject());
+      // The receiver fails the first request
+      request.response().setStatusCode(requests.size() == 1 ? 500 : 200).end();
+    })).listen(PORT, testContext.succeeding(server -> {
+      NotificationDispatcher dispatcher = new NotificationDispatcher(vertx, new JsonObject()
+          .put("sinks", new JsonArray().add(new JsonObject().put("url", "http://localhost:" + PORT + "/hook")))
+          .put("hysteresis", 200).put("batch_interval", 20).put("retry_delay", 20));
+      dispatcher.start();
+      Service flapping = new Service("flapping", "http://flapping.example.com", "", "FAIL", 1);
+      ServiceEventStream.publishStatus(vertx, flapping, ServiceStatus.OK);
+      for (int i = 0; i < 4; i++) {
+        ServiceEventStream.publishStatus(vertx, new Service("s" + i, "http://s" + i + ".example.com", "", "FAIL", 1),
+            ServiceStatus.OK);
+      }
+      ServiceEventStream.publishStatus(vertx, new Service("new", "http://new.example.com", "", "OK", 1),
+          ServiceStatus.UNKNOWN);
+      vertx.setTimer(50, id -> {
+        flapping.setStatus(ServiceStatus.OK);
+        ServiceEventStream.publishStatus(vertx, flapping, ServiceStatus.FAIL);
+      });
+      vertx.setTimer(1000, id -> testContext.verify(() -> {
+        dispatcher.stop();
+        assertEquals(2, requests.size());
+        assertEquals(requests.get(0), requests.get(1));
+        JsonArray transitions = requests.get(1).getJsonArray("transitions");
+        Set<String> urls = new HashSet<>();
+        for (int i = 0; i < transitions.size(); i++) {
+          JsonObject transition = transitions.getJsonObject(i);
+          assertEquals("OK", transition.getString("from"));
+          assertEquals("FAIL", transition.getString("to"));
+          urls.add(transition.getString("url"));
+        }
+        assertEquals(4, urls.size());
+        testContext.completeNow();
+      }));
+    }));
+  }
+
+  @Test
+  @DisplayName("A full queue drops its oldest changes and counts them")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void drops_oldest_when_full(Vertx vertx, VertxTestContext testContext) {
+    List<JsonObject> requests = new ArrayList<>();
+    long dropped = NotificationDispatcher.DROPPED.sum();
+    receiver(vertx, requests, 200).listen(PORT, testContext.succeeding(server -> {
+      NotificationDispatcher dispatcher = new NotificationDispatcher(vertx, new JsonObject()
+          .put("sinks", new JsonArray().add(new JsonObject().put("url", "http://localhost:" + PORT + "/hook")))
+          .put("hysteresis", 0).put("batch_interval", 200).put("queue_size", 2));
+      dispatcher.start();
+      for (int i = 0; i < 4; i++) {
+        ServiceEventStream.publishStatus(vertx, new Service("s" + i, "http://s" + i + ".example.com", "", "FAIL", 1),
+            ServiceStatus.OK);
+      }
+      vertx.setTimer(600, id -> testContext.verify(() -> {
+        dispatcher.stop();
+        assertEquals(1, requests.size());
+        assertEquals(Arrays.asList("http://s2.example.com", "http://s3.example.com"), urls(requests.get(0)));
+        assertEquals(2, NotificationDispatcher.DROPPED.sum() - dropped);
+        server.close();
+        testContext.completeNow();
+      }));
+    }));
+  }
+
+  @Test
+  @DisplayName("A sink of an owner only gets the changes of that owner")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void filters_by_owner(Vertx vertx, VertxTestContext testContext) {
+    List<JsonObject> requests = new ArrayList<>();
+    List<String> paths = new ArrayList<>();
+    vertx.createHttpServer().requestHandler(request -> request.bodyHandler(body -> {
+      requests.add(body.toJsonObject());
+      paths.add(request.path());
+      request.response().end();
+    })).listen(PORT, testContext.succeeding(server -> {
+      NotificationDispatcher dispatcher = new NotificationDispatcher(vertx, new JsonObject()
+          .put("sinks", new JsonArray()
+              .add(new JsonObject().put("url", "http://localhost:" + PORT + "/alice").put("owner", "alice"))
+              .add(new JsonObject().put("url", "http://localhost:" + PORT + "/all")))
+          .put("hysteresis", 0).put("batch_interval", 100));
+      dispatcher.start();
+      for (String owner : Arrays.asList("alice", "bob")) {
+        Service service = new Service(owner, "http://" + owner + ".example.com", "", "FAIL", 1);
+        service.setOwner(owner);
+        ServiceEventStream.publishStatus(vertx, service, ServiceStatus.OK);
+      }
+      vertx.setTimer(500, id -> testContext.verify(() -> {
+        dispatcher.stop();
+        assertEquals(2, requests.size());
+        JsonObject toAlice = requests.get(paths.indexOf("/alice"));
+        assertEquals(Arrays.asList("http://alice.example.com"), urls(toAlice));
+        assertEquals("alice", toAlice.getJsonArray("transitions").getJsonObject(0).getString("owner"));
+        assertEquals(2, urls(requests.get(paths.indexOf("/all"))).size());
+        server.close();
+        testContext.completeNow();
+      }));
+    }));
+  }
+
+  @Test
+  @DisplayName("A batch is dropped after its last retry and a deletion on another node cancels a change")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void gives_up_after_retries(Vertx vertx, VertxTestContext testContext) {
+    List<JsonObject> requests = new ArrayList<>();
+    long dropped = NotificationDispatcher.DROPPED.sum();
+    receiver(vertx, requests, 500).listen(PORT, testContext.succeeding(server -> {
+      NotificationDispatcher dispatcher = new NotificationDispatcher(vertx, new JsonObject()
+          .put("sinks", new JsonArray().add(new JsonObject().put("url", "http://localhost:" + PORT + "/hook")))
+          .put("hysteresis", 100).put("batch_interval", 20).put("max_retries", 2).put("retry_delay", 10));
+      dispatcher.start();
+      ServiceEventStream.publishStatus(vertx, new Service("kept", "http://kept.example.com", "", "FAIL", 1),
+          ServiceStatus.OK);
+      ServiceEventStream.publishStatus(vertx, new Service("deleted", "http://deleted.example.com", "", "FAIL", 1),
+          ServiceStatus.OK);
+      vertx.eventBus().publish(ServiceEventStream.ADDRESS, new JsonObject()
+          .put("type", ServiceEventStream.TYPE_DELETED).put("url", "http://deleted.example.com")
+          .put("node", "another-node"));
+      vertx.setTimer(1000, id -> testContext.verify(() -> {
+        dispatcher.stop();
+        // The first attempt and two retries
+        assertEquals(3, requests.size());
+        requests.forEach(request -> assertEquals(Arrays.asList("http://kept.example.com"), urls(request)));
+        assertEquals(1, NotificationDispatcher.DROPPED.sum() - dropped);
+        server.close();
+        testContext.completeNow();
+      }));
+    }));
+  }
+
+  private static HttpServer receiver(Vertx vertx, List<JsonObject> requests, int statusCode) {
+    return vertx.createHttpServer().requestHandler(request -> request.bodyHandler(body -> {
+      requests.add(body.toJsonObject());
+      request.response().setStatusCode(statusCode).end();
+    }));
+  }
+
+  private static List<String> urls(JsonObject request) {
+    JsonArray transitions = request.getJsonArray("transitions");
+    List<String> urls = new ArrayList<>();
+    for (int i = 0; i < transitions.size(); i++) {
+      urls.add(transitions.getJsonObject(i).getString("url"));
+    }
+    return urls;
+  }
+}
@@ -0,0 +1,102 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestPollScheduler {
+
+  private static final int SERVICES = 200;
+
+  // The clock of the wheel, only moved by the tests
+  private final long[] nanos = new long[1];
+
+  @Test
+  @DisplayName("Probes are spread over the poll interval and every service is polled in its first interval")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void spreads_probes_over_interval(Vertx vertx, VertxTestContext testContext) {
+    Map<String, Integer> probesPerUrl = new HashMap<>();
+    Map<Long, Integer> probesPerTick = new HashMap<>();
+    vertx.runOnContext(v -> testContext.verify(() -> {
+      // Created on the context of the test, so its calls are not handed over to another one
+      PollScheduler scheduler = new PollScheduler(vertx, 10, 64, 0.0, service -> {
+        probesPerUrl.merge(service.getUrl(), 1, Integer::sum);
+        probesPerTick.merge(TimeUnit.NANOSECONDS.toMillis(nanos[0]) / 100, 1, Integer::sum);
+      }, () -> nanos[0]);
+      for (int i = 0; i < SERVICES; i++) {
+        scheduler.schedule(new Service("s" + i, "http://host-" + i + ".example.com/health", "", "UNKNOWN", 1));
+      }
+      scheduler.start();
+      advance(scheduler, 1000);
+      scheduler.stop();
+      assertEquals(SERVICES, probesPerUrl.size());
+      probesPerUrl.values().forEach(count -> assertEquals(1, (int) count));
+      // With a uniform spread a 100ms window holds about 20 probes, a burst would hold all of them
+      probesPerTick.values().forEach(count -> assertTrue(count < SERVICES / 3, "burst of " + count));
+      testContext.completeNow();
+    }));
+  }
+
+  @Test
+  @DisplayName("A cancelled service is not polled any more")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void cancelled_service_not_polled(Vertx vertx, VertxTestContext testContext) {
+    Map<String, Integer> probesPerUrl = new HashMap<>();
+    vertx.runOnContext(v -> testContext.verify(() -> {
+      PollScheduler scheduler = new PollScheduler(vertx, 10, 64, 0.1,
+          service -> probesPerUrl.merge(service.getUrl(), 1, Integer::sum), () -> nanos[0]);
+      scheduler.schedule(new Service("a", "http://a.example.com", "", "UNKNOWN", 1));
+      scheduler.schedule(new Service("b", "http://b.example.com", "", "UNKNOWN", 1));
+      scheduler.cancel("http://b.example.com");
+      scheduler.start();
+      advance(scheduler, 2500);
+      scheduler.stop();
+      assertTrue(probesPerUrl.get("http://a.example.com") >= 2);
+      assertEquals(null, probesPerUrl.get("http://b.example.com"));
+      testContext.completeNow();
+    }));
+  }
+
+  @Test
+  @DisplayName("A late timer catches up with every tick it missed")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void catches_up_late_ticks(Vertx vertx, VertxTestContext testContext) {
+    Map<String, Integer> probesPerUrl = new HashMap<>();
+    vertx.runOnContext(v -> testContext.verify(() -> {
+      PollScheduler scheduler = new PollScheduler(vertx, 10, 64, 0.0,
+          service -> probesPerUrl.merge(service.getUrl(), 1, Integer::sum), () -> nanos[0]);
+      for (int i = 0; i < SERVICES; i++) {
+        scheduler.schedule(new Service("s" + i, "http://host-" + i + ".example.com/health", "", "UNKNOWN", 1));
+      }
+      scheduler.start();
+      // One timer for the whole interval, e.g. after a long pause of the event loop
+      nanos[0] += TimeUnit.MILLISECONDS.toNanos(1000);
+      scheduler.advance();
+      scheduler.stop();
+      assertEquals(SERVICES, probesPerUrl.size());
+      testContext.completeNow();
+    }));
+  }
+
+  /**
+   * Move the clock tick by tick, like the periodic timer would
+   */
+  private void advance(PollScheduler scheduler, long millis) {
+    for (long elapsed = 0; elapsed < millis; elapsed += 10) {
+      nanos[0] += TimeUnit.MILLISECONDS.toNanos(10);
+      scheduler.advance();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestPollerSharding {
+
+  private static final int KEYS = 100_000;
+
+  @Test
+  @DisplayName("The ring spreads the keys evenly and a new member only takes keys over")
+  void spreads_and_moves_few_keys() {
+    assertNull(new HashRing(Arrays.asList(), 128).owner("http://a.example.com/"));
+    HashRing ring = new HashRing(Arrays.asList("a", "b", "c", "d"), 128);
+    Map<String, Integer> keysPerMember = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      keysPerMember.merge(ring.owner("http://host-" + i + ".example.com/"), 1, Integer::sum);
+    }
+    assertEquals(4, keysPerMember.size());
+    keysPerMember.values().forEach(count ->
+        assertTrue(Math.abs(count - KEYS / 4) < KEYS / 4 * 0.2, "unbalanced " + keysPerMember));
+
+    HashRing grown = new HashRing(Arrays.asList("a", "b", "c", "d", "e"), 128);
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      String key = "http://host-" + i + ".example.com/";
+      String owner = grown.owner(key);
+      if (!owner.equals(ring.owner(key))) {
+        assertEquals("e", owner);
+        moved++;
+      }
+    }
+    // About a fifth of the keys move to the new member
+    assertTrue(moved > KEYS / 5 * 0.8 && moved < KEYS / 5 * 1.2, "moved " + moved);
+  }
+
+  @Test
+  @DisplayName("The instances see each other and a stopped instance is dropped at once")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void members_join_and_leave(Vertx vertx, VertxTestContext testContext) {
+    vertx.runOnContext(v -> {
+      ShardMembership a = new ShardMembership(vertx, "a", 50, 16, ring -> { });
+      ShardMembership b = new ShardMembership(vertx, "b", 50, 16, ring -> { });
+      a.start();
+      b.start();
+      vertx.setTimer(500, id -> {
+        testContext.verify(() -> {
+          assertEquals(2, a.getRing().size());
+          assertEquals(a.getRing().getMembers(), b.getRing().getMembers());
+        });
+        b.stop();
+        vertx.setTimer(20, id2 -> testContext.verify(() -> {
+          assertEquals(1, a.getRing().size());
+          assertEquals("a", a.getRing().owner("http://a.example.com/"));
+          a.stop();
+          testContext.completeNow();
+        }));
+      });
+    });
+  }
+}
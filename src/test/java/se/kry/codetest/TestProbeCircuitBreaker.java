@@ -0,0 +1,79 @@
+package se.kry.codetest;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestProbeCircuitBreaker {
+
+  private static final String KEY = "http://a.example.com";
+
+  @Test
+  @DisplayName("The circuit opens at the threshold and its backoff doubles with every failed trial up to the maximum")
+  void opens_with_exponential_backoff() {
+    ProbeCircuitBreaker breaker = new ProbeCircuitBreaker(3, 100, 400, 0);
+    breaker.onFailure(KEY, 0);
+    breaker.onFailure(KEY, 1);
+    assertEquals(ProbeCircuitBreaker.Decision.PROBE, breaker.acquire(KEY, 2));
+    assertEquals(0, breaker.getOpenCount());
+    breaker.onFailure(KEY, 2);
+    assertEquals(1, breaker.getOpenCount());
+    assertEquals(ProbeCircuitBreaker.Decision.SKIP, breaker.acquire(KEY, 101));
+    assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(KEY, 102));
+    // One trial at a time
+    assertEquals(ProbeCircuitBreaker.Decision.SKIP, breaker.acquire(KEY, 102));
+    breaker.onFailure(KEY, 102);
+    assertEquals(ProbeCircuitBreaker.Decision.SKIP, breaker.acquire(KEY, 301));
+    assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(KEY, 302));
+    breaker.onFailure(KEY, 302);
+    assertEquals(ProbeCircuitBreaker.Decision.SKIP, breaker.acquire(KEY, 701));
+    assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(KEY, 702));
+    breaker.onFailure(KEY, 702);
+    // Capped
+    assertEquals(ProbeCircuitBreaker.Decision.SKIP, breaker.acquire(KEY, 1101));
+    assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(KEY, 1102));
+    assertEquals(1, breaker.getOpenCount());
+  }
+
+  @Test
+  @DisplayName("A successful trial closes the circuit and a trial which did not run is tried again")
+  void closes_on_success() {
+    ProbeCircuitBreaker breaker = new ProbeCircuitBreaker(1, 100, 400, 0);
+    breaker.onFailure(KEY, 0);
+    assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(KEY, 100));
+    breaker.release(KEY);
+    assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(KEY, 100));
+    breaker.onSuccess(KEY);
+    assertEquals(0, breaker.getOpenCount());
+    assertEquals(ProbeCircuitBreaker.Decision.PROBE, breaker.acquire(KEY, 100));
+    // The failures are counted again from zero, the backoff starts over
+    breaker.onFailure(KEY, 200);
+    assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(KEY, 300));
+  }
+
+  @Test
+  @DisplayName("The jitter only shortens the backoff, by at most its ratio")
+  void jitters_backoff() {
+    ProbeCircuitBreaker breaker = new ProbeCircuitBreaker(1, 1000, 1000, 0.5);
+    for (int i = 0; i < 100; i++) {
+      String key = "http://s" + i + ".example.com";
+      breaker.onFailure(key, 0);
+      assertEquals(ProbeCircuitBreaker.Decision.SKIP, breaker.acquire(key, 499));
+      assertEquals(ProbeCircuitBreaker.Decision.TRIAL, breaker.acquire(key, 1000));
+    }
+    assertEquals(100, breaker.getOpenCount());
+  }
+
+  @Test
+  @DisplayName("The circuits of the services which are not polled any more are forgotten")
+  void retains_polled_services() {
+    ProbeCircuitBreaker breaker = new ProbeCircuitBreaker(1, 100, 400, 0);
+    breaker.onFailure(KEY, 0);
+    breaker.onFailure("http://b.example.com", 0);
+    breaker.retain(KEY::equals);
+    assertEquals(1, breaker.getOpenCount());
+    assertEquals(ProbeCircuitBreaker.Decision.PROBE, breaker.acquire("http://b.example.com", 0));
+    assertEquals(ProbeCircuitBreaker.Decision.SKIP, breaker.acquire(KEY, 0));
+  }
+}
@@ -0,0 +1,95 @@
+package se.kry.codetest;
+
+import io.vertx.core.Handler;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestProbePipeline {
+
+  private final long[] now = new long[1];
+  private final List<String> started = new ArrayList<>();
+  private final Map<String, Handler<Void>> running = new HashMap<>();
+
+  @Test
+  @DisplayName("A host gets at most its share of the slots and the hosts are served round robin")
+  void limits_per_host() {
+    ProbePipeline pipeline = new ProbePipeline(2, 1, 10, () -> now[0]);
+    submit(pipeline, "a:80", "a1", 100);
+    submit(pipeline, "a:80", "a2", 100);
+    submit(pipeline, "a:80", "a3", 100);
+    submit(pipeline, "b:80", "b1", 100);
+    submit(pipeline, "b:80", "b2", 100);
+    assertEquals(Arrays.asList("a1", "b1"), started);
+    assertEquals(3, pipeline.getQueued());
+    complete("a1");
+    complete("b1");
+    assertEquals(Arrays.asList("a1", "b1", "a2", "b2"), started);
+    complete("b2");
+    // b has nothing left, its slot goes to a which still has one probe in flight
+    assertEquals(4, started.size());
+    complete("a2");
+    assertEquals("a3", started.get(4));
+    assertEquals(4, pipeline.getCompleted());
+  }
+
+  @Test
+  @DisplayName("A probe which could not start before its deadline is missed, one which ended after it is late")
+  void counts_missed_and_late() {
+    ProbePipeline pipeline = new ProbePipeline(1, 1, 10, () -> now[0]);
+    submit(pipeline, "a:80", "first", 100);
+    submit(pipeline, "b:80", "second", 50);
+    submit(pipeline, "c:80", "third", 200);
+    now[0] = 150;
+    complete("first");
+    assertEquals(Arrays.asList("first", "third"), started);
+    assertEquals(1, pipeline.getMissed());
+    assertEquals(1, pipeline.getLate());
+    complete("third");
+    assertEquals(1, pipeline.getLate());
+    assertEquals(0, pipeline.getInFlight());
+    assertEquals(0, pipeline.getQueued());
+  }
+
+  @Test
+  @DisplayName("A full queue rejects the probes and a paused pipeline starts none")
+  void rejects_and_pauses() {
+    ProbePipeline pipeline = new ProbePipeline(1, 1, 1, () -> now[0]);
+    pipeline.pause();
+    assertTrue(submit(pipeline, "a:80", "a1", 100));
+    assertFalse(submit(pipeline, "b:80", "b1", 100));
+    assertEquals(1, pipeline.getRejected());
+    assertTrue(started.isEmpty());
+    pipeline.resume();
+    assertEquals(Arrays.asList("a1"), started);
+  }
+
+  @Test
+  @DisplayName("The host key is the lower case host and port, with the default port of the scheme")
+  void host_key() {
+    assertEquals("kry.se:443", ProbePipeline.hostKey("https://KRY.se/health"));
+    assertEquals("kry.se:8080", ProbePipeline.hostKey("http://kry.se:8080"));
+    assertEquals("10.0.0.1:80", ProbePipeline.hostKey("http://10.0.0.1?x=1"));
+    assertEquals("[::1]:80", ProbePipeline.hostKey("http://[::1]/"));
+  }
+
+  private boolean submit(ProbePipeline pipeline, String host, String name, long deadline) {
+    return pipeline.submit(host, deadline, done -> {
+      started.add(name);
+      running.put(name, done);
+    });
+  }
+
+  private void complete(String name) {
+    running.remove(name).handle(null);
+  }
+}
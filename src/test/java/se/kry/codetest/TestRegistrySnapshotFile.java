@@ -0,0 +1,186 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestRegistrySnapshotFile {
+
+  private static final int MAGIC = 0x4b525953;
+
+  private Path dir;
+  private Path path;
+
+  @BeforeEach
+  void create_directory() throws IOException {
+    dir = Files.createTempDirectory("registry-snapshot");
+    path = dir.resolve("registry.snapshot");
+  }
+
+  @AfterEach
+  void delete_directory() {
+    File[] files = dir.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.toFile().delete();
+  }
+
+  @Test
+  @DisplayName("The services written to the snapshot are read back with all their fields")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void writes_and_reads(Vertx vertx, VertxTestContext testContext) {
+    ServiceRegistry registry = new ServiceRegistry();
+    Service owned = new Service("owned", "https://a.example.com", 1000L, ServiceStatus.OK, 30);
+    owned.setOwner("alice");
+    owned.setCheck(ServiceCheck.fromJson(new JsonObject().put("bodyContains", "UP")));
+    Service anonymous = new Service(null, "https://b.example.com", 2000L, ServiceStatus.FAIL, 60);
+    registry.put(owned);
+    registry.put(anonymous);
+    new RegistrySnapshotFile(vertx, path.toString(), registry, 1000).stop()
+        .compose(v -> new RegistrySnapshotFile(vertx, path.toString(), new ServiceRegistry(), 1000).load())
+        .setHandler(testContext.succeeding(loaded -> testContext.verify(() -> {
+          Map<String, Service> byKey = byKey(loaded);
+          assertEquals(2, byKey.size());
+          assertSameService(owned, byKey.get(owned.getKey()));
+          assertSameService(anonymous, byKey.get(anonymous.getKey()));
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("A corrupt, truncated or unknown snapshot is ignored")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void ignores_unusable_file(Vertx vertx, VertxTestContext testContext) {
+    ServiceRegistry registry = new ServiceRegistry();
+    registry.put(new Service("a", "https://a.example.com", 1000L, ServiceStatus.OK, 30));
+    new RegistrySnapshotFile(vertx, path.toString(), registry, 1000).stop().compose(v -> {
+      try {
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(path, bytes);
+      } catch (IOException e) {
+        return Future.failedFuture(e);
+      }
+      return load(vertx);
+    }).compose(corrupt -> {
+      testContext.verify(() -> assertTrue(corrupt.isEmpty()));
+      try {
+        Files.write(path, new byte[]{0x4b, 0x52});
+      } catch (IOException e) {
+        return Future.failedFuture(e);
+      }
+      return load(vertx);
+    }).compose(truncated -> {
+      testContext.verify(() -> assertTrue(truncated.isEmpty()));
+      try {
+        // A valid checksum over another format
+        Files.write(path, emptySnapshot(2));
+      } catch (IOException e) {
+        return Future.failedFuture(e);
+      }
+      return load(vertx);
+    }).setHandler(testContext.succeeding(unknown -> testContext.verify(() -> {
+      assertTrue(unknown.isEmpty());
+      testContext.completeNow();
+    })));
+  }
+
+  @Test
+  @DisplayName("The reconciliation follows the store but does not bring back the services removed while loading")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void reconciles_with_store(Vertx vertx, VertxTestContext testContext) {
+    Service kept = new Service("kept", "https://kept.example.com", 1000L, ServiceStatus.OK, 30);
+    Service added = new Service("added", "https://added.example.com", 1000L, ServiceStatus.UNKNOWN, 30);
+    Service removed = new Service("removed", "https://removed.example.com", 1000L, ServiceStatus.OK, 30);
+    Service changed = new Service("changed", "https://changed.example.com", 1000L, ServiceStatus.FAIL, 30);
+    Service gone = new Service("gone", "https://gone.example.com", 1000L, ServiceStatus.OK, 30);
+    ServiceStore store = new LogServiceStore(vertx, new JsonObject()
+        .put("path", dir.resolve("services.log").toString()));
+    ServiceRegistry registry = new ServiceRegistry();
+    PollerShards pollers = new PollerShards(vertx, "test", registry, store, null, new JsonObject());
+    RegistrySnapshotFile snapshotFile = new RegistrySnapshotFile(vertx, path.toString(), registry, 1000);
+    store.open().compose(v -> store.insert(Arrays.asList(kept, added, removed, changed))).compose(v -> {
+      registry.startLoading();
+      // The snapshot is older than the store
+      List<Service> loaded = Arrays.asList(copy(kept, ServiceStatus.OK), copy(removed, ServiceStatus.OK),
+          copy(changed, ServiceStatus.OK), copy(gone, ServiceStatus.OK));
+      loaded.forEach(registry::put);
+      registry.remove(removed.getKey());
+      return snapshotFile.reconcile(loaded, store, pollers);
+    }).setHandler(testContext.succeeding(v -> testContext.verify(() -> {
+      registry.finishLoading();
+      assertEquals(3, registry.size());
+      assertSameService(kept, registry.get(kept.getKey()));
+      assertSameService(added, registry.get(added.getKey()));
+      assertEquals(ServiceStatus.FAIL, registry.get(changed.getKey()).getStatus());
+      assertNull(registry.get(removed.getKey()));
+      assertNull(registry.get(gone.getKey()));
+      testContext.completeNow();
+    })));
+  }
+
+  private Future<List<Service>> load(Vertx vertx) {
+    return new RegistrySnapshotFile(vertx, path.toString(), new ServiceRegistry(), 1000).load();
+  }
+
+  /**
+   * @return a snapshot without services, of the given format
+   */
+  private static byte[] emptySnapshot(int format) {
+    ByteBuffer buffer = ByteBuffer.allocate(16).putInt(MAGIC).putInt(format).putInt(0);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, 12);
+    return buffer.putInt((int) crc.getValue()).array();
+  }
+
+  private static Map<String, Service> byKey(List<Service> services) {
+    Map<String, Service> byKey = new HashMap<>();
+    services.forEach(service -> byKey.put(service.getKey(), service));
+    return byKey;
+  }
+
+  private static Service copy(Service service, ServiceStatus status) {
+    Service copy = new Service(service.getName(), service.getUrl(), service.getCreatedAt(), status,
+        service.getPollInterval());
+    copy.setOwner(service.getOwner());
+    return copy;
+  }
+
+  private static void assertSameService(Service expected, Service actual) {
+    assertEquals(expected.getUrl(), actual.getUrl());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+    assertEquals(expected.getStatus(), actual.getStatus());
+    assertEquals(expected.getPollInterval(), actual.getPollInterval());
+    assertEquals(expected.getOwner(), actual.getOwner());
+    assertEquals(expected.getCheck(), actual.getCheck());
+  }
+}
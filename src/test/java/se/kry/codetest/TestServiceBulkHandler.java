@@ -0,0 +1,175 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.handler.CookieHandler;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@ExtendWith(VertxExtension.class)
+public class TestServiceBulkHandler {
+
+  private static final int PORT = 9099;
+
+  private Path dir;
+  private ServiceRegistry registry;
+
+  @BeforeEach
+  void start_server(Vertx vertx, VertxTestContext testContext) throws IOException {
+    dir = Files.createTempDirectory("service-bulk");
+    registry = new ServiceRegistry();
+    ServiceStore store = new LogServiceStore(vertx, new JsonObject()
+        .put("path", dir.resolve("services.log").toString()));
+    // Never deployed, the imported services are not polled
+    PollerShards pollers = new PollerShards(vertx, "test", registry, store, null, new JsonObject());
+    ServiceBulkHandler handler = new ServiceBulkHandler(vertx, registry, store, pollers, 3);
+    Router router = Router.router(vertx);
+    router.route().handler(CookieHandler.create());
+    router.post("/services/bulk").handler(handler::importServices);
+    store.open().setHandler(testContext.succeeding(v -> vertx.createHttpServer().requestHandler(router)
+        .listen(PORT, testContext.succeeding(server -> testContext.completeNow()))));
+  }
+
+  @AfterEach
+  void delete_directory() {
+    File[] files = dir.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.toFile().delete();
+  }
+
+  @Test
+  @DisplayName("Every NDJSON line is validated and reported on its own")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void imports_ndjson(Vertx vertx, VertxTestContext testContext) {
+    String body = String.join("\n",
+        "{\"url\": \"https://a.example.com\", \"name\": \"a\"}",
+        "{\"url\": \"https://a.example.com\", \"name\": \"again\"}",
+        "{\"url\": \"not a url\", \"name\": \"x\"}",
+        "{\"name\": \"no url\"}",
+        "{\"url\": \"https://b.example.com\"}",
+        "{\"url\": \"https://c.example.com\", \"name\": \"  \"}",
+        "{\"url\": \"https://broken",
+        "{\"url\": \"https://d.example.com\", \"name\": \"d\", \"pollInterval\": 1}",
+        "{\"url\": \"https://e.example.com\", \"name\": \"e\", \"pollInterval\": 60, "
+            + "\"check\": {\"bodyContains\": \"UP\"}}") + "\n";
+    post(vertx, "application/x-ndjson", "owner=alice", body).setHandler(testContext.succeeding(lines ->
+        testContext.verify(() -> {
+          assertEquals(Arrays.asList("created", "duplicate", "error", "error", "error", "error", "error", "error",
+              "created"), results(lines));
+          assertEquals(Arrays.asList("invalid url", "invalid url", "invalid name", "invalid name",
+              "malformed line", "invalid poll interval"), errors(lines));
+          assertEquals(new JsonObject().put("lines", 9).put("created", 2).put("duplicates", 1).put("errors", 6),
+              lines.get(lines.size() - 1).getJsonObject("summary"));
+          Service imported = registry.get(Service.key("alice", "https://e.example.com"));
+          assertEquals("e", imported.getName());
+          assertEquals(60, imported.getPollInterval());
+          assertEquals(ServiceCheck.fromJson(new JsonObject().put("bodyContains", "UP")), imported.getCheck());
+          assertEquals(2, registry.partition("alice").size());
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("The CSV lines are parsed with their quotes and the lines over the quota are rejected")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void imports_csv(Vertx vertx, VertxTestContext testContext) {
+    registry.put(new Service("existing", "https://existing.example.com", 1000L, ServiceStatus.OK, 30));
+    String body = String.join("\n",
+        "url,name,pollInterval",
+        "\"https://a.example.com\",\"Name, with \"\"quotes\"\"\",30",
+        "https://b.example.com,b,",
+        "https://c.example.com,,30",
+        "https://d.example.com,d,often",
+        "https://e.example.com,e,30") + "\n";
+    post(vertx, "text/csv", null, body).setHandler(testContext.succeeding(lines -> testContext.verify(() -> {
+      assertEquals(Arrays.asList("created", "created", "error", "error", "error"), results(lines));
+      assertEquals(Arrays.asList("invalid name", "malformed line", "quota exceeded"), errors(lines));
+      assertEquals(new JsonObject().put("lines", 6).put("created", 2).put("duplicates", 0).put("errors", 3),
+          lines.get(lines.size() - 1).getJsonObject("summary"));
+      assertEquals("Name, with \"quotes\"", registry.get("https://a.example.com").getName());
+      assertEquals(Service.DEFAULT_POLL_INTERVAL, registry.get("https://b.example.com").getPollInterval());
+      assertNull(registry.get("https://e.example.com"));
+      assertEquals(3, registry.partition(null).size());
+      testContext.completeNow();
+    })));
+  }
+
+  @Test
+  @DisplayName("A CSV line is split on the commas outside of the quotes")
+  void parses_csv() {
+    assertEquals(Arrays.asList("a \"b\", c", "d", ""), ServiceBulkHandler.parseCsv("\"a \"\"b\"\", c\", d ,"));
+    assertEquals(Arrays.asList("https://kry.se"), ServiceBulkHandler.parseCsv("https://kry.se"));
+  }
+
+  private static Future<List<JsonObject>> post(Vertx vertx, String contentType, String cookie, String body) {
+    Future<HttpResponse<Buffer>> response = Future.future();
+    WebClient client = WebClient.create(vertx);
+    HttpRequest<Buffer> request = client.post(PORT, "localhost", "/services/bulk")
+        .putHeader("content-type", contentType);
+    if (cookie != null) {
+      request.putHeader("cookie", cookie);
+    }
+    request.sendBuffer(Buffer.buffer(body), response);
+    return response.map(result -> {
+      List<JsonObject> lines = new ArrayList<>();
+      for (String line : result.bodyAsString().split("\n")) {
+        lines.add(new JsonObject(line));
+      }
+      return lines;
+    });
+  }
+
+  /**
+   * @return the results of the lines in their order, the created lines are reported once their batch is stored
+   */
+  private static List<String> results(List<JsonObject> lines) {
+    List<String> results = new ArrayList<>();
+    byLine(lines).forEach(line -> results.add(line.getString("result")));
+    return results;
+  }
+
+  private static List<String> errors(List<JsonObject> lines) {
+    List<String> errors = new ArrayList<>();
+    byLine(lines).forEach(line -> {
+      if (line.containsKey("error")) {
+        errors.add(line.getString("error"));
+      }
+    });
+    return errors;
+  }
+
+  private static List<JsonObject> byLine(List<JsonObject> lines) {
+    List<JsonObject> reports = new ArrayList<>(lines.subList(0, lines.size() - 1));
+    reports.sort(Comparator.comparing(line -> line.getInteger("line")));
+    return reports;
+  }
+}
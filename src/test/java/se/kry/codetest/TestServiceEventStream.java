@@ -0,0 +1,140 @@
+package se.kry.codetest;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.codec.BodyCodec;
+import io.vertx.ext.web.handler.CookieHandler;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestServiceEventStream {
+
+  private static final int PORT = 9098;
+
+  @Test
+  @DisplayName("A client gets the changes of the services of its owner, in order")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void delivers_changes_of_owner(Vertx vertx, VertxTestContext testContext) {
+    vertx.runOnContext(start -> {
+      ServiceEventStream stream = new ServiceEventStream(vertx);
+      Router router = Router.router(vertx);
+      router.route().handler(CookieHandler.create());
+      router.get("/service/events").handler(stream::handle);
+      vertx.createHttpServer().requestHandler(router).listen(PORT, testContext.succeeding(server -> {
+        WebClient client = WebClient.create(vertx);
+        Buffer alice = Buffer.buffer();
+        Buffer anonymous = Buffer.buffer();
+        Future<Void> aliceConnected = connect(client, "owner=alice", alice);
+        Future<Void> anonymousConnected = connect(client, null, anonymous);
+        CompositeFuture.all(aliceConnected, anonymousConnected).setHandler(testContext.succeeding(v -> {
+          testContext.verify(() -> assertEquals(2, stream.getClientCount()));
+          Service service = new Service("a", "http://a.example.com", 1000L, ServiceStatus.UNKNOWN, 60);
+          service.setOwner("alice");
+          ServiceEventStream.publishAdded(vertx, service);
+          ServiceEventStream.publish(vertx, ServiceEventStream.TYPE_STATUS, "http://b.example.com", "OK", "bob");
+          ServiceEventStream.publish(vertx, ServiceEventStream.TYPE_DELETED, "http://a.example.com", null,
+              "alice");
+          ServiceEventStream.publish(vertx, ServiceEventStream.TYPE_STATUS, "http://c.example.com", "FAIL", null);
+          vertx.setTimer(300, id -> testContext.verify(() -> {
+            String aliceEvents = alice.toString();
+            int added = aliceEvents.indexOf("event: added\ndata: {");
+            int deleted = aliceEvents.indexOf("event: deleted\ndata: {");
+            assertTrue(added > 0 && deleted > added, aliceEvents);
+            assertTrue(aliceEvents.contains("\"url\":\"http://a.example.com\""));
+            assertFalse(aliceEvents.contains("http://b.example.com"), aliceEvents);
+            assertFalse(aliceEvents.contains("http://c.example.com"), aliceEvents);
+            String anonymousEvents = anonymous.toString();
+            assertTrue(anonymousEvents.contains("event: status\ndata: {"), anonymousEvents);
+            assertTrue(anonymousEvents.contains("http://c.example.com"), anonymousEvents);
+            assertFalse(anonymousEvents.contains("http://a.example.com"), anonymousEvents);
+            assertFalse(anonymousEvents.contains("http://b.example.com"), anonymousEvents);
+            stream.stop();
+            testContext.completeNow();
+          }));
+        }));
+      }));
+    });
+  }
+
+  /**
+   * Open an event stream, the Future completes once the server registered the client
+   */
+  private static Future<Void> connect(WebClient client, String cookie, Buffer received) {
+    Future<Void> connected = Future.future();
+    HttpRequest<Void> request = client.get(PORT, "localhost", "/service/events")
+        .as(BodyCodec.pipe(new Received(received, connected)));
+    if (cookie != null) {
+      request.putHeader("cookie", cookie);
+    }
+    // The stream never ends, only a failure to connect reaches this handler
+    request.send(ar -> {
+      if (ar.failed()) {
+        connected.tryFail(ar.cause());
+      }
+    });
+    return connected;
+  }
+
+  /**
+   * Collects the chunks of an event stream as they arrive
+   */
+  private static class Received implements WriteStream<Buffer> {
+
+    private final Buffer received;
+    private final Future<Void> connected;
+
+    Received(Buffer received, Future<Void> connected) {
+      this.received = received;
+      this.connected = connected;
+    }
+
+    @Override
+    public WriteStream<Buffer> write(Buffer chunk) {
+      received.appendBuffer(chunk);
+      connected.tryComplete();
+      return this;
+    }
+
+    @Override
+    public void end() {
+    }
+
+    @Override
+    public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+      return this;
+    }
+
+    @Override
+    public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+      return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+      return false;
+    }
+
+    @Override
+    public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+      return this;
+    }
+  }
+}
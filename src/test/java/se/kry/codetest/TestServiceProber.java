@@ -0,0 +1,142 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Checkpoint;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestServiceProber {
+
+  private static final int PORT = 8091;
+  private static final String BASE = "http://127.0.0.1:" + PORT;
+
+  private HttpServer server;
+  private HttpClient client;
+  private ServiceProber prober;
+  private int connections;
+
+  @BeforeEach
+  void start_server(Vertx vertx, VertxTestContext testContext) {
+    client = vertx.createHttpClient();
+    prober = new ServiceProber(vertx, client);
+    // /endless never ends its body, /missing answers 404 with the same endless body, /short ends a
+    // chunked body after a while
+    server = vertx.createHttpServer().connectionHandler(connection -> connections++).requestHandler(request -> {
+      HttpServerResponse response = request.response().setChunked(true)
+          .setStatusCode(request.path().equals("/missing") ? 404 : 200);
+      response.write("{\"status\":\"UP\"}");
+      if (request.path().equals("/short")) {
+        vertx.setTimer(50, id -> response.end("..........................................................."));
+        return;
+      }
+      long timer = vertx.setPeriodic(1, id -> {
+        if (!response.writeQueueFull()) {
+          response.write("...........................................................");
+        }
+      });
+      response.closeHandler(v -> vertx.cancelTimer(timer));
+    }).listen(PORT, testContext.succeeding(s -> testContext.completeNow()));
+  }
+
+  @AfterEach
+  void stop_server() {
+    client.close();
+    server.close();
+  }
+
+  @Test
+  @DisplayName("The verdict of an endless body is given with the status line or the body assertion")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void decides_before_the_end_of_the_body(Vertx vertx, VertxTestContext testContext) {
+    Checkpoint verdicts = testContext.checkpoint(4);
+    prober.probe(BASE + "/endless", ServiceCheck.DEFAULT, 2000, testContext.succeeding(result -> {
+      testContext.verify(() -> assertTrue(result.isHealthy()));
+      verdicts.flag();
+    }));
+    prober.probe(BASE + "/missing", ServiceCheck.DEFAULT, 2000, testContext.succeeding(result -> {
+      testContext.verify(() -> {
+        assertEquals(404, result.getStatusCode());
+        assertFalse(result.isHealthy());
+      });
+      verdicts.flag();
+    }));
+    ServiceCheck up = ServiceCheck.fromJson(new JsonObject().put("bodyContains", "\"UP\""));
+    prober.probe(BASE + "/endless", up, 2000, testContext.succeeding(result -> {
+      testContext.verify(() -> assertTrue(result.isHealthy()));
+      verdicts.flag();
+    }));
+    ServiceCheck down = ServiceCheck.fromJson(new JsonObject()
+        .put("status", new JsonArray().add("2xx").add(404)).put("bodyContains", "DOWN").put("bodyLimit", 1024));
+    prober.probe(BASE + "/missing", down, 2000, testContext.succeeding(result -> {
+      testContext.verify(() -> assertFalse(result.isHealthy()));
+      verdicts.flag();
+    }));
+  }
+
+  @Test
+  @DisplayName("The rest of a short body is drained after the verdict and the connection is kept alive")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void keeps_connection_of_short_body(Vertx vertx, VertxTestContext testContext) {
+    client.close();
+    client = vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(1));
+    ServiceProber prober = new ServiceProber(vertx, client);
+    prober.probe(BASE + "/short", ServiceCheck.DEFAULT, 2000, testContext.succeeding(first ->
+        prober.probe(BASE + "/short", ServiceCheck.DEFAULT, 2000, testContext.succeeding(second -> {
+          testContext.verify(() -> {
+            assertTrue(second.isHealthy());
+            assertEquals(1, connections);
+          });
+          // The endless body is not drained, its connection is reset and the pool opens another one
+          prober.probe(BASE + "/endless", ServiceCheck.DEFAULT, 2000, testContext.succeeding(endless ->
+              vertx.setTimer(100, id -> prober.probe(BASE + "/short", ServiceCheck.DEFAULT, 2000,
+                  testContext.succeeding(last -> testContext.verify(() -> {
+                    assertEquals(2, connections);
+                    testContext.completeNow();
+                  }))))));
+        }))));
+  }
+
+  @Test
+  @DisplayName("The invalid checks are rejected, the default one is shared")
+  void validates_checks() {
+    assertEquals(ServiceCheck.DEFAULT, ServiceCheck.fromJson(new JsonObject().put("method", "get")));
+    assertTrue(ServiceCheck.DEFAULT == ServiceCheck.parse(null));
+    ServiceCheck check = ServiceCheck.fromJson(new JsonObject().put("method", "HEAD")
+        .put("status", new JsonArray().add("200-399")));
+    assertTrue(check == ServiceCheck.parse(check.encode()));
+    assertTrue(check.accepts(302));
+    assertFalse(check.accepts(404));
+    for (JsonObject invalid : new JsonObject[]{
+        new JsonObject().put("method", "POST"),
+        new JsonObject().put("status", new JsonArray().add("299-200")),
+        new JsonObject().put("status", new JsonArray()),
+        new JsonObject().put("method", "HEAD").put("bodyContains", "UP"),
+        new JsonObject().put("bodyContains", "UP").put("bodyLimit", 0)}) {
+      try {
+        ServiceCheck.fromJson(invalid);
+        throw new AssertionError("Accepted " + invalid.encode());
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+}
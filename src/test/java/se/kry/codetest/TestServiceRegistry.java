@@ -0,0 +1,137 @@
+package se.kry.codetest;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestServiceRegistry {
+
+  private static final ServiceStatus[] STATUSES = ServiceStatus.values();
+  private static final String[] OWNERS = {null, "alice", "bob"};
+
+  @Test
+  @DisplayName("The indexed reads match a scan of the registry after adds, status changes and removals")
+  void find_matches_scan() {
+    Random random = new Random(42);
+    ServiceRegistry registry = new ServiceRegistry();
+    for (int i = 0; i < 2000; i++) {
+      Service service = new Service(i % 10 == 0 ? null : "svc-" + random.nextInt(300),
+          "http://host-" + random.nextInt(30) + ".example.com/health/" + i,
+          1000L + random.nextInt(500), STATUSES[random.nextInt(STATUSES.length)], 60);
+      service.setOwner(OWNERS[random.nextInt(OWNERS.length)]);
+      registry.put(service);
+    }
+    List<Service> all = Arrays.asList(registry.values().toArray(new Service[0]));
+    for (int i = 0; i < 1000; i++) {
+      Service service = all.get(random.nextInt(all.size()));
+      if (i % 5 == 0) {
+        registry.remove(service.getKey());
+      }
+      registry.updateStatus(service, STATUSES[random.nextInt(STATUSES.length)]);
+    }
+    List<ServiceFilter> filters = Arrays.asList(
+        new ServiceFilter(ServiceStatus.FAIL, null, null, null, Long.MIN_VALUE),
+        new ServiceFilter(null, "svc-1", null, null, Long.MIN_VALUE),
+        new ServiceFilter(null, null, "HOST-2", null, Long.MIN_VALUE),
+        new ServiceFilter(null, null, null, "alice", 1400),
+        new ServiceFilter(ServiceStatus.OK, "svc-2", "host-1", "bob", 1100),
+        new ServiceFilter(null, "none", null, null, Long.MIN_VALUE),
+        new ServiceFilter(null, null, null, null, Long.MAX_VALUE));
+    for (ServiceFilter filter : filters) {
+      Set<String> expected = registry.values().stream().filter(filter::matches).map(Service::getUrl)
+          .collect(Collectors.toCollection(TreeSet::new));
+      Set<String> found = registry.find(filter).stream().map(Service::getUrl)
+          .collect(Collectors.toCollection(TreeSet::new));
+      assertEquals(expected, found);
+    }
+  }
+
+  @Test
+  @DisplayName("Every owner reads its own partition, the changes of the others do not invalidate its snapshot")
+  void partitions_by_owner() {
+    ServiceRegistry registry = new ServiceRegistry();
+    for (int i = 0; i < 30; i++) {
+      Service service = new Service("svc-" + i, "http://host-" + i + ".example.com", 1000L + i, ServiceStatus.OK, 60);
+      service.setOwner(OWNERS[i % OWNERS.length]);
+      registry.put(service);
+    }
+    ServiceSnapshot alice = registry.partition("alice").snapshot();
+    assertEquals(10, alice.size());
+    assertEquals(10, registry.partition(null).size());
+    registry.updateStatus(registry.get(Service.key("bob", "http://host-2.example.com")), ServiceStatus.FAIL);
+    registry.remove("http://host-0.example.com");
+    assertSame(alice, registry.partition("alice").snapshot());
+    assertEquals(9, registry.partition(null).snapshot().size());
+    assertEquals(1, registry.partition("bob").find(new ServiceFilter(ServiceStatus.FAIL, null, null, null,
+        Long.MIN_VALUE)).size());
+    // Another owner registers the same URL as a service of its own
+    Service shared = new Service("svc-1", "http://host-1.example.com", 1001L, ServiceStatus.OK, 60);
+    shared.setOwner("bob");
+    registry.put(shared);
+    assertEquals(10, registry.partition("alice").size());
+    assertEquals(11, registry.partition("bob").size());
+    assertNotEquals(registry.get(Service.key("alice", "http://host-1.example.com")), registry.get(shared.getKey()));
+    registry.remove(Service.key("alice", "http://host-1.example.com"));
+    assertEquals(9, registry.partition("alice").size());
+    assertNotEquals(alice.getVersion(), registry.partition("alice").getVersion());
+    assertSame(shared, registry.get(shared.getKey()));
+    assertEquals(0, registry.partition("nobody").snapshot().size());
+  }
+
+  @Test
+  @DisplayName("The reserved slots count against the quota of their owner until they are released")
+  void reserves_quota() {
+    ServiceRegistry registry = new ServiceRegistry();
+    Service service = new Service("a", "http://a.example.com", 1000L, ServiceStatus.UNKNOWN, 60);
+    service.setOwner("alice");
+    registry.put(service);
+    assertTrue(registry.reserve("alice", 3));
+    assertTrue(registry.reserve("alice", 3));
+    assertFalse(registry.reserve("alice", 3));
+    assertTrue(registry.reserve("bob", 3));
+
+    // A stored service keeps its slot, a failed insert gives it back
+    Service stored = new Service("b", "http://b.example.com", 1000L, ServiceStatus.UNKNOWN, 60);
+    stored.setOwner("alice");
+    registry.put(stored);
+    registry.release("alice");
+    assertFalse(registry.reserve("alice", 3));
+    registry.release("alice");
+    assertEquals(2, registry.partition("alice").size());
+    assertTrue(registry.reserve("alice", 3));
+
+    registry.release("bob");
+    assertEquals(0, registry.partition("bob").size());
+    assertTrue(registry.reserve("bob", 1));
+  }
+
+  @Test
+  @DisplayName("The services of a host share its key, which is forgotten with the last of them")
+  void shares_host_keys() throws InterruptedException {
+    Service first = new Service("a", "http://gone.example.com/a", 1000L, ServiceStatus.UNKNOWN, 60);
+    Service second = new Service("b", "HTTP://Gone.example.com:80/b", 1000L, ServiceStatus.UNKNOWN, 60);
+    assertSame(first.getHostKey(), second.getHostKey());
+    WeakReference<String> key = new WeakReference<>(first.getHostKey());
+    first = null;
+    second = null;
+    for (int i = 0; i < 50 && key.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(key.get());
+  }
+}
@@ -0,0 +1,99 @@
+package se.kry.codetest;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSharedProbeCache {
+
+  @Test
+  @DisplayName("The variants of a URL share one target, not the URLs with another check")
+  void normalizes_targets() {
+    String url = "http://example.com/health";
+    assertSame(url, SharedProbeCache.normalize(url));
+    assertEquals(url, SharedProbeCache.normalize("HTTP://Example.COM:80/health#status"));
+    assertEquals("https://example.com/", SharedProbeCache.normalize("https://example.com:443"));
+    assertEquals("https://example.com:8443/?a=B", SharedProbeCache.normalize("https://example.com:8443?a=B"));
+    assertEquals("http://User@Example.com/", SharedProbeCache.normalize("http://User@Example.com/"));
+    ServiceCheck head = ServiceCheck.fromJson(new JsonObject().put("method", "HEAD"));
+    assertEquals(SharedProbeCache.target(url, ServiceCheck.DEFAULT),
+        SharedProbeCache.target("http://EXAMPLE.com/health", ServiceCheck.DEFAULT));
+    assertNotEquals(SharedProbeCache.target(url, ServiceCheck.DEFAULT), SharedProbeCache.target(url, head));
+  }
+
+  @Test
+  @DisplayName("The services polled during a probe join it, those polled shortly after reuse its result")
+  void shares_probes_and_results() {
+    SharedProbeCache<String> cache = new SharedProbeCache<>(0.8, 10);
+    List<AsyncResult<String>> results = new ArrayList<>();
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("t", 10, 0, 5_000, results::add));
+    assertEquals(SharedProbeCache.Lookup.JOINED, cache.lookup("t", 10, 100, 5_100, results::add));
+    cache.complete("t", "OK", 200);
+    assertEquals(2, results.size());
+    assertEquals(SharedProbeCache.Lookup.HIT, cache.lookup("t", 10, 8_100, 13_100, results::add));
+    assertEquals(3, results.size());
+    results.forEach(result -> assertEquals("OK", result.result()));
+    // 8s is the ttl of a service polled every 10s
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("t", 10, 8_200, 13_200, results::add));
+    cache.abandon("t");
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("t", 10, 8_300, 13_300, results::add));
+    assertEquals(3, results.size());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getJoins());
+    assertEquals(3, cache.getMisses());
+  }
+
+  @Test
+  @DisplayName("A probe past its deadline is not joined and the old entries expire")
+  void forgets_stale_probes() {
+    SharedProbeCache<String> cache = new SharedProbeCache<>(0.5, 10);
+    List<AsyncResult<String>> results = new ArrayList<>();
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("t", 10, 0, 1_000, results::add));
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("t", 10, 1_001, 2_001, results::add));
+    cache.complete("t", "FAIL", 1_500);
+    assertEquals(2, results.size());
+    assertTrue(results.get(0).cause() instanceof TimeoutException);
+    assertEquals("FAIL", results.get(1).result());
+    cache.expire(6_499);
+    assertEquals(1, cache.size());
+    cache.expire(6_500);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  @DisplayName("Every subscriber of a probe which is given up is failed, whether it is replaced or expired")
+  void fails_subscribers_of_given_up_probes() {
+    SharedProbeCache<String> cache = new SharedProbeCache<>(0.5, 10);
+    List<AsyncResult<String>> replaced = new ArrayList<>();
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("t", 10, 0, 1_000, replaced::add));
+    assertEquals(SharedProbeCache.Lookup.JOINED, cache.lookup("t", 10, 500, 1_500, replaced::add));
+    List<AsyncResult<String>> current = new ArrayList<>();
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("t", 10, 1_001, 2_001, current::add));
+    assertEquals(2, replaced.size());
+    replaced.forEach(result -> assertTrue(result.cause() instanceof TimeoutException));
+    assertTrue(current.isEmpty());
+
+    // Never completed, the probe of another target is given up when it expires
+    List<AsyncResult<String>> expired = new ArrayList<>();
+    assertEquals(SharedProbeCache.Lookup.MISS, cache.lookup("u", 10, 1_001, 2_001, expired::add));
+    cache.expire(7_001);
+    assertEquals(0, cache.size());
+    assertEquals(1, expired.size());
+    assertTrue(expired.get(0).failed());
+    assertEquals(1, current.size());
+    assertTrue(current.get(0).failed());
+    // The results which come after are ignored
+    cache.complete("t", "OK", 7_002);
+    assertEquals(1, current.size());
+  }
+}
@@ -0,0 +1,30 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import se.kry.codetest.migrate.MigrationRunner;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestSqliteServiceStore extends ServiceStoreContract {
+
+  private final List<DBConnector> connectors = new ArrayList<>();
+
+  @Override
+  protected Future<ServiceStore> open(Vertx vertx, Path dir) {
+    DBConnector connector = new DBConnector(vertx,
+        new JsonObject().put("path", dir.resolve("poller.db").toString()));
+    connectors.add(connector);
+    ServiceStore store = new SqliteServiceStore(connector);
+    return new MigrationRunner(connector).migrate().compose(version -> store.open()).map(store);
+  }
+
+  @AfterEach
+  void stop_connectors() {
+    connectors.forEach(DBConnector::stop);
+  }
+}
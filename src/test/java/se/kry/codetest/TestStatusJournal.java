@@ -0,0 +1,175 @@
+package se.kry.codetest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestStatusJournal {
+
+  private Path dir;
+  private Path path;
+
+  @BeforeEach
+  void create_directory() throws IOException {
+    dir = Files.createTempDirectory("status-journal");
+    path = dir.resolve("status.journal");
+  }
+
+  @AfterEach
+  void delete_directory() {
+    File[] files = dir.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.toFile().delete();
+  }
+
+  @Test
+  @DisplayName("The synced records of a journal never closed are replayed, the latest status per service")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void replays_after_crash(Vertx vertx, VertxTestContext testContext) {
+    StatusJournal crashed = new StatusJournal(vertx, path.toString(), 1000);
+    crashed.append("http://a.example.com", "FAIL");
+    crashed.append("alice http://b.example.com", "OK");
+    crashed.append("http://a.example.com", "OK");
+    // Synced but never closed, as when the process is killed
+    crashed.sync()
+        .compose(v -> new StatusJournal(vertx, path.toString(), 1000).replay())
+        .setHandler(testContext.succeeding(statuses -> testContext.verify(() -> {
+          assertEquals(2, statuses.size());
+          assertEquals("OK", statuses.get("http://a.example.com"));
+          assertEquals("OK", statuses.get("alice http://b.example.com"));
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  @DisplayName("A torn record at the end is cut off and the journal goes on after the last valid record")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void truncates_torn_tail(Vertx vertx, VertxTestContext testContext) {
+    StatusJournal journal = new StatusJournal(vertx, path.toString(), 1000);
+    journal.append("http://a.example.com", "FAIL");
+    long[] valid = new long[1];
+    journal.close().compose(v -> {
+      try {
+        valid[0] = Files.size(path);
+        // A record header announcing more bytes than were written
+        Files.write(path, new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 5, 6}, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        return Future.failedFuture(e);
+      }
+      return replayAndAppend(vertx, "http://b.example.com", "OK");
+    }).setHandler(testContext.succeeding(statuses -> testContext.verify(() -> {
+      assertEquals(1, statuses.get(0).size());
+      assertEquals("FAIL", statuses.get(0).get("http://a.example.com"));
+      assertEquals(2, statuses.get(1).size());
+      assertEquals("OK", statuses.get(1).get("http://b.example.com"));
+      assertTrue(size(path) > valid[0]);
+      testContext.completeNow();
+    })));
+  }
+
+  @Test
+  @DisplayName("A record with a wrong checksum ends the journal")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void truncates_corrupt_record(Vertx vertx, VertxTestContext testContext) {
+    StatusJournal journal = new StatusJournal(vertx, path.toString(), 1000);
+    journal.append("http://a.example.com", "FAIL");
+    journal.append("http://b.example.com", "FAIL");
+    journal.append("http://c.example.com", "FAIL");
+    long[] size = new long[1];
+    journal.close().compose(v -> {
+      try {
+        byte[] bytes = Files.readAllBytes(path);
+        size[0] = bytes.length;
+        // The last byte of the second record, the status of b
+        int recordSize = bytes.length / 3;
+        bytes[2 * recordSize - 1] ^= 1;
+        Files.write(path, bytes);
+      } catch (IOException e) {
+        return Future.failedFuture(e);
+      }
+      return new StatusJournal(vertx, path.toString(), 1000).replay();
+    }).setHandler(testContext.succeeding(statuses -> testContext.verify(() -> {
+      assertEquals(1, statuses.size());
+      assertEquals("FAIL", statuses.get("http://a.example.com"));
+      assertEquals(size[0] / 3, size(path));
+      testContext.completeNow();
+    })));
+  }
+
+  @Test
+  @DisplayName("The journal is only emptied once the store holds every status written to it")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void keeps_records_while_writes_pending(Vertx vertx, VertxTestContext testContext) {
+    SlowServiceStore store = new SlowServiceStore();
+    vertx.runOnContext(start -> {
+      BackgroundPoller poller = new BackgroundPoller(vertx, store, new ServiceRegistry(), null, new JsonObject()
+          .put("journal_path", path.toString()).put("journal_sync_window", 1).put("write_flush_window", 1));
+      poller.saveToDb("http://a.example.com", ServiceStatus.FAIL);
+      vertx.setTimer(100, first -> {
+        // The first batch is being written, the second one waits for it
+        poller.saveToDb("http://b.example.com", ServiceStatus.FAIL);
+        store.writes.poll().complete();
+        vertx.setTimer(100, second -> new StatusJournal(vertx, path.toString(), 1000).replay()
+            .setHandler(testContext.succeeding(journaled -> {
+              testContext.verify(() -> {
+                assertEquals(2, journaled.size());
+                assertEquals(1, store.writes.size());
+              });
+              store.writes.poll().complete();
+              vertx.setTimer(100, third -> testContext.verify(() -> {
+                assertEquals(0, size(path));
+                poller.stop().setHandler(testContext.succeeding(v -> testContext.completeNow()));
+              }));
+            })));
+      });
+    });
+  }
+
+  /**
+   * Replay the journal then append a status and replay it again
+   */
+  private Future<List<Map<String, String>>> replayAndAppend(Vertx vertx, String key, String status) {
+    StatusJournal journal = new StatusJournal(vertx, path.toString(), 1000);
+    return journal.replay().compose(first -> {
+      journal.append(key, status);
+      return journal.close()
+          .compose(v -> new StatusJournal(vertx, path.toString(), 1000).replay())
+          .map(second -> Arrays.asList(first, second));
+    });
+  }
+
+  private static long size(Path path) {
+    try {
+      return Files.size(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package se.kry.codetest;
+
+import io.vertx.core.Vertx;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestStatusWriteBuffer {
+
+  @Test
+  @DisplayName("A full batch is flushed at once, with the latest status of every service")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void flushes_full_batch(Vertx vertx, VertxTestContext testContext) {
+    SlowServiceStore store = new SlowServiceStore();
+    vertx.runOnContext(start -> testContext.verify(() -> {
+      StatusWriteBuffer buffer = new StatusWriteBuffer(vertx, store, 3, 60000, 100);
+      buffer.offer("a", ServiceStatus.FAIL);
+      buffer.offer("b", ServiceStatus.OK);
+      buffer.offer("a", ServiceStatus.OK);
+      assertEquals(2, buffer.size());
+      assertTrue(store.writes.isEmpty());
+      buffer.offer("c", ServiceStatus.OK);
+      assertEquals(statuses("a", ServiceStatus.OK, "b", ServiceStatus.OK, "c", ServiceStatus.OK),
+          store.batches.poll());
+      // One flush at a time, the next full batch waits for the first one
+      buffer.offer("d", ServiceStatus.OK);
+      buffer.offer("e", ServiceStatus.OK);
+      buffer.offer("f", ServiceStatus.OK);
+      assertEquals(1, store.writes.size());
+      store.writes.poll().complete();
+      assertEquals(statuses("d", ServiceStatus.OK, "e", ServiceStatus.OK, "f", ServiceStatus.OK),
+          store.batches.poll());
+      store.writes.poll().complete();
+      assertTrue(buffer.isIdle());
+      assertEquals(2, buffer.getBatches());
+      assertEquals(6, buffer.getRows());
+      buffer.stop().setHandler(testContext.succeeding(v -> testContext.completeNow()));
+    }));
+  }
+
+  @Test
+  @DisplayName("A partial batch is flushed when the flush window is over")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void flushes_after_window(Vertx vertx, VertxTestContext testContext) {
+    SlowServiceStore store = new SlowServiceStore();
+    vertx.runOnContext(start -> {
+      StatusWriteBuffer buffer = new StatusWriteBuffer(vertx, store, 100, 200, 100);
+      long offered = System.nanoTime();
+      buffer.writtenHandler(batch -> testContext.verify(() -> {
+        // The timers of vertx do not fire early
+        assertTrue(System.nanoTime() - offered >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(statuses("a", ServiceStatus.FAIL), batch);
+        buffer.stop().setHandler(testContext.succeeding(v -> testContext.completeNow()));
+      }));
+      buffer.offer("a", ServiceStatus.FAIL);
+      vertx.setTimer(50, early -> {
+        testContext.verify(() -> assertTrue(store.writes.isEmpty()));
+        vertx.setPeriodic(20, id -> {
+          if (!store.writes.isEmpty()) {
+            vertx.cancelTimer(id);
+            store.writes.poll().complete();
+          }
+        });
+      });
+    });
+  }
+
+  @Test
+  @DisplayName("A failed batch does not report the services with a newer status and the writers back off when full")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void fails_and_backs_off(Vertx vertx, VertxTestContext testContext) {
+    SlowServiceStore store = new SlowServiceStore();
+    vertx.runOnContext(start -> testContext.verify(() -> {
+      StatusWriteBuffer buffer = new StatusWriteBuffer(vertx, store, 2, 60000, 4);
+      List<Map<String, ServiceStatus>> failed = new ArrayList<>();
+      int[] drained = new int[1];
+      buffer.failedHandler(failed::add).drainHandler(v -> drained[0]++);
+      buffer.offer("a", ServiceStatus.FAIL);
+      buffer.offer("b", ServiceStatus.FAIL);
+      buffer.offer("a", ServiceStatus.OK);
+      buffer.offer("c", ServiceStatus.OK);
+      buffer.offer("d", ServiceStatus.OK);
+      buffer.offer("e", ServiceStatus.OK);
+      assertTrue(buffer.writeQueueFull());
+      store.writes.poll().fail("disk full");
+      assertEquals(1, failed.size());
+      assertEquals(statuses("b", ServiceStatus.FAIL), failed.get(0));
+      // Two services left after the next batch, not below half of the limit yet
+      assertEquals(0, drained[0]);
+      assertFalse(buffer.writeQueueFull());
+      store.writes.poll().complete();
+      assertEquals(0, drained[0]);
+      store.writes.poll().complete();
+      assertEquals(1, drained[0]);
+      assertTrue(buffer.isIdle());
+      buffer.stop().setHandler(testContext.succeeding(v -> testContext.completeNow()));
+    }));
+  }
+
+  private static Map<String, ServiceStatus> statuses(Object... keysAndStatuses) {
+    Map<String, ServiceStatus> statuses = new LinkedHashMap<>();
+    for (int i = 0; i < keysAndStatuses.length; i += 2) {
+      statuses.put((String) keysAndStatuses[i], (ServiceStatus) keysAndStatuses[i + 1]);
+    }
+    return statuses;
+  }
+}
@@ -0,0 +1,40 @@
+package se.kry.codetest;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestTokenBucket {
+
+  @Test
+  @DisplayName("The bucket allows its burst at once, then its rate, and is full again after a pause")
+  void throttles_to_rate() {
+    long now = 1_000_000L;
+    // 10 tokens per second, a burst of 3
+    TokenBucket bucket = new TokenBucket(10, 3, now);
+    assertTrue(bucket.isFull(now));
+    for (int i = 0; i < 3; i++) {
+      assertTrue(bucket.tryAcquire(now));
+    }
+    assertFalse(bucket.tryAcquire(now));
+    assertFalse(bucket.isFull(now));
+
+    // One token every 100 ms
+    assertFalse(bucket.tryAcquire(now + 99));
+    assertTrue(bucket.tryAcquire(now + 100));
+    assertFalse(bucket.tryAcquire(now + 150));
+    assertTrue(bucket.tryAcquire(now + 200));
+
+    // A clock going back does not add tokens
+    assertFalse(bucket.tryAcquire(now));
+
+    // The refill stops at the burst
+    assertTrue(bucket.isFull(now + 10_000));
+    for (int i = 0; i < 3; i++) {
+      assertTrue(bucket.tryAcquire(now + 10_000));
+    }
+    assertFalse(bucket.tryAcquire(now + 10_000));
+  }
+}
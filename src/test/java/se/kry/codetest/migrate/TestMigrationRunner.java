@@ -0,0 +1,73 @@
+package se.kry.codetest.migrate;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.Timeout;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import se.kry.codetest.DBConnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(VertxExtension.class)
+public class TestMigrationRunner {
+
+  private static final int LATEST = MigrationRunner.MIGRATIONS.get(MigrationRunner.MIGRATIONS.size() - 1).getVersion();
+
+  private File dbFile;
+  private DBConnector connector;
+
+  @BeforeEach
+  void create_database(Vertx vertx) throws IOException {
+    dbFile = File.createTempFile("migration", ".db");
+    connector = new DBConnector(vertx, new JsonObject().put("path", dbFile.getAbsolutePath()));
+  }
+
+  @AfterEach
+  void delete_database() {
+    connector.stop();
+    for (String suffix : new String[]{"", "-wal", "-shm"}) {
+      new File(dbFile.getAbsolutePath() + suffix).delete();
+    }
+  }
+
+  @Test
+  @DisplayName("The URL only table of the first DBMigration is adopted and migrated once")
+  @Timeout(value = 10, timeUnit = TimeUnit.SECONDS)
+  void migrates_legacy_table_once(Vertx vertx, VertxTestContext testContext) {
+    MigrationRunner runner = new MigrationRunner(connector);
+    connector.execute("CREATE TABLE service (url VARCHAR(128) NOT NULL)")
+        .compose(v -> connector.execute("INSERT INTO service (url) values ('https://kry.se'), ('https://kry.se')"))
+        .compose(v -> runner.migrate())
+        .compose(version -> {
+          testContext.verify(() -> assertEquals(LATEST, (int) version));
+          return runner.migrate();
+        })
+        .compose(version -> {
+          testContext.verify(() -> assertEquals(LATEST, (int) version));
+          return connector.query("SELECT count(*) AS applied FROM schema_version")
+              .compose(applied -> {
+                testContext.verify(() -> assertEquals(LATEST, (int) applied.getRows().get(0).getInteger("applied")));
+                return connector.query("SELECT name, url, status, poll_interval, owner FROM service");
+              });
+        })
+        .setHandler(testContext.succeeding(services -> testContext.verify(() -> {
+          List<JsonObject> rows = services.getRows();
+          assertEquals(1, rows.size());
+          assertEquals("https://kry.se", rows.get(0).getString("name"));
+          assertEquals("UNKNOWN", rows.get(0).getString("status"));
+          assertEquals(60, (int) rows.get(0).getInteger("poll_interval"));
+          testContext.completeNow();
+        })));
+  }
+}
@@ -1,20 +1,87 @@
-
 const listContainer = document.querySelector('#service-list');
-let servicesRequest = new Request('/service');
-fetch(servicesRequest)
-.then(function(response) { return response.json(); })
-.then(function(serviceList) {
-  serviceList.forEach(service => {
-    var li = document.createElement("li");
-    var deleteBtn = document.createElement("button");
-    deleteBtn.innerHTML = "Delete";
-    deleteBtn.onclick = function() {deleteService(service.url)};
-    deleteBtn.style.marginRight = "10px";
-    li.appendChild(deleteBtn);
-    li.appendChild(document.createTextNode(service.url + ';' + service.name + ';'+ service.status));
-    listContainer.appendChild(li);
-  });
-});
+const serviceItems = new Map();
+
+function renderService(service) {
+    let li = serviceItems.get(service.url);
+    if (!li) {
+        li = document.createElement("li");
+        var deleteBtn = document.createElement("button");
+        deleteBtn.innerHTML = "Delete";
+        deleteBtn.onclick = function() {deleteService(service.url)};
+        deleteBtn.style.marginRight = "10px";
+        li.appendChild(deleteBtn);
+        li.appendChild(document.createTextNode(''));
+        listContainer.appendChild(li);
+        serviceItems.set(service.url, li);
+        li.service = service;
+    }
+    Object.assign(li.service, service);
+    li.lastChild.nodeValue = li.service.url + ';' + li.service.name + ';' + li.service.status;
+}
+
+function removeService(url) {
+    let li = serviceItems.get(url);
+    if (li) {
+        li.remove();
+        serviceItems.delete(url);
+    }
+}
+
+function loadServices() {
+    let servicesRequest = new Request('/service');
+    return fetch(servicesRequest)
+    .then(function(response) { return response.json(); })
+    .then(function(serviceList) {
+      serviceItems.forEach((li, url) => removeService(url));
+      serviceList.forEach(renderService);
+    });
+}
+
+// Only the changes are streamed. The stream is opened first and the full list is loaded whenever
+// it (re)connects, or when the server asks for it; the changes received meanwhile are applied after
+// the list so none of them is lost or overwritten by an older list
+let bufferedEvents = null;
+let reloadAgain = false;
+
+function reload() {
+    if (bufferedEvents) {
+        // The list being loaded may be older than the reason to reload
+        reloadAgain = true;
+        return;
+    }
+    bufferedEvents = [];
+    loadServices().catch(function(error) {
+        console.error('Error while loading the services', error);
+    }).then(function() {
+        let events = bufferedEvents;
+        bufferedEvents = null;
+        events.forEach(applyEvent);
+        if (reloadAgain) {
+            reloadAgain = false;
+            reload();
+        }
+    });
+}
+
+function applyEvent(e) {
+    if (bufferedEvents) {
+        bufferedEvents.push(e);
+        return;
+    }
+    let change = JSON.parse(e.data);
+    if (e.type === 'added') {
+        renderService(change);
+    } else if (e.type === 'status' && serviceItems.has(change.url)) {
+        renderService(change);
+    } else if (e.type === 'deleted') {
+        removeService(change.url);
+    }
+}
+
+const events = new EventSource('/service/events');
+events.onopen = e => reload();
+['added', 'status', 'deleted'].forEach(type => events.addEventListener(type, applyEvent));
+events.addEventListener('resync', e => reload());
 
 const saveButton = document.querySelector('#post-service');
 saveButton.onclick = evt => {
@@ -31,7 +98,7 @@ saveButton.onclick = evt => {
     'Content-Type': 'application/json'
     },
   body: JSON.stringify({url:urlName,name:serviceName})
-}).then(res=> location.reload());
+});
 }
 
 function deleteService(urlName) {
@@ -46,5 +113,5 @@ function postToEndpoint(endpoint, urlName) {
             'Content-Type': 'application/json'
         },
         body: JSON.stringify({url:urlName})
-        }).then(res => location.reload());
+        });
 }